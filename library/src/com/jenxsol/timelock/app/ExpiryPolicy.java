@@ -0,0 +1,248 @@
+package com.jenxsol.timelock.app;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import com.jenxsol.timelock.app.TimeLock.TimeOutEffect;
+
+import android.os.SystemClock;
+
+/**
+ * A config's rules worked out against the build time: each rule's deadline,
+ * sorted, in primitive arrays.
+ * <p>
+ * Time only goes forward, so the rules that have come due are always the
+ * first so many. We keep how many, and the next deadline after them. A check
+ * with nothing new due is one comparison against that, otherwise a binary
+ * search finds how far we've got. Rules never go back to not due. Immutable
+ * apart from that count, which only goes up.
+ * </p>
+ */
+final class ExpiryPolicy
+{
+
+    /**
+     * Rules, soonest first.
+     */
+    private final ExpiryRule[] mRules;
+    /**
+     * Wall clock deadlines, same order, ascending.
+     */
+    private final long[] mWall;
+    /**
+     * Deadlines on {@link SystemClock#elapsedRealtime()}, ascending too.
+     */
+    private final long[] mElapsed;
+    /**
+     * For each position, the latest rule up to and including it that kills
+     * the app, or -1.
+     */
+    private final int[] mLastKill;
+    private final HashMap<String, Integer> mIndex;
+
+    /**
+     * Rules before this have come due.
+     */
+    private volatile int mDue;
+    /**
+     * Deadlines of the first rule not yet due, or Long.MAX_VALUE if they all
+     * are.
+     */
+    private volatile long mNextElapsed;
+    private volatile long mNextWall;
+
+    /**
+     * @param now
+     *            current wall clock time, trusted if we have it
+     */
+    ExpiryPolicy(TimeLockConfig config, long buildTime, long now)
+    {
+        final ExpiryRule[] all = config.getAllRules();
+        int count = 0;
+        final ExpiryRule[] rules = new ExpiryRule[all.length];
+        for (final ExpiryRule r : all)
+        {
+            if (r.getTimeOut() > 0 && r.appliesTo(config.getFlavor())) rules[count++] = r;
+        }
+        final long ticks = SystemClock.elapsedRealtime();
+        final long[] wall = new long[count];
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++)
+        {
+            final long timeout = rules[i].getTimeOut();
+            // Clamp rather than overflow for silly long time outs
+            wall[i] = timeout > Long.MAX_VALUE - buildTime ? Long.MAX_VALUE : buildTime + timeout;
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                final long wa = wall[a];
+                final long wb = wall[b];
+                return wa < wb ? -1 : (wa == wb ? 0 : 1);
+            }
+        });
+
+        mRules = new ExpiryRule[count];
+        mWall = new long[count];
+        mElapsed = new long[count];
+        mLastKill = new int[count];
+        mIndex = new HashMap<String, Integer>(count * 2);
+        int lastKill = -1;
+        for (int i = 0; i < count; i++)
+        {
+            final int from = order[i];
+            mRules[i] = rules[from];
+            mWall[i] = wall[from];
+            final long remaining = wall[from] - now;
+            mElapsed[i] = remaining > Long.MAX_VALUE - ticks ? Long.MAX_VALUE : ticks + remaining;
+            if (kills(mRules[i].getTimeOutEffect())) lastKill = i;
+            mLastKill[i] = lastKill;
+            mIndex.put(mRules[i].getName(), i);
+        }
+        setDue(0);
+    }
+
+    /**
+     * @return elapsed deadline of the next rule to come due, Long.MAX_VALUE
+     *         if there are none left
+     */
+    long getNextElapsed()
+    {
+        return mNextElapsed;
+    }
+
+    /**
+     * @return wall deadline of the next rule to come due, Long.MAX_VALUE if
+     *         there are none left
+     */
+    long getNextWall()
+    {
+        return mNextWall;
+    }
+
+    /**
+     * @return how many rules have come due, they are the first ones
+     */
+    int getDueCount()
+    {
+        return mDue;
+    }
+
+    int size()
+    {
+        return mRules.length;
+    }
+
+    ExpiryRule getRule(int i)
+    {
+        return mRules[i];
+    }
+
+    long getWall(int i)
+    {
+        return mWall[i];
+    }
+
+    long getElapsed(int i)
+    {
+        return mElapsed[i];
+    }
+
+    /**
+     * @return position of the rule, -1 if there isn't one by that name (or
+     *         it's not for this flavour)
+     */
+    int indexOf(String name)
+    {
+        final Integer i = mIndex.get(name);
+        return null == i ? -1 : i;
+    }
+
+    /**
+     * @return the latest due rule that kills the app, null if none
+     */
+    ExpiryRule getKillRule()
+    {
+        return getKillRule(mDue);
+    }
+
+    /**
+     * Same as {@link #getKillRule()} after an {@link #advance(long, long)},
+     * without marking anything.
+     *
+     * @return the latest rule that kills the app due by then, null if none
+     */
+    ExpiryRule getKillRule(long nowElapsed, long expiredWall)
+    {
+        int due = Math.max(mDue, countBelow(mElapsed, nowElapsed));
+        if (expiredWall >= mNextWall) due = Math.max(due, countBelow(mWall, expiredWall + 1));
+        return getKillRule(due);
+    }
+
+    private ExpiryRule getKillRule(int due)
+    {
+        if (due == 0) return null;
+        final int kill = mLastKill[due - 1];
+        return kill < 0 ? null : mRules[kill];
+    }
+
+    /**
+     * Marks everything that has come due, O(log n).
+     *
+     * @param nowElapsed
+     *            {@link SystemClock#elapsedRealtime()}
+     * @param expiredWall
+     *            a wall time we know has passed, i.e. another process saw
+     *            it, 0 if none
+     * @return the new due count
+     */
+    synchronized int advance(long nowElapsed, long expiredWall)
+    {
+        int due = mDue;
+        // Deadlines are inclusive, due once we're past them
+        if (nowElapsed > mNextElapsed) due = Math.max(due, countBelow(mElapsed, nowElapsed));
+        if (expiredWall >= mNextWall) due = Math.max(due, countBelow(mWall, expiredWall + 1));
+        if (due != mDue) setDue(due);
+        return due;
+    }
+
+    private void setDue(int due)
+    {
+        mNextElapsed = due < mElapsed.length ? mElapsed[due] : Long.MAX_VALUE;
+        mNextWall = due < mWall.length ? mWall[due] : Long.MAX_VALUE;
+        mDue = due;
+    }
+
+    /**
+     * @return how many of the sorted values are below the key
+     */
+    private static int countBelow(long[] sorted, long key)
+    {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi)
+        {
+            final int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    static boolean kills(TimeOutEffect effect)
+    {
+        switch (effect)
+        {
+            case KILL_TOAST:
+            case KILL_DIALOG:
+            case ASSASSINATE:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.jenxsol.timelock.app;
+
+import java.util.Arrays;
+
+import com.jenxsol.timelock.app.TimeLock.TimeLengths;
+import com.jenxsol.timelock.app.TimeLock.TimeOutEffect;
+
+/**
+ * One expiry rule: a name, how long after the build time it comes due, and
+ * what happens then. Add as many as you like with
+ * {@link TimeLockConfig.Builder#addRule(ExpiryRule)}, on top of the main time
+ * out. Immutable.
+ * <p>
+ * i.e. warn three days before killing, and turn off exporting after a week
+ * (check it with {@link TimeLock#isExpired(String)}), only in the beta:
+ * </p>
+ *
+ * <pre>
+ * new TimeLockConfig.Builder()
+ *         .setTimeOut(TimeLengths.MONTH)
+ *         .addRule(new ExpiryRule.Builder("warn")
+ *                 .setTimeOut(TimeLengths.MONTH - 3 * TimeLengths.DAY)
+ *                 .setWarningDialog("Expiring soon", "This build stops working in 3 days.")
+ *                 .build())
+ *         .addRule(new ExpiryRule.Builder("export")
+ *                 .setTimeOut(TimeLengths.WEEK)
+ *                 .setFlavors("beta")
+ *                 .build())
+ *         .setFlavor(BuildConfig.FLAVOR)
+ *         .build();
+ * </pre>
+ *
+ * @since 1.3
+ */
+public final class ExpiryRule
+{
+
+    /**
+     * Name of the rule made from {@link TimeLockConfig#getTimeOut()} and
+     * {@link TimeLockConfig#getTimeOutEffect()}.
+     */
+    public static final String MAIN = "main";
+
+    private final String mName;
+    private final long mTimeOut;
+    private final TimeOutEffect mTimeOutEffect;
+    private final String mTitle;
+    private final String mMessage;
+    private final String[] mFlavors;
+
+    private ExpiryRule(Builder b)
+    {
+        mName = b.mName;
+        mTimeOut = b.mTimeOut;
+        mTimeOutEffect = b.mTimeOutEffect;
+        mTitle = b.mTitle;
+        mMessage = b.mMessage;
+        mFlavors = b.mFlavors;
+    }
+
+    /**
+     * @return the rule's name, what {@link TimeLock#isExpired(String)} takes
+     */
+    public String getName()
+    {
+        return mName;
+    }
+
+    /**
+     * @return millis after the build time that the rule is due, 0 or less
+     *         means never
+     */
+    public long getTimeOut()
+    {
+        return mTimeOut;
+    }
+
+    /**
+     * @return what happens when it's due
+     */
+    public TimeOutEffect getTimeOutEffect()
+    {
+        return mTimeOutEffect;
+    }
+
+    /**
+     * @return dialog title
+     */
+    public String getTitle()
+    {
+        return mTitle;
+    }
+
+    /**
+     * @return dialog message
+     */
+    public String getMessage()
+    {
+        return mMessage;
+    }
+
+    /**
+     * @param flavor
+     *            the build's flavour, can be null
+     * @return true if the rule is for that flavour
+     */
+    public boolean appliesTo(String flavor)
+    {
+        if (mFlavors.length == 0) return true;
+        for (final String f : mFlavors)
+        {
+            if (null != f && f.equals(flavor)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ExpiryRule [" + mName + ", " + mTimeOut + ", " + mTimeOutEffect
+                + (mFlavors.length > 0 ? ", " + Arrays.toString(mFlavors) : "") + "]";
+    }
+
+    /**
+     * Builds {@link ExpiryRule}s. Defaults to a week and
+     * {@link TimeOutEffect#NONE}, for a rule you only ever check yourself.
+     */
+    public static final class Builder
+    {
+
+        private final String mName;
+        private long mTimeOut = TimeLengths.WEEK;
+        private TimeOutEffect mTimeOutEffect = TimeOutEffect.NONE;
+        private String mTitle;
+        private String mMessage;
+        private String[] mFlavors = new String[0];
+
+        /**
+         * @param name
+         *            unique within a config
+         */
+        public Builder(String name)
+        {
+            if (null == name) throw new NullPointerException("name");
+            mName = name;
+        }
+
+        /**
+         * @param timeLength
+         *            millis after the build time, see {@link TimeLengths}
+         */
+        public Builder setTimeOut(long timeLength)
+        {
+            mTimeOut = timeLength;
+            return this;
+        }
+
+        /**
+         * @param effect
+         *            null is treated as {@link TimeOutEffect#NONE}
+         */
+        public Builder setTimeOutEffect(TimeOutEffect effect)
+        {
+            mTimeOutEffect = null == effect ? TimeOutEffect.NONE : effect;
+            return this;
+        }
+
+        /**
+         * Sets the effect to {@link TimeOutEffect#KILL_DIALOG} with this text.
+         */
+        public Builder setKillDialog(String title, String message)
+        {
+            mTitle = title;
+            mMessage = message;
+            mTimeOutEffect = TimeOutEffect.KILL_DIALOG;
+            return this;
+        }
+
+        /**
+         * Sets the effect to {@link TimeOutEffect#WARN_DIALOG} with this text.
+         */
+        public Builder setWarningDialog(String title, String message)
+        {
+            mTitle = title;
+            mMessage = message;
+            mTimeOutEffect = TimeOutEffect.WARN_DIALOG;
+            return this;
+        }
+
+        /**
+         * Only applies to these build flavours, see
+         * {@link TimeLockConfig.Builder#setFlavor(String)}. None means all of
+         * them.
+         */
+        public Builder setFlavors(String... flavors)
+        {
+            mFlavors = flavors.clone();
+            return this;
+        }
+
+        public ExpiryRule build()
+        {
+            return new ExpiryRule(this);
+        }
+    }
+}
@@ -1,17 +1,46 @@
 package com.jenxsol.timelock.app;
 
-import java.lang.ref.SoftReference;
-import java.util.Calendar;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.jenxsol.timelock.BuildConfig;
+import com.jenxsol.timelock.utils.ActivityStack;
+import com.jenxsol.timelock.utils.ActivityTracker;
+import com.jenxsol.timelock.utils.ClockGuard;
 import com.jenxsol.timelock.utils.DialogSupport;
-import com.jenxsol.timelock.utils.SoftHashSet;
+import com.jenxsol.timelock.utils.DnsCache;
+import com.jenxsol.timelock.utils.PollPolicy;
+import com.jenxsol.timelock.utils.SharedState;
+import com.jenxsol.timelock.utils.SntpTimeSource;
 import com.jenxsol.timelock.utils.TimeLockSupport;
+import com.jenxsol.timelock.utils.TimeSample;
+import com.jenxsol.timelock.utils.TimeSource;
+import com.jenxsol.timelock.utils.TimeSourceChain;
+import com.jenxsol.timelock.utils.TimeSync;
+import com.jenxsol.timelock.utils.TrustedClock;
 
 import android.app.Activity;
 import android.app.Application;
 import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -27,22 +56,276 @@ public class TimeLock
 
     private static final String TAG = "timelock";
 
-    private static SoftReference<TimeLock> mSelf;
+    /**
+     * Millis {@link #prefetch(Context, String...)} gives the servers.
+     */
+    private static final int FETCH_TIMEOUT = 5000;
+
+    /**
+     * Held strongly, the instance only keeps a {@link WeakReference} to
+     * contexts so it can't leak them, and rebuilding it is what we want to
+     * avoid.
+     */
+    private static volatile TimeLock mSelf;
+
+    /**
+     * Static stack of live activities, newest on top. On API 14+ this is kept
+     * up to date by the {@link ActivityTracker} (added on create, removed on
+     * destroy), before that by {@link #get(Context)}. Only weakly held, so
+     * destroyed activities can't be kept around by us whatever happens.<br>
+     * Thread safe as {@link #get(Context)} and
+     * {@link TimeLockSupport#exit(Context)} can run on different threads.
+     */
+    private static final ActivityStack mActivityStack = new ActivityStack(10);
+
+    /**
+     * Main thread handler the expiry event is posted to. Only ever holds the
+     * one expiry runnable.
+     */
+    private static final Handler mExpiryHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Single background thread the build date is resolved on.
+     */
+    private static ExecutorService mExecutor;
+
+    /**
+     * Build time in millis, started by {@link #prefetch(Context)}.
+     */
+    private static FutureTask<Long> mBuildTime;
+
+    /**
+     * Last good network time, see {@link #updateTime(TimeSample)}. Loaded on
+     * the background thread by {@link #prefetch(Context)}.
+     */
+    private static volatile TrustedClock mTrustedClock;
+
+    /**
+     * High-water mark the wall clock can't go back past. Loaded on the
+     * background thread by {@link #prefetch(Context)}.
+     */
+    private static volatile ClockGuard mClockGuard;
+
+    /**
+     * State shared with the app's other processes, null if it couldn't be
+     * mapped. Opened on the background thread by {@link #prefetch(Context)}.
+     */
+    private static volatile SharedState mSharedState;
+    private static boolean mSharedStateOpened;
+
+    /**
+     * Background time sync, see {@link #syncTime(String)}.
+     */
+    private static TimeSync mTimeSync;
+
+    /**
+     * {@link #prefetch(Context, String...)} has asked the servers, only done
+     * once.
+     */
+    private static boolean mTimeFetched;
+
+    /**
+     * <p>
+     * Starts working out the build date on a background thread. Call this as
+     * early as you can, i.e. first thing in {@link Application#onCreate()}, so
+     * it's done by the time your first activity calls {@link #check()}.
+     * </p>
+     * <p>
+     * {@link #get(Context)} calls this for you if you don't, calling it again
+     * does nothing.
+     * </p>
+     * 
+     * @param ctx
+     *            any context, only the application context is held on to
+     * @since 1.3
+     */
+    public static synchronized void prefetch(Context ctx)
+    {
+        if (null != mBuildTime) return;
+        final Context app = null != ctx.getApplicationContext() ? ctx.getApplicationContext()
+                : ctx;
+        mBuildTime = new FutureTask<Long>(new Callable<Long>()
+        {
+            @Override
+            public Long call() throws Exception
+            {
+                final SharedState shared = getSharedState(app);
+                getTrustedClock(app);
+                final ClockGuard guard = getClockGuard(app);
+                long time = TimeLockSupport.getGeneratedBuildTime();
+                if (time <= 0)
+                    time = TimeLockSupport.getApplicationBuildDate(app, shared).getTime();
+                // The clock can't be earlier than the build
+                guard.raise(time);
+                return time;
+            }
+        })
+        {
+            @Override
+            protected void done()
+            {
+                // Hand the result to the current instance on the main thread,
+                // this arms the expiry event which runs any deferred check.
+                mExpiryHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        final TimeLock self = mSelf;
+                        if (null != self) self.awaitBuildTime(0);
+                    }
+                });
+            }
+        };
+        getExecutor().execute(mBuildTime);
+    }
+
+    /**
+     * Same as {@link #prefetch(Context)}, and asks the time servers you are
+     * going to use (see {@link #syncTime(String)}) for the time once, in the
+     * background, so checks can go by network time as soon as possible. It's
+     * queued after the build date, checks never wait for it. Skipped if we
+     * already have a good time from earlier in this boot. Calling it again
+     * does nothing.
+     * 
+     * @param ctx
+     *            any context, only the application context is held on to
+     * @param timeServers
+     *            NTP server host names, most preferred first
+     * @since 1.3
+     */
+    public static void prefetch(Context ctx, String... timeServers)
+    {
+        prefetch(ctx);
+        DnsCache.getDefault().prefetch(timeServers);
+        final ArrayList<TimeSource> sources = new ArrayList<TimeSource>(timeServers.length);
+        for (final String host : timeServers)
+        {
+            if (null != host) sources.add(new SntpTimeSource(host));
+        }
+        if (sources.isEmpty()) return;
+        synchronized (TimeLock.class)
+        {
+            if (mTimeFetched) return;
+            mTimeFetched = true;
+        }
+        final TimeSource source = sources.size() == 1 ? sources.get(0) : new TimeSourceChain(
+                sources.toArray(new TimeSource[sources.size()]));
+        final Context app = null != ctx.getApplicationContext() ? ctx.getApplicationContext()
+                : ctx;
+        getExecutor().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (getTrustedClock(app).isValid()) return;
+                try
+                {
+                    final TimeSample sample = source.getTime(FETCH_TIMEOUT);
+                    // Only the device clock answered
+                    if (sample.getDispersion() >= TimeSource.UNTRUSTED) return;
+                    takeTime(app, sample);
+                }
+                catch (IOException e)
+                {
+                    if (BuildConfig.DEBUG) Log.d(TAG, "time fetch failed: " + e);
+                }
+                catch (RuntimeException e)
+                {
+                    // i.e. no INTERNET permission
+                    Log.w(TAG, "time fetch failed", e);
+                }
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (null == mExecutor)
+        {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    final Thread t = new Thread(r, "TimeLock");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    /**
+     * @hide
+     * @return the network time cache, reads the preferences the first time
+     */
+    public static synchronized TrustedClock getTrustedClock(Context ctx)
+    {
+        if (null == mTrustedClock)
+        {
+            mTrustedClock = new TrustedClock(ctx.getApplicationContext() != null ? ctx
+                    .getApplicationContext() : ctx, TrustedClock.DEFAULT_TTL,
+                    TrustedClock.DEFAULT_MAX_ERROR, getSharedState(ctx));
+        }
+        return mTrustedClock;
+    }
 
     /**
-     * Static set of activities, these should be held as long as the activities
-     * are not being destroyed. in which case we don't care as they will be
-     * created going back to them.<br>
-     * needs a bit of testing, if any oom are caused by this would like to
-     * know..
+     * @hide
+     * @return the clock rollback guard, reads the preferences the first time
+     */
+    public static synchronized ClockGuard getClockGuard(Context ctx)
+    {
+        if (null == mClockGuard)
+        {
+            mClockGuard = new ClockGuard(ctx.getApplicationContext() != null ? ctx
+                    .getApplicationContext() : ctx, getExecutor(), getSharedState(ctx));
+        }
+        return mClockGuard;
+    }
+
+    /**
+     * Maps the shared state file the first time, off the main thread.
+     * 
+     * @return the state, or null if it can't be mapped
+     */
+    private static synchronized SharedState getSharedState(Context ctx)
+    {
+        if (mSharedStateOpened) return mSharedState;
+        mSharedStateOpened = true;
+        try
+        {
+            mSharedState = SharedState.open(new File(ctx.getFilesDir(), SharedState.FILE_NAME),
+                    SharedState.apkStamp(ctx.getApplicationInfo().sourceDir));
+        }
+        catch (IOException e)
+        {
+            if (BuildConfig.DEBUG) Log.d(TAG, "no shared state: " + e);
+        }
+        return mSharedState;
+    }
+
+    /**
+     * @return trusted network time if we have one, else the system clock as
+     *         long as it hasn't been wound back
      */
-    private static final SoftHashSet<Activity> mActivityStack = new SoftHashSet<Activity>(10);
+    private static long currentTimeMillis()
+    {
+        final TrustedClock clock = mTrustedClock;
+        final long trusted = null != clock ? clock.currentTimeMillis() : -1;
+        if (trusted > 0) return trusted;
+        final ClockGuard guard = mClockGuard;
+        return null != guard ? guard.currentTimeMillis() : System.currentTimeMillis();
+    }
 
     /**
      * @hide
      * @return
      */
-    public static SoftHashSet<Activity> getActivityStack()
+    public static ActivityStack getActivityStack()
     {
         return mActivityStack;
     }
@@ -66,62 +349,234 @@ public class TimeLock
      * Default is for the App to show a dialog.
      * </p>
      * <p>
-     * Its worth noting that this method is not always quick especially on old
-     * devices with slow IO. I recommend you wrap this in an async task. I shall
-     * try to improve this in the future.
+     * This doesn't block, the build date is worked out in the background (see
+     * {@link #prefetch(Context)}). {@link #check()} waits for it, use
+     * {@link #check(long)} or {@link #checkAsync()} if you don't want to.
+     * </p>
+     * <p>
+     * The {@link TimeLock} is created once and kept, safe to call from any
+     * thread.
      * </p>
-     * 
-     * 
-     * This holds a {@link SoftReference} to the {@link TimeLock} to reduce full
-     * checks for the App being out dated.
      * 
      * @param app
      * @return {@link TimeLock} instance
      */
     public static TimeLock get(Context ctx)
     {
-        if (null == mSelf || null == mSelf.get())
-            mSelf = new SoftReference<TimeLock>(new TimeLock(ctx));
-        mSelf.get().setContext(ctx);
-        return mSelf.get();
+        TimeLock self = mSelf;
+        if (null == self)
+        {
+            synchronized (TimeLock.class)
+            {
+                self = mSelf;
+                if (null == self)
+                {
+                    self = new TimeLock(ctx);
+                    mSelf = self;
+                }
+            }
+        }
+        self.setContext(ctx);
+        return self;
     }
 
     /**
-     * Date the app build was created.
+     * Current settings, only ever replaced whole.
+     */
+    private static final AtomicReference<TimeLockConfig> mConfig = new AtomicReference<TimeLockConfig>(
+            new TimeLockConfig.Builder().build());
+
+    /**
+     * Build time, the config and the deadline worked out from them, null until
+     * the background resolve finishes. Replaced whole so readers always see a
+     * matching set.
+     */
+    private final AtomicReference<Deadline> mDeadline = new AtomicReference<Deadline>();
+    /**
+     * Application context, fine to hold on to.
+     */
+    private final Context mAppCtx;
+    /**
+     * Last context we were given. SHould use this for dialogs
+     */
+    private volatile WeakReference<Context> mCtx;
+    /**
+     * Has app expired. Once set this latches, {@link #check()} only has to
+     * read it. Only a new deadline with no kill rule due (i.e. a longer time
+     * out) clears it, see {@link #updateDeadline(long)}.
      */
-    private final Date mAppCreatedDate;
+    private volatile boolean mHasExpired = false;
     /**
-     * Context. SHould use this for dialogs
+     * Rule that expired us, latches with {@link #mHasExpired}.
      */
-    private Context mCtx;
+    private volatile ExpiryRule mKillRule;
     /**
-     * Has app expired.
+     * {@link SharedState#getSequence()} when {@link #doCheck()} last looked,
+     * only the trusted time in there moves the deadlines.
      */
-    private boolean mHasExpired = false;
+    private volatile long mSharedSequence = -1;
 
-    // Internal Consts
-    private static boolean enable = BuildConfig.DEBUG;
-    private static long timeout = TimeLengths.WEEK;
-    private static TimeOutEffect timeOutEffect = TimeOutEffect.KILL_DIALOG;
-    private static String mKillMessage = "This is a development build, which has now expired. Please aquire a newer version.";
-    private static String mKillTitle = "App is too old";
+    /**
+     * Warning rules we have shown, so a new deadline (i.e. after a config
+     * change) doesn't show them again.
+     */
+    private final Set<String> mWarned = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * Fired on the main thread when a rule comes due, so long running
+     * activities get killed without waiting for the next {@link #check()}.
+     */
+    private final Runnable mExpiryRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            final Deadline d = mDeadline.get();
+            if (mHasExpired || null == d) return;
+            final long remaining = d.policy.getNextElapsed() - SystemClock.elapsedRealtime();
+            if (remaining >= 0)
+            {
+                // Handler runs on uptime which stops in deep sleep, so we can
+                // be early on the elapsed clock.. go round again.
+                mExpiryHandler.postAtTime(this, SystemClock.uptimeMillis() + remaining + 1);
+                return;
+            }
+            doCheck();
+            // On to the next rule, if there is one
+            armExpiry();
+        }
+    };
 
     protected TimeLock(Context ctx)
     {
+        mAppCtx = null != ctx.getApplicationContext() ? ctx.getApplicationContext() : ctx;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
+                && mAppCtx instanceof Application)
+        {
+            ActivityTracker.register((Application) mAppCtx, mActivityStack);
+        }
         setContext(ctx);
-        mAppCreatedDate = TimeLockSupport.getApplicationBuildDate(ctx);
+        prefetch(ctx);
+        awaitBuildTime(0);
+    }
+
+    /**
+     * Picks up the build time from {@link #prefetch(Context)}.
+     * 
+     * @param waitMillis
+     *            how long to wait for it, negative waits for ever
+     * @return true if the build time is known
+     */
+    private boolean awaitBuildTime(long waitMillis)
+    {
+        if (null != mDeadline.get()) return true;
+        long time;
+        try
+        {
+            time = waitMillis < 0 ? mBuildTime.get() : mBuildTime.get(waitMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            return false;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException e)
+        {
+            // Same as failing to read the APK
+            time = 0;
+        }
+        updateDeadline(time);
+        return true;
+    }
+
+    /**
+     * Needs calling when ever the build time or config changes. Re-arms the
+     * expiry event.
+     */
+    private void updateDeadline(long buildTime)
+    {
+        final SharedState shared = mSharedState;
+        Deadline d;
+        for (;;)
+        {
+            final Deadline old = mDeadline.get();
+            final TimeLockConfig config = mConfig.get();
+            // Before the time, so a sync in between makes us go again
+            final long epoch = null == shared ? 0 : shared.getTrustedEpoch();
+            d = new Deadline(buildTime, config, currentTimeMillis(), epoch);
+            // Go round again if the config changed while we were working
+            if (mDeadline.compareAndSet(old, d) && mConfig.get() == config) break;
+        }
+        if (mHasExpired
+                && null == d.policy.getKillRule(SystemClock.elapsedRealtime(),
+                        null == shared ? 0 : shared.getExpiredAt()))
+        {
+            // The time out was made longer (or the clock was ahead), nothing
+            // kills us any more
+            mKillRule = null;
+            mHasExpired = false;
+        }
+        armExpiry();
+    }
+
+    /**
+     * Rebuilds the deadline after a config change, if we know the build time
+     * yet.
+     */
+    private void onConfigChanged()
+    {
+        final Deadline d = mDeadline.get();
+        if (null != d) updateDeadline(d.buildTime);
+    }
+
+    /**
+     * Posts the one expiry event for the next rule to come due, dropping any
+     * previous one (including one from an older instance).
+     */
+    private void armExpiry()
+    {
+        mExpiryHandler.removeCallbacksAndMessages(null);
+        final Deadline d = mDeadline.get();
+        if (mHasExpired || null == d) return;
+        if (!d.config.isEnabled()) return;
+        final long next = d.policy.getNextElapsed();
+        if (next == Long.MAX_VALUE) return;
+        final long remaining = next - SystemClock.elapsedRealtime();
+        if (remaining < 0)
+        {
+            mExpiryHandler.post(mExpiryRunnable);
+        }
+        else if (remaining < Long.MAX_VALUE - SystemClock.uptimeMillis() - 1)
+        {
+            // Deadline is inclusive, so fire just after it
+            mExpiryHandler.postAtTime(mExpiryRunnable, SystemClock.uptimeMillis() + remaining + 1);
+        }
     }
 
     private TimeLock setContext(Context ctx)
     {
-        mCtx = ctx;
+        mCtx = new WeakReference<Context>(ctx);
         if (ctx instanceof Activity)
         {
-            mActivityStack.add((Activity) ctx);
+            mActivityStack.push((Activity) ctx);
         }
         return this;
     }
 
+    /**
+     * @return the last context we were given, or the application if it's gone
+     */
+    private Context getContext()
+    {
+        final Context ctx = mCtx.get();
+        return null != ctx ? ctx : mAppCtx;
+    }
+
     /**
      * Sets the KillDialog text, as well as setting the TimeOutEffect to
      * {@link TimeOutEffect#KILL_DIALOG}
@@ -135,12 +590,43 @@ public class TimeLock
      */
     public TimeLock setKillDialog(String title, String message)
     {
-        mKillTitle = title;
-        mKillMessage = message;
-        timeOutEffect = TimeOutEffect.KILL_DIALOG;
+        TimeLockConfig old;
+        do
+        {
+            old = mConfig.get();
+        }
+        while (!mConfig.compareAndSet(old, old.buildUpon().setKillDialog(title, message).build()));
+        onConfigChanged();
         return this;
     }
 
+    /**
+     * Replaces all the settings in one go.
+     * 
+     * @param config
+     *            new settings
+     * @return self
+     * @since 1.3
+     */
+    public TimeLock setConfig(TimeLockConfig config)
+    {
+        if (null == config) throw new NullPointerException("config");
+        mConfig.set(config);
+        onConfigChanged();
+        // Wont auto fire check on application class
+        if (!TimeLockSupport.isApplication(getContext())) doCheck();
+        return this;
+    }
+
+    /**
+     * @return the current settings
+     * @since 1.3
+     */
+    public TimeLockConfig getConfig()
+    {
+        return mConfig.get();
+    }
+
     /**
      * Fires a check of now vs the app creation date and the settings provided.
      * 
@@ -148,15 +634,41 @@ public class TimeLock
      */
     public TimeLock check()
     {
-        if (mCtx instanceof Application)
+        return check(-1);
+    }
+
+    /**
+     * Same as {@link #check()} but will only wait so long for the build date
+     * to be worked out. If it's not ready in time the check happens on the
+     * main thread as soon as it is.
+     * 
+     * @param maxWaitMillis
+     *            max time to block for, negative waits for ever
+     * @return self
+     * @since 1.3
+     */
+    public TimeLock check(long maxWaitMillis)
+    {
+        if (getContext() instanceof Application)
         {
             throw new InstantiationError(
                     "Please don't call check() from the application object, do it from onCreate of your activities");
         }
-        doCheck();
+        if (awaitBuildTime(maxWaitMillis)) doCheck();
         return this;
     }
 
+    /**
+     * Never blocks, same as {@link #check(long)} with no wait.
+     * 
+     * @return self
+     * @since 1.3
+     */
+    public TimeLock checkAsync()
+    {
+        return check(0);
+    }
+
     /**
      * Set the time locking featured to enabled or not. If enabling again will
      * force a re-check of the time. (Meaning it will kill the app if its now
@@ -166,8 +678,14 @@ public class TimeLock
      */
     public TimeLock setEnabled(boolean enable)
     {
-        boolean check = (!TimeLock.enable && enable);
-        TimeLock.enable = enable;
+        TimeLockConfig old;
+        do
+        {
+            old = mConfig.get();
+        }
+        while (!mConfig.compareAndSet(old, old.buildUpon().setEnabled(enable).build()));
+        boolean check = (!old.isEnabled() && enable);
+        onConfigChanged();
         if (check)
         {
             doCheck();
@@ -190,9 +708,122 @@ public class TimeLock
      */
     public TimeLock setTimeOut(long timeLength)
     {
-        timeout = timeLength;
+        TimeLockConfig old;
+        do
+        {
+            old = mConfig.get();
+        }
+        while (!mConfig.compareAndSet(old, old.buildUpon().setTimeOut(timeLength).build()));
+        onConfigChanged();
         // Wont auto fire check on application class
-        if (!TimeLockSupport.isApplication(mCtx)) doCheck();
+        if (!TimeLockSupport.isApplication(getContext())) doCheck();
+        return this;
+    }
+
+    /**
+     * Feeds in a time from the network, i.e.
+     * {@link com.jenxsol.timelock.utils.SntpClient#getTimeSample()}. It's
+     * cached (see {@link TrustedClock}) and from then on the deadline is worked
+     * out against it rather than the system clock, so winding the clock back
+     * doesn't help. Any thread, it returns straight away: the cache is read
+     * and written on the same background thread as {@link #prefetch(Context)}.
+     * If that puts us past the deadline the check happens on the main thread.
+     * 
+     * @param sample
+     *            the network time
+     * @return self
+     * @since 1.3
+     */
+    public TimeLock updateTime(final TimeSample sample)
+    {
+        getExecutor().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                takeTime(mAppCtx, sample);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Caches the network time, and moves the deadlines if it was kept. On the
+     * background thread.
+     */
+    private static void takeTime(Context app, TimeSample sample)
+    {
+        final TrustedClock clock = getTrustedClock(app);
+        if (!clock.update(sample)) return;
+        final long now = clock.currentTimeMillis();
+        if (now > 0) getClockGuard(app).onTrustedTime(now);
+        // Not made yet is fine, it reads the clock when it is
+        final TimeLock self = mSelf;
+        if (null != self) self.onConfigChanged();
+    }
+
+    /**
+     * Keeps the network time (see {@link #updateTime(TimeSample)}) up to date
+     * from the given NTP server in the background. It asks as rarely as it can
+     * get away with: from every 17 minutes up to every 18 hours depending on
+     * how much the device clock drifts, backing off when the server can't be
+     * reached or tells us to. Calling it again changes the server.
+     * 
+     * @param host
+     *            NTP server, i.e. "pool.ntp.org". Null stops syncing.
+     * @return self
+     * @since 1.3
+     */
+    public TimeLock syncTime(String host)
+    {
+        if (null == host) return syncTime((TimeSource) null);
+        DnsCache.getDefault().prefetch(host);
+        return syncTime(new SntpTimeSource(host));
+    }
+
+    /**
+     * Same as {@link #syncTime(String)}, from wherever you like, i.e. a
+     * {@link TimeSourceChain} of your own HTTPS server then an NTP pool.
+     * 
+     * @param source
+     *            where to get the time. Null stops syncing.
+     * @return self
+     * @since 1.3
+     */
+    public TimeLock syncTime(TimeSource source)
+    {
+        final TimeSync sync;
+        synchronized (TimeLock.class)
+        {
+            if (null != mTimeSync) mTimeSync.stop();
+            mTimeSync = null;
+            if (null == source) return this;
+            sync = new TimeSync(source, new PollPolicy(), new TimeSync.Listener()
+            {
+                @Override
+                public void onTime(TimeSample sample)
+                {
+                    updateTime(sample);
+                }
+            });
+            mTimeSync = sync;
+        }
+        // Off the main thread, the cache has to be read to know when we last
+        // synced
+        getExecutor().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final TrustedClock clock = getTrustedClock(mAppCtx);
+                final long age = clock.getAge();
+                final long delay = clock.isValid() ? PollPolicy.MIN_POLL_INTERVAL - age : 0;
+                synchronized (TimeLock.class)
+                {
+                    if (sync == mTimeSync) sync.start(delay);
+                }
+            }
+        });
         return this;
     }
 
@@ -200,73 +831,167 @@ public class TimeLock
      * Gets the App creation date
      * 
      * @return date of the app creation, if it fails it will return unix epoc
-     *         time. which you can guess is... well wrong!
+     *         time. which you can guess is... well wrong! Null if the thread
+     *         is interrupted while waiting for it.
      */
     public Date getCreatedDate()
     {
-        return mAppCreatedDate;
+        if (!awaitBuildTime(-1)) return null;
+        return new Date(mDeadline.get().buildTime);
     }
 
     /**
      * Will return the date when the app will stop working
      * 
      * @since 1.2
-     * @return date in the future (unless its already past)
+     * @return date in the future (unless its already past), null if the
+     *         thread is interrupted while waiting for the build date
      */
     public Date getExpiresDate()
     {
-        final Calendar cal = Calendar.getInstance();
-        cal.setTime(mAppCreatedDate);
-        cal.add(Calendar.SECOND, (int) (timeout / 1000));
-        return cal.getTime();
+        if (!awaitBuildTime(-1)) return null;
+        return new Date(mDeadline.get().wall);
+    }
+
+    /**
+     * @param rule
+     *            {@link ExpiryRule#getName()}
+     * @return when the rule comes due, null if there isn't one by that name
+     *         for this flavour, or the thread is interrupted while waiting for
+     *         the build date
+     * @since 1.3
+     */
+    public Date getExpiresDate(String rule)
+    {
+        if (!awaitBuildTime(-1)) return null;
+        final ExpiryPolicy policy = mDeadline.get().policy;
+        final int i = policy.indexOf(rule);
+        return i < 0 ? null : new Date(policy.getWall(i));
+    }
+
+    /**
+     * For locking individual features, never blocks and any thread. Cheap
+     * enough to call every time the feature is used.
+     * 
+     * @param rule
+     *            {@link ExpiryRule#getName()}
+     * @return true if the rule has come due. False if time locking is off,
+     *         there's no rule by that name for this flavour, or the build time
+     *         isn't known yet.
+     * @since 1.3
+     */
+    public boolean isExpired(String rule)
+    {
+        if (!awaitBuildTime(0)) return false;
+        final Deadline d = mDeadline.get();
+        if (!d.config.isEnabled()) return false;
+        final ExpiryPolicy policy = d.policy;
+        final int i = policy.indexOf(rule);
+        if (i < 0) return false;
+        if (i < policy.getDueCount()) return true;
+        // The check on the main thread does the rest, just compare here
+        if (SystemClock.elapsedRealtime() > policy.getElapsed(i)) return true;
+        final SharedState shared = mSharedState;
+        return null != shared && shared.getExpiredAt() >= policy.getWall(i);
     }
 
     private void doCheck()
     {
-        if (enable) Log.d(TAG, "TimeLock - Check Started");
-        if (!enable) return;
-        if (timeout <= 0) return;
+        // Build date not known yet, expiry event will check once it is
+        Deadline d = mDeadline.get();
+        if (null == d) return;
+        // Another process may have synced the time since, one read to find
+        // out. Most writes are the mark or expiry (ours too), those don't
+        // move the deadlines.
+        final SharedState shared = mSharedState;
+        if (null != shared && shared.getSequence() != mSharedSequence)
+        {
+            mSharedSequence = shared.getSequence();
+            if (shared.getTrustedEpoch() != d.trustedEpoch)
+            {
+                updateDeadline(d.buildTime);
+                d = mDeadline.get();
+            }
+        }
+        if (!d.config.isEnabled()) return;
 
-        // This check will be improved to use NTP server and TimeZone to make
-        // sure we are always right. But for rough locking its fine for now.
+        // Keeps the high-water mark saved now and then, no I/O here
+        final ClockGuard guard = mClockGuard;
+        if (null != guard) guard.touch();
 
-        final Date created = getCreatedDate();
-        final Date now = new Date(System.currentTimeMillis());
-        long createdTime = created.getTime();
-        createdTime += timeout;
-        final long nowTime = now.getTime();
+        // The deadlines were worked out against network time, or at least a
+        // clock that can't have been wound back (see currentTimeMillis()).
 
-        if (createdTime < nowTime)
+        // Called from every Activity.onCreate so don't allocate or log unless
+        // a rule has come due: one compare against the next deadline (and
+        // one against what other processes have seen). Normally the expiry
+        // event has got there first, this covers it running late.
+        final ExpiryPolicy policy = d.policy;
+        if (SystemClock.elapsedRealtime() > policy.getNextElapsed()
+                || (null != shared && shared.getExpiredAt() >= policy.getNextWall()))
         {
-            if (enable)
-                Log.d(TAG, "TimeLock - App expired by " + (nowTime - createdTime) + " millis");
-            handleExit();
-            mHasExpired = true;
+            onRulesDue(policy, shared);
         }
+        ExpiryRule kill = policy.getKillRule();
+        if (null == kill) kill = mKillRule;
+        if (null == kill) return;
+        mKillRule = kill;
+        mHasExpired = true;
+        handleExit(kill);
+    }
 
+    /**
+     * Logs the rules that have just come due, and shows a warning if one
+     * has (and we aren't being killed anyway).
+     */
+    private void onRulesDue(ExpiryPolicy policy, SharedState shared)
+    {
+        final int from;
+        final int to;
+        synchronized (policy)
+        {
+            from = policy.getDueCount();
+            to = policy.advance(SystemClock.elapsedRealtime(),
+                    null == shared ? 0 : shared.getExpiredAt());
+        }
+        if (to <= from) return;
+        if (null != shared) shared.setExpiredAt(policy.getWall(to - 1));
+        ExpiryRule warn = null;
+        for (int i = from; i < to; i++)
+        {
+            final ExpiryRule rule = policy.getRule(i);
+            Log.d(TAG, "TimeLock - " + rule.getName() + " is due");
+            if (rule.getTimeOutEffect() == TimeOutEffect.WARN_DIALOG && mWarned.add(rule.getName()))
+                warn = rule;
+        }
+        if (null != warn && null == policy.getKillRule()) handleExit(warn);
     }
 
     /**
      * Will look at the TimeOutEffect and perform based on that
      */
-    private void handleExit()
+    private void handleExit(ExpiryRule rule)
     {
         // We have called expired before.. so skip repeating messages to users
         // if (mHasExpired)
         // {
         // TimeLockSupport.exit(mCtx);
         // }
-        switch (timeOutEffect)
+        final Context ctx = getExitContext();
+        switch (rule.getTimeOutEffect())
         {
 
+            case WARN_DIALOG:
+                DialogSupport.warningDialog(ctx, rule.getTitle(), rule.getMessage());
+                break;
             case KILL_TOAST:
                 // TODO show toast and go bye bye
             case KILL_DIALOG:
-                DialogSupport.timeOutDialog(mCtx, mKillTitle, mKillMessage);
+                DialogSupport.timeOutDialog(ctx, rule.getTitle(), rule.getMessage());
                 break;
             case ASSASSINATE:
                 // Good by :'(
-                TimeLockSupport.exit(mCtx);
+                TimeLockSupport.exit(ctx);
                 break;
 
             case NONE:
@@ -277,6 +1002,66 @@ public class TimeLock
         }
     }
 
+    /**
+     * Dialogs need an activity, if we were last handed the application (i.e.
+     * the expiry event fired) use one of the running activities.
+     */
+    private Context getExitContext()
+    {
+        final Context ctx = getContext();
+        if (ctx instanceof Activity) return ctx;
+        final Activity top = mActivityStack.top();
+        return null != top ? top : ctx;
+    }
+
+    /**
+     * Build time, config and the deadlines from them. The fields never change,
+     * so it can be published through one atomic field, but the policy counts
+     * the rules that have come due (under its own lock, see
+     * {@link TimeLock#onRulesDue(ExpiryPolicy, SharedState)}).
+     */
+    private static final class Deadline
+    {
+        /**
+         * Date the app build was created.
+         */
+        final long buildTime;
+        /**
+         * Build time plus time out, for {@link TimeLock#getExpiresDate()}.
+         */
+        final long wall;
+        /**
+         * Settings the deadline was worked out with.
+         */
+        final TimeLockConfig config;
+        /**
+         * Every rule's deadline, worked out up front (and moved onto
+         * {@link SystemClock#elapsedRealtime()}, so changing the wall clock
+         * after we started doesn't move them). A check with nothing new due
+         * is one comparison against the next of them.
+         */
+        final ExpiryPolicy policy;
+        /**
+         * {@link SharedState#getTrustedEpoch()} it was worked out with.
+         */
+        final long trustedEpoch;
+
+        /**
+         * @param now
+         *            current wall clock time, trusted if we have it
+         */
+        Deadline(long buildTime, TimeLockConfig config, long now, long trustedEpoch)
+        {
+            this.buildTime = buildTime;
+            this.config = config;
+            this.trustedEpoch = trustedEpoch;
+            final long timeout = config.getTimeOut();
+            // Clamp rather than overflow for silly long time outs
+            wall = timeout > Long.MAX_VALUE - buildTime ? Long.MAX_VALUE : buildTime + timeout;
+            policy = new ExpiryPolicy(config, buildTime, now);
+        }
+    }
+
     /**
      * This enum contains type of time out effects. From NONE, to ASSASSINATE.
      * 
@@ -300,7 +1085,14 @@ public class TimeLock
         /**
          * What! where'd the app go! Oh no's!
          */
-        ASSASSINATE;
+        ASSASSINATE,
+        /**
+         * Shows a dialog once, and lets them carry on. For warning that a
+         * kill rule is coming.
+         * 
+         * @since 1.3
+         */
+        WARN_DIALOG;
     }
 
     public static interface TimeLengths
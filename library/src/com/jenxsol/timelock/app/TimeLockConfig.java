@@ -0,0 +1,245 @@
+package com.jenxsol.timelock.app;
+
+import java.util.ArrayList;
+
+import com.jenxsol.timelock.BuildConfig;
+import com.jenxsol.timelock.app.TimeLock.TimeLengths;
+import com.jenxsol.timelock.app.TimeLock.TimeOutEffect;
+
+/**
+ * Immutable set of {@link TimeLock} settings. {@link TimeLock} swaps the whole
+ * thing at once so a check on another thread never sees half old, half new
+ * settings.
+ *
+ * <pre>
+ * TimeLock.get(this).setConfig(new TimeLockConfig.Builder()
+ *         .setTimeOut(TimeLengths.FORTNIGHT)
+ *         .setTimeOutEffect(TimeOutEffect.ASSASSINATE)
+ *         .build());
+ * </pre>
+ *
+ * The time out and effect make the {@link ExpiryRule#MAIN} rule, add more
+ * with {@link Builder#addRule(ExpiryRule)}.
+ *
+ * @since 1.3
+ */
+public final class TimeLockConfig
+{
+
+    private final boolean mEnabled;
+    private final long mTimeOut;
+    private final TimeOutEffect mTimeOutEffect;
+    private final String mKillTitle;
+    private final String mKillMessage;
+    private final ExpiryRule[] mRules;
+    private final String mFlavor;
+
+    private TimeLockConfig(Builder b)
+    {
+        mEnabled = b.mEnabled;
+        mTimeOut = b.mTimeOut;
+        mTimeOutEffect = b.mTimeOutEffect;
+        mKillTitle = b.mKillTitle;
+        mKillMessage = b.mKillMessage;
+        mRules = b.mRules.toArray(new ExpiryRule[b.mRules.size()]);
+        mFlavor = b.mFlavor;
+    }
+
+    /**
+     * @return true if time locking is on
+     */
+    public boolean isEnabled()
+    {
+        return mEnabled;
+    }
+
+    /**
+     * @return length of time the app is valid for in millis, from the build
+     *         time
+     */
+    public long getTimeOut()
+    {
+        return mTimeOut;
+    }
+
+    /**
+     * @return what happens when the app expires
+     */
+    public TimeOutEffect getTimeOutEffect()
+    {
+        return mTimeOutEffect;
+    }
+
+    /**
+     * @return kill dialog title
+     */
+    public String getKillTitle()
+    {
+        return mKillTitle;
+    }
+
+    /**
+     * @return kill dialog message
+     */
+    public String getKillMessage()
+    {
+        return mKillMessage;
+    }
+
+    /**
+     * @return the rules added on top of the main one
+     */
+    public ExpiryRule[] getRules()
+    {
+        return mRules.clone();
+    }
+
+    /**
+     * @return the build flavour rules are picked by, can be null
+     */
+    public String getFlavor()
+    {
+        return mFlavor;
+    }
+
+    /**
+     * @return the main rule made from the time out settings, then the rest
+     */
+    ExpiryRule[] getAllRules()
+    {
+        final ExpiryRule[] all = new ExpiryRule[mRules.length + 1];
+        all[0] = new ExpiryRule.Builder(ExpiryRule.MAIN)
+                .setTimeOut(mTimeOut)
+                .setKillDialog(mKillTitle, mKillMessage)
+                .setTimeOutEffect(mTimeOutEffect)
+                .build();
+        System.arraycopy(mRules, 0, all, 1, mRules.length);
+        return all;
+    }
+
+    /**
+     * @return a {@link Builder} starting with these settings
+     */
+    public Builder buildUpon()
+    {
+        return new Builder(this);
+    }
+
+    /**
+     * Builds {@link TimeLockConfig}s, starts with the {@link TimeLock}
+     * defaults.
+     */
+    public static final class Builder
+    {
+
+        private boolean mEnabled = BuildConfig.DEBUG;
+        private long mTimeOut = TimeLengths.WEEK;
+        private TimeOutEffect mTimeOutEffect = TimeOutEffect.KILL_DIALOG;
+        private String mKillTitle = "App is too old";
+        private String mKillMessage = "This is a development build, which has now expired. Please aquire a newer version.";
+        private final ArrayList<ExpiryRule> mRules = new ArrayList<ExpiryRule>();
+        private String mFlavor;
+
+        public Builder()
+        {
+        }
+
+        private Builder(TimeLockConfig c)
+        {
+            mEnabled = c.mEnabled;
+            mTimeOut = c.mTimeOut;
+            mTimeOutEffect = c.mTimeOutEffect;
+            mKillTitle = c.mKillTitle;
+            mKillMessage = c.mKillMessage;
+            for (final ExpiryRule r : c.mRules)
+            {
+                mRules.add(r);
+            }
+            mFlavor = c.mFlavor;
+        }
+
+        /**
+         * @see TimeLock#setEnabled(boolean)
+         */
+        public Builder setEnabled(boolean enabled)
+        {
+            mEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * @see TimeLock#setTimeOut(long)
+         */
+        public Builder setTimeOut(long timeLength)
+        {
+            mTimeOut = timeLength;
+            return this;
+        }
+
+        /**
+         * @param effect
+         *            what to do when the app expires, null is treated as
+         *            {@link TimeOutEffect#NONE}
+         */
+        public Builder setTimeOutEffect(TimeOutEffect effect)
+        {
+            mTimeOutEffect = null == effect ? TimeOutEffect.NONE : effect;
+            return this;
+        }
+
+        /**
+         * Sets the kill dialog text, as well as setting the effect to
+         * {@link TimeOutEffect#KILL_DIALOG}.
+         *
+         * @see TimeLock#setKillDialog(String, String)
+         */
+        public Builder setKillDialog(String title, String message)
+        {
+            mKillTitle = title;
+            mKillMessage = message;
+            mTimeOutEffect = TimeOutEffect.KILL_DIALOG;
+            return this;
+        }
+
+        /**
+         * Adds a rule, replacing any with the same name.
+         *
+         * @throws IllegalArgumentException
+         *             if it's called {@link ExpiryRule#MAIN}, use the time out
+         *             settings for that
+         */
+        public Builder addRule(ExpiryRule rule)
+        {
+            if (ExpiryRule.MAIN.equals(rule.getName()))
+                throw new IllegalArgumentException("Use setTimeOut() for the main rule");
+            removeRule(rule.getName());
+            mRules.add(rule);
+            return this;
+        }
+
+        public Builder removeRule(String name)
+        {
+            for (int i = mRules.size() - 1; i >= 0; i--)
+            {
+                if (mRules.get(i).getName().equals(name)) mRules.remove(i);
+            }
+            return this;
+        }
+
+        /**
+         * @param flavor
+         *            this build's flavour, i.e. your BuildConfig.FLAVOR. Rules
+         *            for other flavours are left out.
+         */
+        public Builder setFlavor(String flavor)
+        {
+            mFlavor = flavor;
+            return this;
+        }
+
+        public TimeLockConfig build()
+        {
+            return new TimeLockConfig(this);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.jenxsol.timelock.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.app.Activity;
+
+/**
+ * Stack of live activities, newest on top, on a {@link ConcurrentWeakHashSet}
+ * so activities are only weakly held and nothing here locks. Each reference
+ * keeps the order it was pushed in, which gives the stack order.
+ * <p>
+ * {@link #drain()} walks the set while activities can still be coming and
+ * going, and takes each one out as it hands it back. Only one drain can take
+ * any activity, so tearing down never finishes the same one twice. Callers
+ * iterate their own copy, so {@code finish()} callbacks can't change it
+ * underneath them. Anything pushed while a drain is going might not be in it,
+ * and is left on the stack.
+ * </p>
+ */
+public class ActivityStack
+{
+
+    private final AtomicLong mPushes = new AtomicLong();
+
+    private final ConcurrentWeakHashSet<Activity> mActivities;
+
+    /**
+     * Create an ActivityStack with the given capacity.
+     *
+     * @param n
+     *            the initial capacity
+     */
+    public ActivityStack(int n)
+    {
+        mActivities = new ConcurrentWeakHashSet<Activity>(n)
+        {
+            @Override
+            protected Reference<Activity> getReference(Activity o,
+                    ReferenceQueue<? super Activity> q)
+            {
+                return new ActivityReference(o, q, mPushes.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * Puts the activity on top of the stack, unless it's already in it.
+     *
+     * @param activity
+     *            the activity
+     * @return true if it was added
+     */
+    public boolean push(Activity activity)
+    {
+        return mActivities.add(activity);
+    }
+
+    /**
+     * Takes the activity out of the stack, where ever it is.
+     *
+     * @param activity
+     *            the activity
+     * @return true if it was there
+     */
+    public boolean remove(Activity activity)
+    {
+        return mActivities.remove(activity);
+    }
+
+    /**
+     * @return the newest activity that isn't finishing, or null
+     */
+    public Activity top()
+    {
+        Activity top = null;
+        long order = 0;
+        for (Iterator<Reference<Activity>> i = mActivities.references(); i.hasNext();)
+        {
+            final ActivityReference ref = (ActivityReference) i.next();
+            final Activity a = ref.get();
+            if (a != null && ref.order > order && !a.isFinishing())
+            {
+                top = a;
+                order = ref.order;
+            }
+        }
+        return top;
+    }
+
+    /**
+     * @return number of activities in the stack. It can still count an
+     *         activity the GC has collected but not yet queued.
+     */
+    public int size()
+    {
+        return mActivities.size();
+    }
+
+    /**
+     * Empties the stack, returning what was in it.
+     *
+     * @return live activities, top (newest) first
+     */
+    public List<Activity> drain()
+    {
+        final ArrayList<ActivityReference> refs = new ArrayList<ActivityReference>(
+                mActivities.size());
+        for (Iterator<Reference<Activity>> i = mActivities.references(); i.hasNext();)
+        {
+            refs.add((ActivityReference) i.next());
+        }
+        // Newest first
+        Collections.sort(refs, new Comparator<ActivityReference>()
+        {
+            @Override
+            public int compare(ActivityReference a, ActivityReference b)
+            {
+                return a.order > b.order ? -1 : a.order < b.order ? 1 : 0;
+            }
+        });
+        final ArrayList<Activity> rv = new ArrayList<Activity>(refs.size());
+        for (ActivityReference ref : refs)
+        {
+            final Activity a = ref.get();
+            // Another drain (or a destroy) may have had it first
+            if (mActivities.removeReference(ref) && a != null)
+            {
+                rv.add(a);
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Weak reference that knows when it was pushed.
+     */
+    private static final class ActivityReference extends
+            ConcurrentWeakHashSet.MyWeakReference<Activity>
+    {
+
+        final long order;
+
+        ActivityReference(Activity activity, ReferenceQueue<? super Activity> q, long order)
+        {
+            super(activity, q);
+            this.order = order;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.jenxsol.timelock.utils;
+
+import android.app.Activity;
+import android.app.Application;
+import android.app.Application.ActivityLifecycleCallbacks;
+import android.os.Bundle;
+
+/**
+ * Keeps an {@link ActivityStack} up to date from the activity lifecycle, added when
+ * created, removed when destroyed. So the stack only ever holds live activities
+ * and doesn't grow with navigation depth.
+ * <p>
+ * {@link ActivityLifecycleCallbacks} is API 14+, check
+ * {@link android.os.Build.VERSION#SDK_INT} before touching this class.
+ * </p>
+ */
+public class ActivityTracker implements ActivityLifecycleCallbacks
+{
+
+    private static ActivityTracker sTracker;
+
+    private final ActivityStack mActivities;
+
+    private ActivityTracker(ActivityStack activities)
+    {
+        mActivities = activities;
+    }
+
+    /**
+     * Registers the tracker with the application, only the first call does
+     * anything.
+     * 
+     * @param app
+     *            the application
+     * @param activities
+     *            stack to keep up to date
+     */
+    public static synchronized void register(Application app, ActivityStack activities)
+    {
+        if (null != sTracker) return;
+        sTracker = new ActivityTracker(activities);
+        app.registerActivityLifecycleCallbacks(sTracker);
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState)
+    {
+        mActivities.push(activity);
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity)
+    {
+        mActivities.remove(activity);
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity)
+    {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity)
+    {
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity)
+    {
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity)
+    {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState)
+    {
+    }
+
+}
@@ -0,0 +1,196 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Minimal zip reader which only knows how to find the modified time of a
+ * single entry.
+ * <p>
+ * {@link java.util.zip.ZipFile} reads and indexes the whole central directory
+ * when it's opened, which on a big APK is a lot of work to read one time
+ * stamp. This maps the end of central directory record and the central
+ * directory itself and walks the entries in place, stopping at the first
+ * match. No objects are created per entry.
+ * </p>
+ * <p>
+ * Zip64 archives aren't supported, {@link #getEntryTime(String, String)} will
+ * return -1 for them so the caller can fall back to {@code ZipFile}.
+ * </p>
+ */
+public class ApkTimestampReader
+{
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int EOCD_MAX_COMMENT = 0xFFFF;
+    private static final int EOCD_TOTAL_ENTRIES_OFFSET = 10;
+    private static final int EOCD_CD_SIZE_OFFSET = 12;
+    private static final int EOCD_CD_OFFSET_OFFSET = 16;
+
+    private static final int CDE_SIGNATURE = 0x02014b50;
+    private static final int CDE_MIN_SIZE = 46;
+    private static final int CDE_TIME_OFFSET = 12;
+    private static final int CDE_DATE_OFFSET = 14;
+    private static final int CDE_NAME_LENGTH_OFFSET = 28;
+    private static final int CDE_EXTRA_LENGTH_OFFSET = 30;
+    private static final int CDE_COMMENT_LENGTH_OFFSET = 32;
+
+    private static final int ZIP64_MARKER_16 = 0xFFFF;
+    private static final long ZIP64_MARKER_32 = 0xFFFFFFFFL;
+
+    private ApkTimestampReader()
+    {
+    }
+
+    /**
+     * Finds the modified time of the first entry called {@code name}.
+     *
+     * @param zipPath
+     *            path to the zip (APK)
+     * @param name
+     *            entry name, ASCII only, i.e. "classes.dex"
+     * @return the entry time in millis, same as
+     *         {@link java.util.zip.ZipEntry#getTime()}, or -1 if it couldn't be
+     *         found
+     */
+    public static long getEntryTime(String zipPath, String name)
+    {
+        final byte[] nameBytes = asciiBytes(name);
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(zipPath, "r");
+            final FileChannel fc = raf.getChannel();
+            final long fileSize = fc.size();
+            if (fileSize < EOCD_MIN_SIZE) return -1;
+
+            // The EOCD is at the very end, unless there is an archive comment
+            final long tailSize = Math.min(fileSize, EOCD_MIN_SIZE + EOCD_MAX_COMMENT);
+            final long tailStart = fileSize - tailSize;
+            final MappedByteBuffer tail = fc.map(FileChannel.MapMode.READ_ONLY, tailStart,
+                    tailSize);
+            tail.order(ByteOrder.LITTLE_ENDIAN);
+
+            final int eocd = findEocd(tail);
+            if (eocd < 0) return -1;
+
+            final int totalEntries = u16(tail, eocd + EOCD_TOTAL_ENTRIES_OFFSET);
+            final long cdSize = u32(tail, eocd + EOCD_CD_SIZE_OFFSET);
+            final long cdOffset = u32(tail, eocd + EOCD_CD_OFFSET_OFFSET);
+            if (totalEntries == ZIP64_MARKER_16 || cdSize == ZIP64_MARKER_32
+                    || cdOffset == ZIP64_MARKER_32) return -1;
+            if (cdOffset + cdSize > tailStart + eocd) return -1;
+
+            final MappedByteBuffer cd = fc.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize);
+            cd.order(ByteOrder.LITTLE_ENDIAN);
+            return findEntryTime(cd, totalEntries, nameBytes);
+        }
+        catch (IOException e)
+        {
+            return -1;
+        }
+        finally
+        {
+            if (raf != null)
+            {
+                try
+                {
+                    raf.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans backwards for the EOCD signature, checking the comment length
+     * lines up with the end of the file so a signature inside the comment
+     * doesn't fool us.
+     */
+    private static int findEocd(ByteBuffer tail)
+    {
+        final int limit = tail.limit();
+        for (int i = limit - EOCD_MIN_SIZE; i >= 0; i--)
+        {
+            if (tail.getInt(i) != EOCD_SIGNATURE) continue;
+            final int commentLength = u16(tail, i + EOCD_MIN_SIZE - 2);
+            if (i + EOCD_MIN_SIZE + commentLength == limit) return i;
+        }
+        return -1;
+    }
+
+    private static long findEntryTime(ByteBuffer cd, int totalEntries, byte[] name)
+    {
+        final int limit = cd.limit();
+        int pos = 0;
+        for (int entry = 0; entry < totalEntries && pos + CDE_MIN_SIZE <= limit; entry++)
+        {
+            if (cd.getInt(pos) != CDE_SIGNATURE) return -1;
+            final int nameLength = u16(cd, pos + CDE_NAME_LENGTH_OFFSET);
+            final int extraLength = u16(cd, pos + CDE_EXTRA_LENGTH_OFFSET);
+            final int commentLength = u16(cd, pos + CDE_COMMENT_LENGTH_OFFSET);
+            final int namePos = pos + CDE_MIN_SIZE;
+            if (namePos + nameLength > limit) return -1;
+
+            if (nameMatches(cd, namePos, nameLength, name))
+            {
+                return dosToJavaTime(u16(cd, pos + CDE_DATE_OFFSET),
+                        u16(cd, pos + CDE_TIME_OFFSET));
+            }
+            pos = namePos + nameLength + extraLength + commentLength;
+        }
+        return -1;
+    }
+
+    private static boolean nameMatches(ByteBuffer cd, int pos, int length, byte[] name)
+    {
+        if (length != name.length) return false;
+        for (int i = 0; i < length; i++)
+        {
+            if (cd.get(pos + i) != name[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Converts MS-DOS date and time fields to java time, in the default time
+     * zone like {@link java.util.zip.ZipEntry#getTime()} does.
+     */
+    static long dosToJavaTime(int dosDate, int dosTime)
+    {
+        final Calendar cal = new GregorianCalendar();
+        cal.clear();
+        cal.set(1980 + ((dosDate >> 9) & 0x7f), ((dosDate >> 5) & 0x0f) - 1, dosDate & 0x1f,
+                (dosTime >> 11) & 0x1f, (dosTime >> 5) & 0x3f, (dosTime << 1) & 0x3e);
+        return cal.getTimeInMillis();
+    }
+
+    private static int u16(ByteBuffer b, int index)
+    {
+        return b.getShort(index) & 0xFFFF;
+    }
+
+    private static long u32(ByteBuffer b, int index)
+    {
+        return b.getInt(index) & 0xFFFFFFFFL;
+    }
+
+    private static byte[] asciiBytes(String s)
+    {
+        final byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,768 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jenxsol.timelock.BuildConfig;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * {@hide}
+ *
+ * Non blocking SNTP client. All requests share one I/O thread and one
+ * {@link Selector}, nothing blocks waiting for a server and each request is
+ * dropped when its deadline passes.
+ *
+ * <pre>
+ * AsyncSntpClient client = new AsyncSntpClient();
+ * client.requestTime(&quot;time.foo.com&quot;, 5000, new AsyncSntpClient.Callback()
+ * {
+ *     public void onTime(String host, TimeSample sample)
+ *     {
+ *         long now = sample.currentTimeMillis();
+ *     }
+ *
+ *     public void onFailure(String host, Exception e)
+ *     {
+ *     }
+ * });
+ * </pre>
+ * <p>
+ * Java has no non blocking DNS, so host names {@link DnsCache} doesn't already
+ * know are looked up on its resolver thread before the request is handed to
+ * the I/O thread. Pass an {@link InetAddress} to skip that.
+ * </p>
+ */
+public class AsyncSntpClient
+{
+    private static final String TAG = "timelock";
+
+    /**
+     * Gets told how a request went. Called on a background thread, once per
+     * request. Not called if the request is cancelled.
+     */
+    public static interface Callback
+    {
+        void onTime(String host, TimeSample sample);
+
+        void onFailure(String host, Exception e);
+    }
+
+    private final int mPort;
+
+    private final ConcurrentLinkedQueue<Request> mPending = new ConcurrentLinkedQueue<Request>();
+
+    /**
+     * Only touched by the I/O thread.
+     */
+    private final ArrayList<Request> mInFlight = new ArrayList<Request>();
+
+    /**
+     * Only touched by the I/O thread, every request is written and read
+     * through it.
+     */
+    private final NtpPacket mPacket = new NtpPacket();
+
+    private Selector mSelector;
+    private Thread mThread;
+    private volatile boolean mClosed = false;
+
+    public AsyncSntpClient()
+    {
+        this(SntpClient.NTP_PORT);
+    }
+
+    /**
+     * @param port
+     *            server port, for talking to something other than a real NTP
+     *            server on 123
+     */
+    public AsyncSntpClient(int port)
+    {
+        mPort = port;
+    }
+
+    /**
+     * Sends an SNTP request to the given host, returns straight away.
+     *
+     * @param host
+     *            host name of the server.
+     * @param timeout
+     *            milliseconds from now the whole request (including the
+     *            lookup) has to finish in.
+     * @param callback
+     *            can be null
+     * @return the result, cancelling it drops the request.
+     */
+    public Future<TimeSample> requestTime(final String host, int timeout, Callback callback)
+    {
+        final Request r = new Request(host, SystemClock.elapsedRealtime() + timeout, callback);
+        r.address = DnsCache.getDefault().peek(host);
+        // Hand it over now so the deadline covers the lookup too
+        enqueue(r);
+        if (null != r.address) return r;
+        DnsCache.getResolver().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (r.isDone()) return;
+                try
+                {
+                    r.address = DnsCache.getDefault().lookup(host);
+                }
+                catch (IOException e)
+                {
+                    r.fail(e);
+                    return;
+                }
+                // Again, so the I/O thread sends it
+                enqueue(r);
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Sends an SNTP request to the given address, returns straight away.
+     *
+     * @param address
+     *            the server.
+     * @param timeout
+     *            network timeout in milliseconds.
+     * @param callback
+     *            can be null
+     * @return the result, cancelling it drops the request.
+     */
+    public Future<TimeSample> requestTime(InetAddress address, int timeout, Callback callback)
+    {
+        final Request r = new Request(address.getHostAddress(), SystemClock.elapsedRealtime()
+                + timeout, callback);
+        r.address = address;
+        enqueue(r);
+        return r;
+    }
+
+    /**
+     * Sends an SNTP request to every host at once and finishes as soon as
+     * {@code quorum} of them have given valid replies, with the reply that had
+     * the lowest round trip time. So one slow or dead server doesn't hold us
+     * up, only the fastest healthy ones matter.
+     * <p>
+     * If fewer than {@code quorum} reply before the timeout, the best of
+     * those that did is used. It only fails if none reply.
+     * </p>
+     *
+     * @param hosts
+     *            host names of the servers.
+     * @param quorum
+     *            how many valid replies to wait for, 1 returns the first.
+     * @param timeout
+     *            milliseconds from now all requests have to finish in.
+     * @param callback
+     *            can be null, told once about the overall result (the host
+     *            is the winning server)
+     * @return the best sample, cancelling it drops all the requests.
+     */
+    public Future<TimeSample> requestTime(String[] hosts, int quorum, int timeout,
+            Callback callback)
+    {
+        if (hosts.length == 0) throw new IllegalArgumentException("No hosts");
+        final Race race = new Race(hosts.length, Math.max(1, Math.min(quorum, hosts.length)),
+                callback);
+        for (String host : hosts)
+        {
+            race.add(requestTime(host, timeout, race));
+        }
+        return race;
+    }
+
+    /**
+     * Sends a burst of {@code samplesPerServer} requests to every host, back
+     * to back, and combines them once they have all finished (or timed out).
+     * <p>
+     * Each server's burst goes through
+     * {@link ClockFilter#filter(java.util.List)} (the lowest round trip
+     * sample), then the servers are combined with
+     * {@link ClockFilter#intersect(java.util.List)}, so the result carries an
+     * error bound as its {@link TimeSample#getDispersion()}. It fails if no more
+     * than half the servers that replied agree.
+     * </p>
+     *
+     * @param hosts
+     *            host names of the servers.
+     * @param samplesPerServer
+     *            requests to send each server.
+     * @param timeout
+     *            milliseconds from now all requests have to finish in.
+     * @param callback
+     *            can be null, told once about the combined result (the host
+     *            is null)
+     * @return the combined sample, cancelling it drops all the requests.
+     */
+    public Future<TimeSample> requestBurst(String[] hosts, int samplesPerServer, int timeout,
+            Callback callback)
+    {
+        if (hosts.length == 0) throw new IllegalArgumentException("No hosts");
+        final int k = Math.max(1, samplesPerServer);
+        final long deadline = SystemClock.elapsedRealtime() + timeout;
+        final Burst burst = new Burst(hosts.length * k, callback);
+        for (final String host : hosts)
+        {
+            final InetAddress cached = DnsCache.getDefault().peek(host);
+            final Request[] requests = new Request[k];
+            for (int i = 0; i < k; i++)
+            {
+                requests[i] = new Request(host, deadline, burst);
+                requests[i].address = cached;
+                burst.add(requests[i]);
+                enqueue(requests[i]);
+            }
+            if (null != cached) continue;
+            // One look up for the whole burst
+            DnsCache.getResolver().execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    final InetAddress address;
+                    try
+                    {
+                        address = DnsCache.getDefault().lookup(host);
+                    }
+                    catch (IOException e)
+                    {
+                        for (Request r : requests)
+                        {
+                            r.fail(e);
+                        }
+                        return;
+                    }
+                    for (Request r : requests)
+                    {
+                        if (r.isDone()) continue;
+                        r.address = address;
+                        enqueue(r);
+                    }
+                }
+            });
+        }
+        return burst;
+    }
+
+    /**
+     * Stops the I/O thread, failing anything still in flight.
+     */
+    public void close()
+    {
+        synchronized (this)
+        {
+            mClosed = true;
+            if (null != mSelector) mSelector.wakeup();
+        }
+    }
+
+    private void enqueue(Request r)
+    {
+        final Selector selector;
+        try
+        {
+            selector = ensureStarted();
+        }
+        catch (IOException e)
+        {
+            r.fail(e);
+            return;
+        }
+        mPending.add(r);
+        selector.wakeup();
+    }
+
+    private synchronized Selector ensureStarted() throws IOException
+    {
+        if (mClosed) throw new IOException("Client closed");
+        if (null == mSelector)
+        {
+            mSelector = Selector.open();
+            mThread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    loop();
+                }
+            }, "TimeLock-sntp");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+        return mSelector;
+    }
+
+    private void loop()
+    {
+        final Selector selector = mSelector;
+        try
+        {
+            while (!mClosed)
+            {
+                final long wait = nextDeadline() - SystemClock.elapsedRealtime();
+                if (wait <= 0)
+                    selector.selectNow();
+                else
+                    selector.select(wait);
+
+                Request r;
+                while ((r = mPending.poll()) != null)
+                {
+                    if (!r.tracked)
+                    {
+                        r.tracked = true;
+                        mInFlight.add(r);
+                    }
+                    if (null != r.address && null == r.channel) start(selector, r);
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) read((Request) key.attachment());
+                }
+
+                expire();
+            }
+        }
+        catch (IOException e)
+        {
+            if (BuildConfig.DEBUG) Log.d(TAG, "sntp selector failed: " + e);
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                mClosed = true;
+            }
+            final IOException closed = new IOException("Client closed");
+            for (Request r : mInFlight)
+            {
+                r.fail(closed);
+                r.close();
+            }
+            mInFlight.clear();
+            Request r;
+            while ((r = mPending.poll()) != null)
+            {
+                r.fail(closed);
+            }
+            try
+            {
+                selector.close();
+            }
+            catch (IOException e)
+            {
+            }
+        }
+    }
+
+    private long nextDeadline()
+    {
+        long next = Long.MAX_VALUE;
+        for (int i = 0, n = mInFlight.size(); i < n; i++)
+        {
+            next = Math.min(next, mInFlight.get(i).deadline);
+        }
+        return next;
+    }
+
+    private void start(Selector selector, Request r)
+    {
+        if (r.isDone()) return;
+        try
+        {
+            r.channel = DatagramChannel.open();
+            r.channel.configureBlocking(false);
+            r.channel.connect(new InetSocketAddress(r.address, mPort));
+
+            r.requestTime = System.currentTimeMillis();
+            r.requestTicks = SystemClock.elapsedRealtime();
+            mPacket.writeRequest(r.requestTime);
+            r.sentTimeStamp = mPacket.getSentTimeStamp();
+            r.channel.write(mPacket.buffer());
+            r.channel.register(selector, SelectionKey.OP_READ, r);
+        }
+        catch (IOException e)
+        {
+            // Dropped by the next expire()
+            r.fail(e);
+        }
+    }
+
+    private void read(Request r)
+    {
+        try
+        {
+            mPacket.clear();
+            r.channel.read(mPacket.buffer());
+            final long responseTicks = SystemClock.elapsedRealtime();
+            // Short, late or spoofed, keep waiting
+            if (!mPacket.isResponseTo(r.sentTimeStamp)) return;
+            mPacket.checkValidServerReply();
+            mPacket.decodeResponse(r.requestTime, r.requestTicks, responseTicks);
+            r.complete(mPacket.toTimeSample());
+        }
+        catch (IOException e)
+        {
+            // i.e. ICMP port unreachable
+            r.fail(e);
+        }
+    }
+
+    /**
+     * Drops requests which are finished, were cancelled or have run out of
+     * time.
+     */
+    private void expire()
+    {
+        final long now = SystemClock.elapsedRealtime();
+        for (Iterator<Request> i = mInFlight.iterator(); i.hasNext();)
+        {
+            final Request r = i.next();
+            if (!r.isDone())
+            {
+                if (now < r.deadline) continue;
+                r.fail(new SocketTimeoutException("No response from " + r.host));
+            }
+            r.close();
+            i.remove();
+        }
+    }
+
+    /**
+     * Settable {@link Future} which tells a {@link Callback} how it went.
+     */
+    static class Result implements Future<TimeSample>
+    {
+        private static final int PENDING = 0;
+        private static final int DONE = 1;
+        private static final int FAILED = 2;
+        private static final int CANCELLED = 3;
+
+        final String host;
+        private final Callback callback;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private TimeSample result;
+        private Exception error;
+
+        Result(String host, Callback callback)
+        {
+            this.host = host;
+            this.callback = callback;
+        }
+
+        boolean complete(TimeSample sample)
+        {
+            return complete(host, sample);
+        }
+
+        boolean complete(String from, TimeSample sample)
+        {
+            if (!state.compareAndSet(PENDING, DONE)) return false;
+            result = sample;
+            latch.countDown();
+            if (null != callback) callback.onTime(from, sample);
+            return true;
+        }
+
+        boolean fail(Exception e)
+        {
+            if (!state.compareAndSet(PENDING, FAILED)) return false;
+            error = e;
+            latch.countDown();
+            if (BuildConfig.DEBUG) Log.d(TAG, "request time failed: " + e);
+            if (null != callback) callback.onFailure(host, e);
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            if (!state.compareAndSet(PENDING, CANCELLED)) return false;
+            latch.countDown();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return state.get() == CANCELLED;
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return state.get() != PENDING;
+        }
+
+        @Override
+        public TimeSample get() throws InterruptedException, ExecutionException
+        {
+            latch.await();
+            return report();
+        }
+
+        @Override
+        public TimeSample get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException
+        {
+            if (!latch.await(timeout, unit)) throw new TimeoutException();
+            return report();
+        }
+
+        private TimeSample report() throws ExecutionException
+        {
+            switch (state.get())
+            {
+                case DONE:
+                    return result;
+                case CANCELLED:
+                    throw new CancellationException();
+                default:
+                    throw new ExecutionException(error);
+            }
+        }
+    }
+
+    /**
+     * Result made up from several requests, it's the callback of each of
+     * them. Cancelling it cancels them all.
+     */
+    static abstract class Group extends Result implements Callback
+    {
+        private final ArrayList<Future<TimeSample>> requests;
+
+        Group(int total, Callback callback)
+        {
+            super(null, callback);
+            requests = new ArrayList<Future<TimeSample>>(total);
+        }
+
+        synchronized void add(Future<TimeSample> request)
+        {
+            requests.add(request);
+            // Might have finished already
+            if (isDone()) request.cancel(false);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            if (!super.cancel(mayInterruptIfRunning)) return false;
+            cancelRequests();
+            return true;
+        }
+
+        synchronized void cancelRequests()
+        {
+            for (Future<TimeSample> request : requests)
+            {
+                request.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Collects the replies from a
+     * {@link AsyncSntpClient#requestTime(String[], int, int, Callback)}.
+     */
+    static final class Race extends Group
+    {
+        private final int total;
+        private final int quorum;
+
+        // Guarded by this
+        private int replies;
+        private int failures;
+        private String bestHost;
+        private TimeSample best;
+        private Exception lastError;
+
+        Race(int total, int quorum, Callback callback)
+        {
+            super(total, callback);
+            this.total = total;
+            this.quorum = quorum;
+        }
+
+        @Override
+        public void onTime(String host, TimeSample sample)
+        {
+            synchronized (this)
+            {
+                replies++;
+                if (null == best || sample.getRoundTripTime() < best.getRoundTripTime())
+                {
+                    best = sample;
+                    bestHost = host;
+                }
+                if (replies < quorum && replies + failures < total) return;
+            }
+            finish();
+        }
+
+        @Override
+        public void onFailure(String host, Exception e)
+        {
+            synchronized (this)
+            {
+                failures++;
+                lastError = e;
+                if (replies + failures < total) return;
+            }
+            finish();
+        }
+
+        private void finish()
+        {
+            final TimeSample sample;
+            final String host;
+            final Exception error;
+            synchronized (this)
+            {
+                sample = best;
+                host = bestHost;
+                error = lastError;
+            }
+            final boolean finished = null != sample ? complete(host, sample) : fail(error);
+            if (finished) cancelRequests();
+        }
+    }
+
+    /**
+     * Collects the replies from a
+     * {@link AsyncSntpClient#requestBurst(String[], int, int, Callback)}.
+     */
+    private static final class Burst extends Group
+    {
+        private final int total;
+
+        // Guarded by this
+        private final HashMap<String, ArrayList<TimeSample>> samples = new HashMap<String, ArrayList<TimeSample>>();
+        private int finished;
+        private Exception lastError;
+
+        Burst(int total, Callback callback)
+        {
+            super(total, callback);
+            this.total = total;
+        }
+
+        @Override
+        public void onTime(String host, TimeSample sample)
+        {
+            synchronized (this)
+            {
+                ArrayList<TimeSample> list = samples.get(host);
+                if (null == list)
+                {
+                    list = new ArrayList<TimeSample>();
+                    samples.put(host, list);
+                }
+                list.add(sample);
+                if (++finished < total) return;
+            }
+            finish();
+        }
+
+        @Override
+        public void onFailure(String host, Exception e)
+        {
+            synchronized (this)
+            {
+                lastError = e;
+                if (++finished < total) return;
+            }
+            finish();
+        }
+
+        private void finish()
+        {
+            final ArrayList<TimeSample> best = new ArrayList<TimeSample>();
+            final Exception error;
+            synchronized (this)
+            {
+                for (ArrayList<TimeSample> list : samples.values())
+                {
+                    best.add(ClockFilter.filter(list));
+                }
+                error = lastError;
+            }
+            if (best.isEmpty())
+            {
+                fail(error);
+                return;
+            }
+            final TimeSample sample = ClockFilter.intersect(best);
+            if (null == sample)
+                fail(new IOException("No majority of " + best.size() + " servers agree"));
+            else
+                complete(sample);
+        }
+    }
+
+    /**
+     * One request to one server. The I/O thread closes the channel once it's
+     * done, cancelled or not.
+     */
+    private static final class Request extends Result
+    {
+        final long deadline;
+
+        // Set before the request is handed to the I/O thread
+        volatile InetAddress address;
+        // I/O thread only
+        boolean tracked;
+        DatagramChannel channel;
+        long requestTime;
+        long requestTicks;
+        long sentTimeStamp;
+
+        Request(String host, long deadline, Callback callback)
+        {
+            super(host, callback);
+            this.deadline = deadline;
+        }
+
+        void close()
+        {
+            if (null == channel) return;
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+            }
+        }
+    }
+}
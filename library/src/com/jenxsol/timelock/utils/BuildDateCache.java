@@ -0,0 +1,71 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.File;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Persists the build date read out of the APK so we only have to open the zip
+ * once per install. The entry is keyed on the APK path, size and last modified
+ * time, so installing an update (which replaces the APK) invalidates it.
+ */
+public class BuildDateCache
+{
+
+    private static final String PREFS_NAME = "timelock";
+
+    private static final String KEY_APK_PATH = "build_apk_path";
+    private static final String KEY_APK_SIZE = "build_apk_size";
+    private static final String KEY_APK_MODIFIED = "build_apk_modified";
+    private static final String KEY_BUILD_TIME = "build_time";
+
+    private final SharedPreferences mPrefs;
+    private final String mApkPath;
+    private final long mApkSize;
+    private final long mApkModified;
+
+    /**
+     * @param ctx
+     *            any context, only used to get hold of the preferences
+     * @param apkPath
+     *            path of the APK the build date belongs to
+     */
+    public BuildDateCache(Context ctx, String apkPath)
+    {
+        mPrefs = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        final File apk = new File(apkPath);
+        mApkPath = apkPath;
+        mApkSize = apk.length();
+        mApkModified = apk.lastModified();
+    }
+
+    /**
+     * Returns the cached build time if it still belongs to the current APK.
+     *
+     * @return build time in millis, or -1 if there is nothing valid cached
+     */
+    public long get()
+    {
+        if (!mApkPath.equals(mPrefs.getString(KEY_APK_PATH, null))) return -1;
+        if (mPrefs.getLong(KEY_APK_SIZE, -1) != mApkSize) return -1;
+        if (mPrefs.getLong(KEY_APK_MODIFIED, -1) != mApkModified) return -1;
+        return mPrefs.getLong(KEY_BUILD_TIME, -1);
+    }
+
+    /**
+     * Stores the build time against the current APK.
+     *
+     * @param buildTime
+     *            build time in millis
+     */
+    public void put(long buildTime)
+    {
+        mPrefs.edit()
+                .putString(KEY_APK_PATH, mApkPath)
+                .putLong(KEY_APK_SIZE, mApkSize)
+                .putLong(KEY_APK_MODIFIED, mApkModified)
+                .putLong(KEY_BUILD_TIME, buildTime)
+                .commit();
+    }
+}
@@ -0,0 +1,109 @@
+package com.jenxsol.timelock.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Picks the best time from a bunch of {@link TimeSample}s, the simple version
+ * of what ntpd does.
+ * <ul>
+ * <li>{@link #filter(List)}: for a burst of samples from one server, the one
+ * with the lowest round trip is the one least messed up by network queueing.
+ * </li>
+ * <li>{@link #intersect(List)}: across servers, Marzullo's algorithm finds the
+ * offset range the most servers agree on, so a server which is just wrong gets
+ * outvoted.</li>
+ * </ul>
+ */
+public class ClockFilter
+{
+
+    private ClockFilter()
+    {
+    }
+
+    /**
+     * @param samples
+     *            samples from one server
+     * @return the sample with the lowest round trip time, or null if there are
+     *         none
+     */
+    public static TimeSample filter(List<TimeSample> samples)
+    {
+        TimeSample best = null;
+        for (int i = 0, n = samples.size(); i < n; i++)
+        {
+            final TimeSample s = samples.get(i);
+            if (null == best || s.getRoundTripTime() < best.getRoundTripTime()) best = s;
+        }
+        return best;
+    }
+
+    /**
+     * Finds the smallest offset range that the most samples' offset +/-
+     * dispersion ranges overlap.
+     *
+     * @param samples
+     *            one sample per server, i.e. from {@link #filter(List)}
+     * @return a sample with the middle of that range as its offset and half
+     *         the width as its dispersion. Null if there are no samples or no
+     *         range more than half of them agree on.
+     */
+    public static TimeSample intersect(List<TimeSample> samples)
+    {
+        final int n = samples.size();
+        if (n == 0) return null;
+
+        // Each edge is value * 2, plus 1 for the end of a range. Sorting then
+        // puts starts before ends at the same value, so touching ranges count
+        // as overlapping.
+        final long[] edges = new long[n * 2];
+        for (int i = 0; i < n; i++)
+        {
+            final TimeSample s = samples.get(i);
+            final long dispersion = Math.max(s.getDispersion(), 0);
+            edges[i * 2] = (s.getClockOffset() - dispersion) * 2;
+            edges[i * 2 + 1] = (s.getClockOffset() + dispersion) * 2 + 1;
+        }
+        Arrays.sort(edges);
+
+        int count = 0;
+        int bestCount = 0;
+        long low = 0;
+        long high = 0;
+        for (int i = 0; i < edges.length; i++)
+        {
+            final boolean end = (edges[i] & 1) != 0;
+            if (end)
+            {
+                count--;
+                continue;
+            }
+            count++;
+            if (count > bestCount)
+            {
+                bestCount = count;
+                low = edges[i] >> 1;
+                // Overlap lasts until the next edge, if that's another start
+                // it replaces this on the next pass
+                high = edges[i + 1] >> 1;
+            }
+        }
+        if (bestCount * 2 <= n) return null;
+
+        final long offset = low + (high - low) / 2;
+        final long dispersion = (high - low + 1) / 2;
+
+        // Anchor the result on the lowest round trip sample that agrees
+        TimeSample base = null;
+        for (int i = 0; i < n; i++)
+        {
+            final TimeSample s = samples.get(i);
+            final long d = Math.max(s.getDispersion(), 0);
+            if (s.getClockOffset() - d > high || s.getClockOffset() + d < low) continue;
+            if (null == base || s.getRoundTripTime() < base.getRoundTripTime()) base = s;
+        }
+        return new TimeSample(base.getNtpTime() - base.getClockOffset() + offset,
+                base.getNtpTimeReference(), base.getRoundTripTime(), offset, dispersion);
+    }
+}
@@ -0,0 +1,248 @@
+package com.jenxsol.timelock.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.jenxsol.timelock.BuildConfig;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Catches the wall clock being wound back, without asking the network.
+ * <p>
+ * We keep a high-water mark: the latest time we know has passed. It only moves
+ * forward by {@link SystemClock#elapsedRealtime()} (which the user can't
+ * change), or to a trusted network time, never by the wall clock. It's
+ * persisted, so in a new process (or after a reboot) the time can't be before
+ * the last mark. If the wall clock is behind the mark someone has moved it,
+ * and the mark is used instead.
+ * </p>
+ * <p>
+ * Reading is a volatile read and some sums. Saving the mark is write-behind:
+ * at most one write is queued, and not more than once every
+ * {@link #WRITE_INTERVAL}, on the executor given. Construct it off the main
+ * thread, it reads the preferences.
+ * </p>
+ */
+public class ClockGuard
+{
+    private static final String TAG = "timelock";
+
+    private static final String PREFS_NAME = "timelock";
+
+    private static final String KEY_MARK = "hwm_time";
+    private static final String KEY_TICKS = "hwm_ticks";
+    private static final String KEY_BOOT_ID = "hwm_boot_id";
+
+    public static final long WRITE_INTERVAL = 60 * 1000;
+
+    private final SharedPreferences mPrefs;
+    private final Executor mWriter;
+    private final String mBootId;
+
+    private final SharedState mShared;
+
+    private volatile Mark mMark;
+    /**
+     * {@link SharedState#getSequence()} when we last looked at it.
+     */
+    private volatile long mSharedSequence = -1;
+    private volatile long mLastWrite;
+    private final AtomicBoolean mWritePending = new AtomicBoolean();
+
+    private final Runnable mWrite = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            mWritePending.set(false);
+            flush();
+        }
+    };
+
+    /**
+     * @param ctx
+     *            any context, only used to get hold of the preferences
+     * @param writer
+     *            background executor the mark is saved on
+     */
+    public ClockGuard(Context ctx, Executor writer)
+    {
+        this(ctx, writer, null);
+    }
+
+    /**
+     * @param ctx
+     *            any context, only used to get hold of the preferences
+     * @param writer
+     *            background executor the mark is saved on
+     * @param shared
+     *            state shared with the app's other processes, can be null. The
+     *            highest mark of any of them is used.
+     */
+    public ClockGuard(Context ctx, Executor writer, SharedState shared)
+    {
+        this(ctx, writer, shared, TrustedClock.readBootId());
+    }
+
+    /**
+     * @param bootId
+     *            this boot's id, null if it can't be read
+     */
+    ClockGuard(Context ctx, Executor writer, SharedState shared, String bootId)
+    {
+        mPrefs = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mWriter = writer;
+        mShared = shared;
+        mBootId = bootId;
+        mMark = load();
+        if (null != mShared) adoptShared();
+        mLastWrite = SystemClock.elapsedRealtime();
+        if (null == mMark)
+        {
+            // First run, all we have is the wall clock
+            raise(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return the wall clock, or the mark if the clock is behind it
+     */
+    public long currentTimeMillis()
+    {
+        final long floor = getFloor();
+        final long wall = System.currentTimeMillis();
+        touch();
+        return wall >= floor ? wall : floor;
+    }
+
+    /**
+     * @return the earliest the time can be right now
+     */
+    public long getFloor()
+    {
+        if (null != mShared && mShared.getSequence() != mSharedSequence) adoptShared();
+        final Mark m = mMark;
+        return m.time + (SystemClock.elapsedRealtime() - m.ticks);
+    }
+
+    /**
+     * Takes another process's mark if it's further on than ours.
+     */
+    private synchronized void adoptShared()
+    {
+        mSharedSequence = mShared.getSequence();
+        final long[] v = new long[2];
+        if (!mShared.readMark(v)) return;
+        final long now = SystemClock.elapsedRealtime();
+        // Elapsed from before a reboot, if we couldn't tell, only counts from 0
+        final long floor = v[0] + Math.max(now - v[1], 0);
+        final Mark m = mMark;
+        if (null == m || floor > m.time + (now - m.ticks)) mMark = new Mark(floor, now);
+    }
+
+    /**
+     * Moves the mark up to the time if it's later, i.e. the build time, as
+     * the clock can't be earlier than that.
+     *
+     * @param time
+     *            a time we know has passed
+     */
+    public synchronized void raise(long time)
+    {
+        if (null != mMark && time <= getFloor()) return;
+        mMark = new Mark(time, SystemClock.elapsedRealtime());
+        if (null != mShared) mShared.writeMark(mMark.time, mMark.ticks, false);
+        scheduleWrite();
+    }
+
+    /**
+     * Resets the mark to a trusted network time, even if that's earlier (the
+     * first wall clock we saw could have been ahead).
+     *
+     * @param time
+     *            trusted current time
+     */
+    public synchronized void onTrustedTime(long time)
+    {
+        mMark = new Mark(time, SystemClock.elapsedRealtime());
+        if (null != mShared) mShared.writeMark(mMark.time, mMark.ticks, true);
+        scheduleWrite();
+    }
+
+    /**
+     * Queues a save of the mark if the last one was a while ago. Cheap, call
+     * it as often as you like.
+     */
+    public void touch()
+    {
+        if (SystemClock.elapsedRealtime() - mLastWrite < WRITE_INTERVAL) return;
+        scheduleWrite();
+    }
+
+    /**
+     * Saves the mark now, on this thread.
+     */
+    public void flush()
+    {
+        final long ticks = SystemClock.elapsedRealtime();
+        final Mark m = mMark;
+        mLastWrite = ticks;
+        mPrefs.edit()
+                .putLong(KEY_MARK, m.time + (ticks - m.ticks))
+                .putLong(KEY_TICKS, ticks)
+                .putString(KEY_BOOT_ID, mBootId)
+                .commit();
+    }
+
+    private void scheduleWrite()
+    {
+        if (!mWritePending.compareAndSet(false, true)) return;
+        mWriter.execute(mWrite);
+    }
+
+    /**
+     * Picks up the saved mark, moved on by however much elapsed time we can
+     * be sure has passed since.
+     */
+    private Mark load()
+    {
+        if (!mPrefs.contains(KEY_MARK)) return null;
+        final long mark = mPrefs.getLong(KEY_MARK, 0);
+        final long ticks = mPrefs.getLong(KEY_TICKS, 0);
+        final long now = SystemClock.elapsedRealtime();
+        final String bootId = mPrefs.getString(KEY_BOOT_ID, null);
+        final long passed;
+        if (null != mBootId && null != bootId && !mBootId.equals(bootId))
+        {
+            // Rebooted since, at least all of this boot has passed
+            passed = now;
+        }
+        else
+        {
+            // Same boot, or we can't tell. If it was a reboot this is still
+            // less than has really passed.
+            passed = Math.max(now - ticks, 0);
+        }
+        if (BuildConfig.DEBUG) Log.d(TAG, "high-water mark " + mark + " + " + passed);
+        return new Mark(mark + passed, now);
+    }
+
+    /**
+     * Wall clock time at an elapsed time. Immutable.
+     */
+    private static final class Mark
+    {
+        final long time;
+        final long ticks;
+
+        Mark(long time, long ticks)
+        {
+            this.time = time;
+            this.ticks = ticks;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.jenxsol.timelock.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe version of {@link ReferenceSet}, backed by a
+ * {@link ConcurrentHashMap}. Lookups don't lock, writes only lock the one
+ * segment they touch.
+ * <p>
+ * Iterators are weakly consistent, like the backing map's: they never throw
+ * {@link java.util.ConcurrentModificationException} and can be walked while
+ * other threads add and remove, they may or may not see those changes.
+ * </p>
+ * <p>
+ * Subclasses follow the same hashCode() and equals() rules as
+ * {@link ReferenceSet#getReference(Object, ReferenceQueue)}.
+ * </p>
+ */
+public abstract class ConcurrentReferenceSet<T extends Object> extends AbstractSet<T>
+{
+
+    private final ConcurrentHashMap<Reference<T>, Boolean> contents;
+
+    /**
+     * The GC queues our references here once they are cleared.
+     */
+    private final ReferenceQueue<T> queue = new ReferenceQueue<T>();
+
+    /**
+     * Live count, kept next to the map so size() doesn't have to lock every
+     * segment. An add counts before it puts, so it can be one high for a
+     * moment but never goes negative.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Get an instance of ConcurrentReferenceSet.
+     */
+    public ConcurrentReferenceSet()
+    {
+        super();
+        contents = new ConcurrentHashMap<Reference<T>, Boolean>();
+    }
+
+    /**
+     * Create a ConcurrentReferenceSet with the given capacity.
+     *
+     * @param n
+     *            the initial capacity
+     */
+    public ConcurrentReferenceSet(int n)
+    {
+        super();
+        contents = new ConcurrentHashMap<Reference<T>, Boolean>(n);
+    }
+
+    /**
+     * Add an object to the Set.
+     *
+     * @param o
+     *            the object
+     * @return true if the object did not already exist
+     */
+    @Override
+    public boolean add(T o)
+    {
+        purge();
+        if (o == null || contains(o))
+        {
+            return false;
+        }
+        // Counted before it goes in, so a drain that takes it straight back
+        // out can't push the count below zero
+        count.incrementAndGet();
+        if (contents.putIfAbsent(getReference(o, queue), Boolean.TRUE) == null)
+        {
+            return true;
+        }
+        count.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Lock free hashed lookup.
+     */
+    @Override
+    public boolean contains(Object o)
+    {
+        if (o == null)
+        {
+            return false;
+        }
+        return contents.containsKey(new ReferenceSet.Lookup(o));
+    }
+
+    @Override
+    public boolean remove(Object o)
+    {
+        purge();
+        if (o == null)
+        {
+            return false;
+        }
+        return removeEntry(new ReferenceSet.Lookup(o));
+    }
+
+    @Override
+    public void clear()
+    {
+        for (Reference<T> ref : contents.keySet())
+        {
+            removeEntry(ref);
+        }
+        purge();
+    }
+
+    /**
+     * Get the current size of the Set, cheap. It can still count an object the
+     * GC has collected but not yet queued.
+     */
+    @Override
+    public int size()
+    {
+        purge();
+        return (count.get());
+    }
+
+    /**
+     * Get a weakly consistent iterator, safe to use while other threads
+     * change the set. Supports remove().
+     */
+    @Override
+    public Iterator<T> iterator()
+    {
+        return (new ConcurrentReferenceIterator(contents.keySet().iterator()));
+    }
+
+    /**
+     * Weakly consistent walk of the references themselves, live or not, for
+     * callers that keep more in them than the referent.
+     */
+    Iterator<Reference<T>> references()
+    {
+        purge();
+        return contents.keySet().iterator();
+    }
+
+    /**
+     * Takes out exactly this entry, only one caller gets true for it.
+     */
+    boolean removeReference(Reference<T> ref)
+    {
+        return removeEntry(ref);
+    }
+
+    /**
+     * Drops every reference the GC has queued since we last looked.
+     */
+    private void purge()
+    {
+        Reference<? extends T> ref;
+        while ((ref = queue.poll()) != null)
+        {
+            removeEntry(ref);
+        }
+    }
+
+    /**
+     * Only the thread whose remove actually takes the entry out adjusts the
+     * count, so racing removes (or a remove racing the purge) count once.
+     */
+    private boolean removeEntry(Object key)
+    {
+        if (contents.remove(key) != null)
+        {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Obtain the desired type of reference to the given object, registered
+     * with the given queue.
+     *
+     * @see ReferenceSet#getReference(Object, ReferenceQueue)
+     * @param o
+     *            an object
+     * @param q
+     *            queue the reference must be registered with
+     * @return a reference to that object
+     */
+    protected abstract Reference<T> getReference(T o, ReferenceQueue<? super T> q);
+
+    private class ConcurrentReferenceIterator implements Iterator<T>
+    {
+
+        private final Iterator<Reference<T>> backIterator;
+        private T next = null;
+        private Reference<T> nextRef = null;
+        private Reference<T> lastRef = null;
+
+        ConcurrentReferenceIterator(Iterator<Reference<T>> i)
+        {
+            backIterator = i;
+            findNext();
+        }
+
+        public boolean hasNext()
+        {
+            return (next != null);
+        }
+
+        public T next() throws NoSuchElementException
+        {
+            if (next == null)
+            {
+                throw new NoSuchElementException("All out.");
+            }
+            T rv = next;
+            lastRef = nextRef;
+            findNext();
+            return (rv);
+        }
+
+        public void remove()
+        {
+            if (lastRef == null)
+            {
+                throw new IllegalStateException();
+            }
+            removeEntry(lastRef);
+            lastRef = null;
+        }
+
+        private void findNext()
+        {
+            next = null;
+            nextRef = null;
+            while (next == null && backIterator.hasNext())
+            {
+                Reference<T> ref = backIterator.next();
+                next = ref.get();
+                if (next == null)
+                {
+                    // Dead, get rid of our copy
+                    removeEntry(ref);
+                }
+                else
+                {
+                    nextRef = ref;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+package com.jenxsol.timelock.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+
+/**
+ * Thread safe {@link SoftHashSet}.
+ */
+public class ConcurrentSoftHashSet<T extends Object> extends ConcurrentReferenceSet<T>
+{
+
+    /**
+     * Get an instance of ConcurrentSoftHashSet.
+     */
+    public ConcurrentSoftHashSet()
+    {
+        super();
+    }
+
+    /**
+     * Create a ConcurrentSoftHashSet with the given capacity.
+     *
+     * @param n
+     *            the capacity
+     */
+    public ConcurrentSoftHashSet(int n)
+    {
+        super(n);
+    }
+
+    /**
+     * Return a soft reference.
+     */
+    @Override
+    protected Reference<T> getReference(T o, ReferenceQueue<? super T> q)
+    {
+        return (new SoftHashSet.MySoftReference<T>(o, q));
+    }
+
+}
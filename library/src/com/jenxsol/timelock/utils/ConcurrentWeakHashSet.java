@@ -0,0 +1,82 @@
+package com.jenxsol.timelock.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Thread safe set of weak references. Entries go as soon as nothing else holds
+ * the object, unlike {@link ConcurrentSoftHashSet} which waits for memory
+ * pressure.
+ */
+public class ConcurrentWeakHashSet<T extends Object> extends ConcurrentReferenceSet<T>
+{
+
+    /**
+     * Get an instance of ConcurrentWeakHashSet.
+     */
+    public ConcurrentWeakHashSet()
+    {
+        super();
+    }
+
+    /**
+     * Create a ConcurrentWeakHashSet with the given capacity.
+     * 
+     * @param n
+     *            the capacity
+     */
+    public ConcurrentWeakHashSet(int n)
+    {
+        super(n);
+    }
+
+    /**
+     * Return a weak reference.
+     */
+    @Override
+    protected Reference<T> getReference(T o, ReferenceQueue<? super T> q)
+    {
+        return (new MyWeakReference<T>(o, q));
+    }
+
+    static class MyWeakReference<T> extends WeakReference<T>
+    {
+
+        /**
+         * Taken up front so the hash doesn't change once the referent is
+         * collected.
+         */
+        private final int hash;
+
+        public MyWeakReference(T o, ReferenceQueue<? super T> q)
+        {
+            super(o, q);
+            hash = o.hashCode();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (hash);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this)
+            {
+                return true;
+            }
+            if (!(obj instanceof MyWeakReference<?>))
+            {
+                return false;
+            }
+            Object o = get();
+            Object other = ((MyWeakReference<?>) obj).get();
+            return o != null && other != null && (o == other || o.equals(other));
+        }
+
+    }
+
+}
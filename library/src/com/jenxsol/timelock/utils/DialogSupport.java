@@ -55,4 +55,31 @@ public class DialogSupport
         }
     }
 
+    /**
+     * Same look as {@link #timeOutDialog(Context, String, String)}, but the
+     * user can carry on. For telling them the app is about to expire.
+     * 
+     * @param ctx
+     *            the current activity
+     * @param title
+     *            the dialog title
+     * @param message
+     *            the message to tell the user
+     */
+    public static final void warningDialog(final Context ctx, final String title,
+            final String message)
+    {
+        AlertDialog.Builder b = new AlertDialog.Builder(ctx);
+        b.setTitle(title);
+        b.setMessage(message);
+        b.setIcon(android.R.drawable.ic_dialog_info);
+        b.setPositiveButton(android.R.string.ok, null);
+        try
+        {
+            b.create().show();
+        } catch (Exception e)
+        {
+        }
+    }
+
 }
@@ -0,0 +1,311 @@
+package com.jenxsol.timelock.utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.jenxsol.timelock.BuildConfig;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Remembers time server addresses so asking the time doesn't mean waiting on
+ * DNS first, which is often slower than the NTP exchange itself.
+ * <ul>
+ * <li>Fresh for {@link #TTL}, after that the old address is still handed out
+ * (for up to {@link #MAX_STALE}) while it's looked up again in the
+ * background.</li>
+ * <li>{@link #prefetch(String...)} looks hosts up in the background ahead of
+ * time.</li>
+ * <li>{@link #pin(String, String...)} gives a host fixed addresses to use
+ * when we have nothing better, so a host we have never resolved doesn't
+ * block either.</li>
+ * </ul>
+ * Lookups run on one shared daemon thread, also used by
+ * {@link AsyncSntpClient}. Thread safe.
+ */
+public class DnsCache
+{
+    private static final String TAG = "timelock";
+
+    /**
+     * Java doesn't tell us the real record TTL, this is plenty for NTP pools.
+     */
+    public static final long TTL = 30 * 60 * 1000;
+    public static final long MAX_STALE = 24 * 60 * 60 * 1000;
+
+    private static DnsCache sDefault;
+    private static ExecutorService sResolver;
+
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, InetAddress[]> mPinned = new ConcurrentHashMap<String, InetAddress[]>();
+
+    /**
+     * Hosts with no entry yet which are being looked up.
+     */
+    private final ConcurrentHashMap<String, AtomicBoolean> mPending = new ConcurrentHashMap<String, AtomicBoolean>();
+
+    /**
+     * @return the cache the library uses
+     */
+    public static synchronized DnsCache getDefault()
+    {
+        if (null == sDefault) sDefault = new DnsCache();
+        return sDefault;
+    }
+
+    /**
+     * Shared single lookup thread.
+     */
+    static synchronized ExecutorService getResolver()
+    {
+        if (null == sResolver)
+        {
+            sResolver = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    final Thread t = new Thread(r, "TimeLock-dns");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sResolver;
+    }
+
+    /**
+     * Gets an address for the host, only blocking if we have never resolved
+     * it and it isn't pinned.
+     *
+     * @param host
+     *            host name or address literal
+     * @return an address for the host
+     * @throws UnknownHostException
+     *             if it has to be looked up and that fails
+     */
+    public InetAddress lookup(String host) throws UnknownHostException
+    {
+        final InetAddress cached = peek(host);
+        if (null != cached) return cached;
+        return resolve(host)[0];
+    }
+
+    /**
+     * Never blocks.
+     *
+     * @param host
+     *            host name
+     * @return a cached (or pinned) address, or null if there isn't one. Stale
+     *         or pinned answers kick off a lookup in the background.
+     */
+    public InetAddress peek(String host)
+    {
+        final Entry e = mEntries.get(host);
+        final long now = now();
+        if (null != e)
+        {
+            final long age = now - e.resolved;
+            if (age >= 0 && age < TTL) return e.addresses[0];
+            if (age >= 0 && age < MAX_STALE)
+            {
+                refresh(host, e);
+                return e.addresses[0];
+            }
+        }
+        final InetAddress[] pinned = mPinned.get(host);
+        if (null != pinned)
+        {
+            refresh(host, e);
+            return pinned[0];
+        }
+        return null;
+    }
+
+    /**
+     * Looks the hosts up in the background, i.e. at start up so they are
+     * ready by the time we want the time.
+     *
+     * @param hosts
+     *            host names
+     */
+    public void prefetch(String... hosts)
+    {
+        for (final String host : hosts)
+        {
+            if (null == host) continue;
+            final Entry e = mEntries.get(host);
+            if (null != e && now() - e.resolved < TTL) continue;
+            refresh(host, e);
+        }
+    }
+
+    /**
+     * Fixed fallback addresses for the host, used until (or if ever) it
+     * resolves.
+     *
+     * @param host
+     *            host name
+     * @param addresses
+     *            IPv4 address literals, i.e. "129.6.15.28"
+     * @throws IllegalArgumentException
+     *             if one isn't an address literal
+     */
+    public void pin(String host, String... addresses)
+    {
+        if (addresses.length == 0) throw new IllegalArgumentException("No addresses");
+        final InetAddress[] pinned = new InetAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++)
+        {
+            pinned[i] = parseLiteral(host, addresses[i]);
+        }
+        mPinned.put(host, pinned);
+    }
+
+    /**
+     * Drops everything looked up, keeps the pins.
+     */
+    public void clear()
+    {
+        mEntries.clear();
+    }
+
+    /**
+     * Blocking lookup, caches the answer.
+     */
+    private InetAddress[] resolve(String host) throws UnknownHostException
+    {
+        final InetAddress[] addresses = query(host);
+        if (addresses.length == 0) throw new UnknownHostException(host);
+        mEntries.put(host, new Entry(addresses, now()));
+        return addresses;
+    }
+
+    /**
+     * The DNS lookup itself, blocking.
+     */
+    InetAddress[] query(String host) throws UnknownHostException
+    {
+        return InetAddress.getAllByName(host);
+    }
+
+    /**
+     * @return {@link SystemClock#elapsedRealtime()}
+     */
+    long now()
+    {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Looks the host up again in the background, at most once at a time per
+     * entry.
+     */
+    private void refresh(final String host, Entry e)
+    {
+        final AtomicBoolean refreshing;
+        if (null != e)
+        {
+            refreshing = e.refreshing;
+        }
+        else
+        {
+            // Placeholder so concurrent callers don't all queue a lookup
+            final AtomicBoolean fresh = new AtomicBoolean();
+            final AtomicBoolean existing = mPending.putIfAbsent(host, fresh);
+            refreshing = null != existing ? existing : fresh;
+        }
+        if (!refreshing.compareAndSet(false, true)) return;
+        getResolver().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    resolve(host);
+                }
+                catch (UnknownHostException ex)
+                {
+                    // Keep what we had
+                    if (BuildConfig.DEBUG) Log.d(TAG, "lookup failed: " + ex);
+                }
+                finally
+                {
+                    refreshing.set(false);
+                    mPending.remove(host, refreshing);
+                }
+            }
+        });
+    }
+
+    private static InetAddress parseLiteral(String host, String literal)
+    {
+        final byte[] bytes = parseIpv4(literal);
+        if (null == bytes) throw new IllegalArgumentException("Not an IPv4 address: " + literal);
+        try
+        {
+            return InetAddress.getByAddress(host, bytes);
+        }
+        catch (UnknownHostException e)
+        {
+            throw new IllegalArgumentException(literal);
+        }
+    }
+
+    /**
+     * InetAddress.getByName would do it, but might go to DNS if it's not a
+     * literal. Leading zeros are refused, some parsers take them as octal.
+     *
+     * @return the four bytes, or null if it's not a dotted quad
+     */
+    static byte[] parseIpv4(String s)
+    {
+        final byte[] rv = new byte[4];
+        int part = 0;
+        int value = -1;
+        for (int i = 0, n = s.length(); i <= n; i++)
+        {
+            final char c = i < n ? s.charAt(i) : '.';
+            if (c == '.')
+            {
+                if (value < 0 || part > 3) return null;
+                rv[part++] = (byte) value;
+                value = -1;
+            }
+            else if (c >= '0' && c <= '9')
+            {
+                if (value == 0) return null;
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) return null;
+            }
+            else
+            {
+                return null;
+            }
+        }
+        return part == 4 ? rv : null;
+    }
+
+    /**
+     * Answer from a lookup. The addresses are never changed.
+     */
+    private static final class Entry
+    {
+        final InetAddress[] addresses;
+        final long resolved;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(InetAddress[] addresses, long resolved)
+        {
+            this.addresses = addresses;
+            this.resolved = resolved;
+        }
+    }
+}
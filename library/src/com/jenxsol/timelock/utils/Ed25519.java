@@ -0,0 +1,236 @@
+package com.jenxsol.timelock.utils;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
+/**
+ * Ed25519 signature checking (RFC 8032), for {@link RoughtimeClient}. Android
+ * has no Ed25519 of its own until much later than we support, so this is done
+ * with {@link BigInteger}: slow (milliseconds, not microseconds), but we only
+ * check one or two signatures per exchange, and keys are parsed once with
+ * {@link #decode(byte[])} and kept.
+ * <p>
+ * Verifying only, nothing here needs to be constant time.
+ * </p>
+ */
+final class Ed25519
+{
+
+    static final int KEY_SIZE = 32;
+    static final int SIGNATURE_SIZE = 64;
+
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+
+    /**
+     * Field prime, 2^255 - 19.
+     */
+    private static final BigInteger P = TWO.pow(255).subtract(BigInteger.valueOf(19));
+
+    /**
+     * Group order, 2^252 + 27742317777372353535851937790883648493.
+     */
+    private static final BigInteger L = TWO.pow(252).add(
+            new BigInteger("27742317777372353535851937790883648493"));
+
+    /**
+     * Curve constant, -121665/121666.
+     */
+    private static final BigInteger D = BigInteger.valueOf(-121665)
+            .multiply(BigInteger.valueOf(121666).modInverse(P)).mod(P);
+    private static final BigInteger D2 = D.shiftLeft(1).mod(P);
+
+    /**
+     * Square root of -1.
+     */
+    private static final BigInteger SQRT_M1 = TWO.modPow(P.subtract(BigInteger.ONE).shiftRight(2),
+            P);
+
+    private static final Point IDENTITY = new Point(BigInteger.ZERO, BigInteger.ONE,
+            BigInteger.ONE, BigInteger.ZERO);
+
+    /**
+     * Base point, y = 4/5.
+     */
+    private static final Point BASE;
+
+    static
+    {
+        final byte[] b = new byte[KEY_SIZE];
+        b[0] = 0x58;
+        for (int i = 1; i < KEY_SIZE; i++)
+        {
+            b[i] = 0x66;
+        }
+        BASE = decode(b);
+    }
+
+    private Ed25519()
+    {
+    }
+
+    /**
+     * @param key
+     *            32 byte public key
+     * @return the point, or null if it isn't one
+     */
+    static Point decode(byte[] key)
+    {
+        if (null == key || key.length != KEY_SIZE) return null;
+        final byte[] le = key.clone();
+        final int sign = (le[KEY_SIZE - 1] >> 7) & 1;
+        le[KEY_SIZE - 1] &= 0x7f;
+        final BigInteger y = fromLittleEndian(le, 0, KEY_SIZE);
+        if (y.compareTo(P) >= 0) return null;
+
+        // x^2 = (y^2 - 1) / (d y^2 + 1)
+        final BigInteger yy = y.multiply(y).mod(P);
+        final BigInteger u = yy.subtract(BigInteger.ONE).mod(P);
+        final BigInteger v = D.multiply(yy).add(BigInteger.ONE).mod(P);
+        final BigInteger v3 = v.multiply(v).multiply(v).mod(P);
+        final BigInteger uv7 = u.multiply(v3).multiply(v3).multiply(v).mod(P);
+        BigInteger x = u.multiply(v3).multiply(uv7.modPow(P.subtract(BigInteger.valueOf(5))
+                .shiftRight(3), P)).mod(P);
+        final BigInteger vxx = v.multiply(x).multiply(x).mod(P);
+        if (!vxx.equals(u))
+        {
+            if (!vxx.equals(P.subtract(u).mod(P))) return null;
+            x = x.multiply(SQRT_M1).mod(P);
+        }
+        if (x.signum() == 0 && sign == 1) return null;
+        if (x.testBit(0) != (sign == 1)) x = P.subtract(x);
+        return new Point(x, y, BigInteger.ONE, x.multiply(y).mod(P));
+    }
+
+    /**
+     * Checks a signature over context followed by message, which saves
+     * copying them into one array.
+     *
+     * @param key
+     *            from {@link #decode(byte[])}
+     * @param keyBytes
+     *            the same key encoded, it's part of what's hashed
+     * @param digest
+     *            SHA-512, reset before it's used
+     * @return true if it's good
+     */
+    static boolean verify(Point key, byte[] keyBytes, byte[] context, byte[] message,
+            byte[] signature, MessageDigest digest)
+    {
+        if (null == signature || signature.length != SIGNATURE_SIZE) return false;
+        final BigInteger s = fromLittleEndian(signature, 32, 32);
+        if (s.compareTo(L) >= 0) return false;
+
+        digest.reset();
+        digest.update(signature, 0, 32);
+        digest.update(keyBytes);
+        digest.update(context);
+        digest.update(message);
+        final byte[] h = digest.digest();
+        final BigInteger k = fromLittleEndian(h, 0, h.length).mod(L);
+
+        // [s]B - [k]A should come out as R
+        final Point r = multiplyAdd(s, BASE, k, key.negate());
+        final byte[] encoded = r.encode();
+        for (int i = 0; i < 32; i++)
+        {
+            if (encoded[i] != signature[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * [a]P + [b]Q in one pass (Shamir's trick).
+     */
+    private static Point multiplyAdd(BigInteger a, Point p, BigInteger b, Point q)
+    {
+        final Point pq = p.add(q);
+        Point r = IDENTITY;
+        for (int i = Math.max(a.bitLength(), b.bitLength()) - 1; i >= 0; i--)
+        {
+            r = r.twice();
+            final boolean ai = a.testBit(i);
+            final boolean bi = b.testBit(i);
+            if (ai && bi) r = r.add(pq);
+            else if (ai) r = r.add(p);
+            else if (bi) r = r.add(q);
+        }
+        return r;
+    }
+
+    private static BigInteger fromLittleEndian(byte[] b, int offset, int length)
+    {
+        final byte[] be = new byte[length + 1];
+        for (int i = 0; i < length; i++)
+        {
+            be[length - i] = b[offset + i];
+        }
+        return new BigInteger(be);
+    }
+
+    /**
+     * Point in extended coordinates, x = X/Z, y = Y/Z, xy = T/Z. Immutable.
+     */
+    static final class Point
+    {
+        final BigInteger x;
+        final BigInteger y;
+        final BigInteger z;
+        final BigInteger t;
+
+        Point(BigInteger x, BigInteger y, BigInteger z, BigInteger t)
+        {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.t = t;
+        }
+
+        Point negate()
+        {
+            return new Point(P.subtract(x).mod(P), y, z, P.subtract(t).mod(P));
+        }
+
+        Point add(Point o)
+        {
+            final BigInteger a = y.subtract(x).multiply(o.y.subtract(o.x)).mod(P);
+            final BigInteger b = y.add(x).multiply(o.y.add(o.x)).mod(P);
+            final BigInteger c = t.multiply(D2).multiply(o.t).mod(P);
+            final BigInteger d = z.shiftLeft(1).multiply(o.z).mod(P);
+            final BigInteger e = b.subtract(a);
+            final BigInteger f = d.subtract(c);
+            final BigInteger g = d.add(c);
+            final BigInteger h = b.add(a);
+            return new Point(e.multiply(f).mod(P), g.multiply(h).mod(P), f.multiply(g).mod(P),
+                    e.multiply(h).mod(P));
+        }
+
+        Point twice()
+        {
+            final BigInteger a = x.multiply(x).mod(P);
+            final BigInteger b = y.multiply(y).mod(P);
+            final BigInteger c = z.multiply(z).shiftLeft(1).mod(P);
+            final BigInteger h = a.add(b);
+            final BigInteger xy = x.add(y);
+            final BigInteger e = h.subtract(xy.multiply(xy)).mod(P);
+            final BigInteger g = a.subtract(b);
+            final BigInteger f = c.add(g);
+            return new Point(e.multiply(f).mod(P), g.multiply(h).mod(P), f.multiply(g).mod(P),
+                    e.multiply(h).mod(P));
+        }
+
+        byte[] encode()
+        {
+            final BigInteger zi = z.modInverse(P);
+            final BigInteger ax = x.multiply(zi).mod(P);
+            final BigInteger ay = y.multiply(zi).mod(P);
+            final byte[] be = ay.toByteArray();
+            final byte[] le = new byte[KEY_SIZE];
+            for (int i = 0; i < KEY_SIZE && i < be.length; i++)
+            {
+                le[i] = be[be.length - 1 - i];
+            }
+            if (ax.testBit(0)) le[KEY_SIZE - 1] |= (byte) 0x80;
+            return le;
+        }
+    }
+}
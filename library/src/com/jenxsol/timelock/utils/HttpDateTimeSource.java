@@ -0,0 +1,65 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import android.os.SystemClock;
+
+/**
+ * The {@code Date} header of an HTTP(S) response. Only good to a second, but
+ * gets through networks that block NTP, and over HTTPS it can't be faked
+ * without the server's certificate.
+ */
+public class HttpDateTimeSource implements TimeSource
+{
+
+    private final URL mUrl;
+
+    /**
+     * @param url
+     *            anything that answers a HEAD request with a Date header, your
+     *            own server ideally
+     */
+    public HttpDateTimeSource(URL url)
+    {
+        mUrl = url;
+    }
+
+    @Override
+    public TimeSample getTime(int timeout) throws IOException
+    {
+        final HttpURLConnection conn = (HttpURLConnection) mUrl.openConnection();
+        try
+        {
+            conn.setRequestMethod("HEAD");
+            conn.setUseCaches(false);
+            conn.setInstanceFollowRedirects(false);
+            conn.setConnectTimeout(timeout);
+            conn.setReadTimeout(timeout);
+            final long requestTicks = SystemClock.elapsedRealtime();
+            conn.getResponseCode();
+            final long responseTicks = SystemClock.elapsedRealtime();
+            final long date = conn.getHeaderFieldDate("Date", -1);
+            if (date <= 0) throw new IOException("No Date header from " + mUrl.getHost());
+
+            // The header is cut down to the second, and was written some time
+            // during the round trip. Aim for the middle of both.
+            final long roundTrip = responseTicks - requestTicks;
+            final long time = date + 500 + roundTrip / 2;
+            final long local = System.currentTimeMillis();
+            return new TimeSample(time, responseTicks, roundTrip, time - local,
+                    500 + roundTrip / 2);
+        }
+        finally
+        {
+            conn.disconnect();
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return "http:" + mUrl.getHost();
+    }
+}
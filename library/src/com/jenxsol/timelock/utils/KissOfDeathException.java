@@ -0,0 +1,67 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+
+/**
+ * Server answered with stratum 0, a "kiss-o'-death". The reference id holds a
+ * four letter code saying why (RFC 5905 7.4), the ones that matter to a client
+ * are RATE (asking too often) and DENY/RSTR (don't ask again).
+ */
+public class KissOfDeathException extends IOException
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private final String mCode;
+
+    /**
+     * @param referenceId
+     *            reference id of the packet, four ASCII characters big endian
+     */
+    public KissOfDeathException(int referenceId)
+    {
+        this(decode(referenceId));
+    }
+
+    public KissOfDeathException(String code)
+    {
+        super("kiss-o'-death: " + code);
+        mCode = code;
+    }
+
+    /**
+     * @return the kiss code, i.e. "RATE"
+     */
+    public String getCode()
+    {
+        return mCode;
+    }
+
+    /**
+     * @return true if we should ask less often
+     */
+    public boolean isRateLimit()
+    {
+        return "RATE".equals(mCode);
+    }
+
+    /**
+     * @return true if we should stop asking this server altogether
+     */
+    public boolean isDenied()
+    {
+        return "DENY".equals(mCode) || "RSTR".equals(mCode);
+    }
+
+    private static String decode(int referenceId)
+    {
+        final char[] code = new char[4];
+        for (int i = 0; i < 4; i++)
+        {
+            final int c = (referenceId >>> (24 - i * 8)) & 0xff;
+            // Printable ASCII only, it's off the network
+            code[i] = c >= 0x20 && c < 0x7f ? (char) c : '?';
+        }
+        return new String(code);
+    }
+}
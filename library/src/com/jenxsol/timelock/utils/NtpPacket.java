@@ -0,0 +1,392 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+
+import android.os.SystemClock;
+
+/**
+ * Reusable NTPv3/v4 packet codec over a {@link ByteBuffer}. Encoding a request
+ * and decoding a response don't allocate anything, so one of these can be
+ * kept per client (or per I/O thread) and used for every request.
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+public class NtpPacket
+{
+
+    public static final int SIZE = 48;
+
+    private static final int ROOT_DELAY_OFFSET = 4;
+    private static final int ROOT_DISPERSION_OFFSET = 8;
+    private static final int REFERENCE_ID_OFFSET = 12;
+    private static final int REFERENCE_TIME_OFFSET = 16;
+    private static final int ORIGINATE_TIME_OFFSET = 24;
+    private static final int RECEIVE_TIME_OFFSET = 32;
+    private static final int TRANSMIT_TIME_OFFSET = 40;
+
+    private static final int MODE_CLIENT = 3;
+    private static final int MODE_SERVER = 4;
+    private static final int MODE_BROADCAST = 5;
+    private static final int VERSION = 3;
+
+    public static final int LEAP_NOSYNC = 3;
+    private static final int STRATUM_DEATH = 0;
+    private static final int STRATUM_MAX = 15;
+
+    // Number of seconds between Jan 1, 1900 and Jan 1, 1970
+    // 70 years plus 17 leap days
+    private static final long OFFSET_1900_TO_1970 = ((365L * 70L) + 17L) * 24L * 60L * 60L;
+
+    /**
+     * Seeds each packet's xorshift, so the low bits can't be worked out from
+     * when it was made.
+     */
+    private static final SecureRandom sSeeds = new SecureRandom();
+
+    /**
+     * Random low order bits of the transmit time stamp. A millisecond is just
+     * over 2^22 of fraction, so adding up to this keeps it in the same one.
+     */
+    private static final long RANDOM_BITS = 0x3FFFFFL;
+
+    private final ByteBuffer mBuffer;
+
+    /**
+     * Raw transmit time stamp of the last request, a reply has to echo it back
+     * as its originate time stamp.
+     */
+    private long mSentTimeStamp;
+
+    /**
+     * xorshift state for the low order bits of the transmit time stamp.
+     */
+    private long mRandom;
+
+    // Results of the last decodeResponse()
+    private long mNtpTime;
+    private long mNtpTimeReference;
+    private long mRoundTripTime;
+    private long mClockOffset;
+    private long mDispersion;
+
+    /**
+     * Uses a new direct buffer.
+     */
+    public NtpPacket()
+    {
+        this(ByteBuffer.allocateDirect(SIZE));
+    }
+
+    /**
+     * @param buffer
+     *            at least {@link #SIZE} bytes, used from 0
+     */
+    public NtpPacket(ByteBuffer buffer)
+    {
+        if (buffer.capacity() < SIZE) throw new IllegalArgumentException("Buffer too small");
+        mBuffer = buffer;
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+        mRandom = sSeeds.nextLong() | 1;
+    }
+
+    /**
+     * @return the buffer, positioned for a send after
+     *         {@link #writeRequest(long)} or a receive after {@link #clear()}
+     */
+    public ByteBuffer buffer()
+    {
+        return mBuffer;
+    }
+
+    /**
+     * Gets the buffer ready to receive a response.
+     */
+    public void clear()
+    {
+        mBuffer.clear();
+        mBuffer.limit(SIZE);
+    }
+
+    /**
+     * Fills the buffer with a client request and flips it ready to send.
+     *
+     * @param requestTime
+     *            current system time
+     */
+    public void writeRequest(long requestTime)
+    {
+        for (int i = 0; i < SIZE; i += 8)
+        {
+            mBuffer.putLong(i, 0);
+        }
+        // mode is in low 3 bits of first byte
+        // version is in bits 3-5 of first byte
+        mBuffer.put(0, (byte) (MODE_CLIENT | (VERSION << 3)));
+
+        mSentTimeStamp = toTimeStamp(requestTime);
+        mBuffer.putLong(TRANSMIT_TIME_OFFSET, mSentTimeStamp);
+
+        mBuffer.position(0);
+        mBuffer.limit(SIZE);
+    }
+
+    /**
+     * @return raw transmit time stamp of the last {@link #writeRequest(long)},
+     *         for when one packet is shared by several requests
+     */
+    public long getSentTimeStamp()
+    {
+        return mSentTimeStamp;
+    }
+
+    /**
+     * @return true if the buffer holds a whole packet which answers the last
+     *         request we wrote, anything else should be ignored
+     */
+    public boolean isResponseToRequest()
+    {
+        return isResponseTo(mSentTimeStamp);
+    }
+
+    /**
+     * @param sentTimeStamp
+     *            from {@link #getSentTimeStamp()} when the request was written
+     * @return true if the buffer holds a whole packet which answers that
+     *         request. A late reply to an earlier request, or a spoofed one,
+     *         won't echo it back.
+     */
+    public boolean isResponseTo(long sentTimeStamp)
+    {
+        return mBuffer.position() >= SIZE
+                && mBuffer.getLong(ORIGINATE_TIME_OFFSET) == sentTimeStamp;
+    }
+
+    /**
+     * Throws if the response isn't a usable answer from a synchronised
+     * server.
+     *
+     * @throws KissOfDeathException
+     *             if the server is telling us to slow down or go away
+     */
+    public void checkValidServerReply() throws IOException
+    {
+        final int leap = getLeapIndicator();
+        final int mode = getMode();
+        final int stratum = getStratum();
+        if (mode != MODE_SERVER && mode != MODE_BROADCAST)
+            throw new IOException("untrusted mode: " + mode);
+        // Kiss-o'-death packets are unsynchronized too, check them first
+        if (stratum == STRATUM_DEATH) throw new KissOfDeathException(getReferenceId());
+        if (leap == LEAP_NOSYNC) throw new IOException("unsynchronized server");
+        if (stratum > STRATUM_MAX) throw new IOException("untrusted stratum: " + stratum);
+        if (mBuffer.getLong(TRANSMIT_TIME_OFFSET) == 0) throw new IOException("zero transmitTime");
+    }
+
+    /**
+     * Works out the results from the response in the buffer, read them with
+     * the getters.
+     *
+     * @param requestTime
+     *            system time the request was sent at
+     * @param requestTicks
+     *            {@link SystemClock#elapsedRealtime()} the request was sent at
+     * @param responseTicks
+     *            {@link SystemClock#elapsedRealtime()} the response came back
+     *            at
+     */
+    public void decodeResponse(long requestTime, long requestTicks, long responseTicks)
+    {
+        final long responseTime = requestTime + (responseTicks - requestTicks);
+
+        final long originateTime = getOriginateTime();
+        final long receiveTime = getReceiveTime();
+        final long transmitTime = getTransmitTime();
+        mRoundTripTime = responseTicks - requestTicks - (transmitTime - receiveTime);
+        // receiveTime = originateTime + transit + skew
+        // responseTime = transmitTime + transit - skew
+        // clockOffset = ((receiveTime - originateTime) + (transmitTime -
+        // responseTime))/2
+        // = ((originateTime + transit + skew - originateTime) +
+        // (transmitTime - (transmitTime + transit - skew)))/2
+        // = ((transit + skew) + (transmitTime - transmitTime - transit +
+        // skew))/2
+        // = (transit + skew - transit + skew)/2
+        // = (2 * skew)/2 = skew
+        mClockOffset = ((receiveTime - originateTime) + (transmitTime - responseTime)) / 2;
+        // Worst case error: half the round trip (we don't know which way was
+        // slower) plus how far the server itself may be off
+        mDispersion = Math.max(mRoundTripTime, 0) / 2 + getRootDelay() / 2 + getRootDispersion();
+
+        // use the times on this side of the network latency
+        // (response rather than request time)
+        mNtpTime = responseTime + mClockOffset;
+        mNtpTimeReference = responseTicks;
+    }
+
+    /**
+     * @return the last decoded results as a sample, allocates
+     */
+    public TimeSample toTimeSample()
+    {
+        return new TimeSample(mNtpTime, mNtpTimeReference, mRoundTripTime, mClockOffset,
+                mDispersion);
+    }
+
+    public long getNtpTime()
+    {
+        return mNtpTime;
+    }
+
+    public long getNtpTimeReference()
+    {
+        return mNtpTimeReference;
+    }
+
+    public long getRoundTripTime()
+    {
+        return mRoundTripTime;
+    }
+
+    public long getClockOffset()
+    {
+        return mClockOffset;
+    }
+
+    public long getDispersion()
+    {
+        return mDispersion;
+    }
+
+    /**
+     * @return 0-2 leap second warning, 3 the server isn't synchronised
+     */
+    public int getLeapIndicator()
+    {
+        return (mBuffer.get(0) >> 6) & 0x3;
+    }
+
+    public int getVersion()
+    {
+        return (mBuffer.get(0) >> 3) & 0x7;
+    }
+
+    public int getMode()
+    {
+        return mBuffer.get(0) & 0x7;
+    }
+
+    /**
+     * @return 1 primary server, 2-15 secondary, 0 kiss-o'-death
+     */
+    public int getStratum()
+    {
+        return mBuffer.get(1) & 0xff;
+    }
+
+    /**
+     * @return log2 of the max poll interval in seconds the server suggests
+     */
+    public int getPoll()
+    {
+        return mBuffer.get(2);
+    }
+
+    /**
+     * @return log2 of the server clock precision in seconds, i.e. -20 is about
+     *         a microsecond
+     */
+    public int getPrecision()
+    {
+        return mBuffer.get(3);
+    }
+
+    /**
+     * @return round trip to the primary reference source, in milliseconds
+     */
+    public long getRootDelay()
+    {
+        return readShortFormat(ROOT_DELAY_OFFSET);
+    }
+
+    /**
+     * @return max error relative to the primary reference source, in
+     *         milliseconds
+     */
+    public long getRootDispersion()
+    {
+        return readShortFormat(ROOT_DISPERSION_OFFSET);
+    }
+
+    /**
+     * @return reference id, four ASCII characters packed big endian for
+     *         stratum 0 and 1 (i.e. the kiss code), an address for the rest
+     */
+    public int getReferenceId()
+    {
+        return mBuffer.getInt(REFERENCE_ID_OFFSET);
+    }
+
+    public long getReferenceTime()
+    {
+        return readTimeStamp(REFERENCE_TIME_OFFSET);
+    }
+
+    public long getOriginateTime()
+    {
+        return readTimeStamp(ORIGINATE_TIME_OFFSET);
+    }
+
+    public long getReceiveTime()
+    {
+        return readTimeStamp(RECEIVE_TIME_OFFSET);
+    }
+
+    public long getTransmitTime()
+    {
+        return readTimeStamp(TRANSMIT_TIME_OFFSET);
+    }
+
+    /**
+     * Reads an NTP short format (16.16 seconds) value at the given offset and
+     * returns it in milliseconds.
+     */
+    private long readShortFormat(int offset)
+    {
+        return ((mBuffer.getInt(offset) & 0xFFFFFFFFL) * 1000L) >>> 16;
+    }
+
+    /**
+     * Reads the NTP time stamp at the given offset in the buffer and returns it
+     * as a system time (milliseconds since January 1, 1970).
+     */
+    private long readTimeStamp(int offset)
+    {
+        final long seconds = mBuffer.getInt(offset) & 0xFFFFFFFFL;
+        final long fraction = mBuffer.getInt(offset + 4) & 0xFFFFFFFFL;
+        return ((seconds - OFFSET_1900_TO_1970) * 1000) + ((fraction * 1000L) >>> 32);
+    }
+
+    /**
+     * Converts system time (milliseconds since January 1, 1970) to a raw NTP
+     * time stamp, with the low 22 bits random so replies can't be guessed.
+     */
+    private long toTimeStamp(long time)
+    {
+        long seconds = time / 1000L;
+        final long milliseconds = time - seconds * 1000L;
+        seconds += OFFSET_1900_TO_1970;
+        final long fraction = milliseconds * 0x100000000L / 1000L;
+
+        // xorshift64
+        mRandom ^= mRandom << 13;
+        mRandom ^= mRandom >>> 7;
+        mRandom ^= mRandom << 17;
+
+        // Still reads as the same millisecond
+        return (seconds << 32) | (fraction + (mRandom & RANDOM_BITS));
+    }
+}
@@ -0,0 +1,182 @@
+package com.jenxsol.timelock.utils;
+
+/**
+ * Works out how long to wait before asking a time server again, the simple
+ * version of ntpd's poll interval.
+ * <ul>
+ * <li>Polls are 2^poll seconds apart. Each good sample is compared with the
+ * last one to see how fast {@link android.os.SystemClock#elapsedRealtime()}
+ * is drifting, as that's what {@link TrustedClock} counts on between syncs
+ * (the wall clock doesn't matter, the user or the network can set it). If
+ * that drift over the next interval (plus the sample's own error) stays well
+ * inside the error budget a few times running, the interval doubles. If it
+ * gets near the budget it halves, and if it's past the budget (i.e. the server
+ * stepped) it drops straight back to the minimum.</li>
+ * <li>Failures back off exponentially, starting at {@link #BACKOFF_MIN} and
+ * never waiting longer than the poll interval.</li>
+ * <li>A RATE kiss-o'-death doubles the interval, DENY and RSTR stop polling.
+ * </li>
+ * </ul>
+ * <p>
+ * Only looks at the samples, never at a clock, so feeding it the same
+ * sequence always gives the same delays. Not thread safe.
+ * </p>
+ */
+public class PollPolicy
+{
+
+    /**
+     * 2^10 seconds, about 17 minutes.
+     */
+    public static final int MIN_POLL = 10;
+    /**
+     * 2^16 seconds, about 18 hours, inside the default
+     * {@link TrustedClock#DEFAULT_TTL}.
+     */
+    public static final int MAX_POLL = 16;
+
+    /**
+     * {@link #MIN_POLL} in millis.
+     */
+    public static final long MIN_POLL_INTERVAL = (1L << MIN_POLL) * 1000L;
+
+    public static final long BACKOFF_MIN = 30 * 1000;
+
+    public static final long DEFAULT_BUDGET = 5 * 1000;
+
+    /**
+     * Good samples in a row needed before the interval is doubled.
+     */
+    private static final int HITS_TO_LENGTHEN = 3;
+
+    private final long mBudget;
+    private final int mMinPoll;
+    private final int mMaxPoll;
+
+    private int mPoll;
+    private int mHits;
+    private int mFailures;
+    private TimeSample mLast;
+
+    public PollPolicy()
+    {
+        this(DEFAULT_BUDGET, MIN_POLL, MAX_POLL);
+    }
+
+    /**
+     * @param budget
+     *            error in millis we are happy to drift by between polls
+     * @param minPoll
+     *            log2 of the shortest interval in seconds
+     * @param maxPoll
+     *            log2 of the longest interval in seconds
+     */
+    public PollPolicy(long budget, int minPoll, int maxPoll)
+    {
+        if (minPoll < 0 || maxPoll < minPoll || maxPoll > 30)
+            throw new IllegalArgumentException("Bad poll range " + minPoll + "-" + maxPoll);
+        mBudget = budget;
+        mMinPoll = minPoll;
+        mMaxPoll = maxPoll;
+        mPoll = minPoll;
+    }
+
+    /**
+     * @return current interval in millis
+     */
+    public long getInterval()
+    {
+        return (1L << mPoll) * 1000L;
+    }
+
+    /**
+     * @return log2 of the current interval in seconds
+     */
+    public int getPoll()
+    {
+        return mPoll;
+    }
+
+    /**
+     * @param sample
+     *            the new sample
+     * @return millis until the next poll
+     */
+    public long onSuccess(TimeSample sample)
+    {
+        mFailures = 0;
+        final TimeSample last = mLast;
+        mLast = sample;
+        if (null == last) return getInterval();
+
+        final long span = sample.getNtpTimeReference() - last.getNtpTimeReference();
+        if (span <= 0) return getInterval();
+        // Server time at elapsed 0 by each sample, it only moves as much as
+        // the elapsed clock drifted in between
+        final long moved = Math.abs((sample.getNtpTime() - sample.getNtpTimeReference())
+                - (last.getNtpTime() - last.getNtpTimeReference()));
+        if (moved > mBudget)
+        {
+            // Not drift, the server stepped (or one of them is wrong). Keep
+            // a close eye on it.
+            mPoll = mMinPoll;
+            mHits = 0;
+            return getInterval();
+        }
+
+        final long dispersion = Math.max(sample.getDispersion(), 0);
+        // Error we'd have built up by the next poll if we wait twice as long
+        if (project(moved, span, getInterval() * 2) + dispersion <= mBudget / 2)
+        {
+            if (++mHits >= HITS_TO_LENGTHEN && mPoll < mMaxPoll)
+            {
+                mPoll++;
+                mHits = 0;
+            }
+        }
+        else
+        {
+            mHits = 0;
+            // Even the current interval is cutting it fine
+            if (project(moved, span, getInterval()) + dispersion > mBudget && mPoll > mMinPoll)
+                mPoll--;
+        }
+        return getInterval();
+    }
+
+    /**
+     * @return moved * interval / span without overflowing
+     */
+    private static long project(long moved, long span, long interval)
+    {
+        return moved * (interval / span) + moved * (interval % span) / span;
+    }
+
+    /**
+     * @return millis until the next try
+     */
+    public long onFailure()
+    {
+        mHits = 0;
+        final int shift = Math.min(mFailures++, 30);
+        final long backoff = BACKOFF_MIN << shift;
+        return backoff > 0 ? Math.min(backoff, getInterval()) : getInterval();
+    }
+
+    /**
+     * @param e
+     *            what the server said
+     * @return millis until the next try, or -1 to give up on this server
+     */
+    public long onKissOfDeath(KissOfDeathException e)
+    {
+        if (e.isDenied()) return -1;
+        if (e.isRateLimit())
+        {
+            mHits = 0;
+            if (mPoll < mMaxPoll) mPoll++;
+            return getInterval();
+        }
+        return onFailure();
+    }
+}
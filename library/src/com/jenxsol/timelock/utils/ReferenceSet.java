@@ -1,6 +1,7 @@
 package com.jenxsol.timelock.utils;
 
 import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.HashSet;
@@ -15,6 +16,12 @@ public abstract class ReferenceSet<T extends Object> extends AbstractSet<T>
 
     private final HashSet<Reference<T>> contents;
 
+    /**
+     * The GC queues our references here once they are cleared, so dead
+     * entries can be dropped without walking the set.
+     */
+    private final ReferenceQueue<T> queue = new ReferenceQueue<T>();
+
     /**
      * Get an instance of ReferenceSet.
      */
@@ -72,9 +79,10 @@ public abstract class ReferenceSet<T extends Object> extends AbstractSet<T>
     {
         boolean rv = false;
 
-        if (!contains(o))
+        purge();
+        if (o != null && !contains(o))
         {
-            contents.add(getReference(o));
+            contents.add(getReference(o, queue));
             rv = true;
         }
 
@@ -82,20 +90,63 @@ public abstract class ReferenceSet<T extends Object> extends AbstractSet<T>
     }
 
     /**
-     * Get the current size of the Set. This is not an entirely cheap operation,
-     * as it walks the entire iterator to make sure all entries are still valid
-     * references.
+     * Hashed lookup, doesn't walk the set.
+     */
+    @Override
+    public boolean contains(Object o)
+    {
+        if (o == null)
+        {
+            return false;
+        }
+        return contents.contains(new Lookup(o));
+    }
+
+    /**
+     * Hashed remove, doesn't walk the set.
+     */
+    @Override
+    public boolean remove(Object o)
+    {
+        purge();
+        if (o == null)
+        {
+            return false;
+        }
+        return contents.remove(new Lookup(o));
+    }
+
+    @Override
+    public void clear()
+    {
+        contents.clear();
+        purge();
+    }
+
+    /**
+     * Get the current size of the Set. Cleared references are dropped first,
+     * so this is cheap. It can still count an object the GC has collected but
+     * not yet queued.
      */
     @Override
     public int size()
     {
-        int rv = 0;
-        for (Iterator<T> i = iterator(); i.hasNext();)
+        purge();
+        return (contents.size());
+    }
+
+    /**
+     * Drops every reference the GC has queued since we last looked.
+     */
+    private void purge()
+    {
+        Reference<? extends T> ref;
+        while ((ref = queue.poll()) != null)
         {
-            i.next();
-            rv++;
+            // Hash is fixed and the backing map matches on identity first, so
+            // this finds the entry even though the referent is gone
+            contents.remove(ref);
         }
-        return (rv);
     }
 
     /**
@@ -118,16 +169,54 @@ public abstract class ReferenceSet<T extends Object> extends AbstractSet<T>
      * Unfortunately, java doesn't give me a way to enforce this in the language
      * (i.e. at compile time), but subclasses of ReferenceSet must implement
      * hashCode() and equals() in such a way that they return what the
-     * referenced object would return if the object were not a reference. If the
-     * reference has disappeared, equals() should return false, and hashCode
-     * should return 0.
+     * referenced object would return if the object were not a reference. The
+     * hashCode must be taken when the reference is created and not change
+     * afterwards, otherwise dead references end up in the wrong bucket. If the
+     * reference has disappeared, equals() should return false.
      * </p>
      * 
      * @param o
      *            an object
+     * @param q
+     *            queue the reference must be registered with
      * @return a reference to that object
      */
-    protected abstract Reference<T> getReference(T o);
+    protected abstract Reference<T> getReference(T o, ReferenceQueue<? super T> q);
+
+    /**
+     * Probe used to look up the reference to an object without creating a new
+     * reference. The backing set calls equals() on this with each candidate
+     * reference.
+     */
+    static final class Lookup
+    {
+
+        private final Object target;
+        private final int hash;
+
+        Lookup(Object target)
+        {
+            this.target = target;
+            this.hash = target.hashCode();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Reference<?>))
+            {
+                return false;
+            }
+            Object other = ((Reference<?>) o).get();
+            return other != null && (other == target || target.equals(other));
+        }
+    }
 
     static class ReferenceIterator<T> extends Object implements Iterator<T>
     {
@@ -0,0 +1,458 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.jenxsol.timelock.BuildConfig;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Authenticated time in one round trip, from a Roughtime server (the original
+ * Google protocol). Unlike SNTP the answer is signed by the server, and covers
+ * a nonce we chose, so it can't be faked or replayed by anyone in between.
+ * <p>
+ * Requests are batched: callers that ask while a request is out wait for it
+ * to finish, then all go in the next one together. Their nonces go into a
+ * Merkle tree and only the root is sent, so however many are waiting it's one
+ * packet, one reply and one signature check. The server's long term key is
+ * parsed once, and its delegation certificate is only checked again when it
+ * changes, so usually a reply costs a single Ed25519 check.
+ * </p>
+ * <p>
+ * Thread safe. Blocks, don't call it on the main thread.
+ * </p>
+ *
+ * <pre>
+ * RoughtimeClient client = new RoughtimeClient("roughtime.example.com", serverPublicKey);
+ * TimeLock.get(ctx).updateTime(client.getTime(5000));
+ * </pre>
+ */
+public class RoughtimeClient implements TimeSource
+{
+    private static final String TAG = "timelock";
+
+    public static final int DEFAULT_PORT = 2002;
+
+    public static final int NONCE_SIZE = 64;
+
+    /**
+     * Servers ignore anything smaller, so replies can't be used for
+     * amplification.
+     */
+    private static final int REQUEST_SIZE = 1024;
+
+    private static final int MAX_RESPONSE_SIZE = 2048;
+
+    private static final int HASH_SIZE = 64;
+
+    private static final byte[] RESPONSE_CONTEXT = ascii("RoughTime v1 response signature\0");
+    private static final byte[] DELEGATION_CONTEXT = ascii("RoughTime v1 delegation signature--\0");
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private final String mHost;
+    private final int mPort;
+    private final byte[] mRootKeyBytes;
+    private final Ed25519.Point mRootKey;
+
+    /**
+     * Callers waiting for the next request, under this.
+     */
+    private final ArrayList<Waiter> mQueue = new ArrayList<Waiter>();
+    private boolean mSending;
+
+    // Only used by whoever is sending, so one at a time
+    private final byte[] mRequest = new byte[REQUEST_SIZE];
+    private final byte[] mResponse = new byte[MAX_RESPONSE_SIZE];
+    private MessageDigest mDigest;
+
+    /**
+     * Last delegation we checked.
+     */
+    private volatile Delegation mDelegation;
+
+    /**
+     * @param host
+     *            server, looked up through {@link DnsCache}
+     * @param publicKey
+     *            server's 32 byte Ed25519 long term key
+     * @throws IllegalArgumentException
+     *             if it isn't a key
+     */
+    public RoughtimeClient(String host, byte[] publicKey)
+    {
+        this(host, DEFAULT_PORT, publicKey);
+    }
+
+    public RoughtimeClient(String host, int port, byte[] publicKey)
+    {
+        mHost = host;
+        mPort = port;
+        mRootKey = Ed25519.decode(publicKey);
+        if (null == mRootKey) throw new IllegalArgumentException("Not an Ed25519 public key");
+        mRootKeyBytes = publicKey.clone();
+    }
+
+    /**
+     * Same as {@link #requestSample(byte[], int)} with a random nonce.
+     */
+    @Override
+    public TimeSample getTime(int timeout) throws IOException
+    {
+        return requestSample(null, timeout);
+    }
+
+    /**
+     * Gets the time, going in with whoever else is asking.
+     *
+     * @param nonce
+     *            64 bytes that the signed reply has to cover, i.e. from a
+     *            server that wants proof of when we asked. Null for random.
+     * @param timeout
+     *            millis
+     * @return the time, dispersion is the server's radius plus half the round
+     *         trip
+     * @throws IOException
+     *             if no good reply came in time
+     */
+    public TimeSample requestSample(byte[] nonce, int timeout) throws IOException
+    {
+        if (null == nonce)
+        {
+            nonce = new byte[NONCE_SIZE];
+            sRandom.nextBytes(nonce);
+        }
+        else if (nonce.length != NONCE_SIZE)
+        {
+            throw new IllegalArgumentException("Nonce must be " + NONCE_SIZE + " bytes");
+        }
+        final long deadline = SystemClock.elapsedRealtime() + timeout;
+        final Waiter w = new Waiter(nonce);
+        final Waiter[] batch;
+        synchronized (this)
+        {
+            mQueue.add(w);
+            while (mSending && !w.done)
+            {
+                final long left = deadline - SystemClock.elapsedRealtime();
+                if (left <= 0)
+                {
+                    // If we're in the batch going now, it just goes without us
+                    mQueue.remove(w);
+                    throw new SocketTimeoutException("Roughtime timed out");
+                }
+                try
+                {
+                    wait(left);
+                }
+                catch (InterruptedException e)
+                {
+                    mQueue.remove(w);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (w.done) return w.getSample();
+            // Our turn, take everyone waiting with us
+            mSending = true;
+            batch = mQueue.toArray(new Waiter[mQueue.size()]);
+            mQueue.clear();
+        }
+
+        TimeSample sample = null;
+        IOException error = new IOException("Roughtime failed");
+        try
+        {
+            sample = exchange(batch, (int) Math.max(deadline - SystemClock.elapsedRealtime(), 1));
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                for (final Waiter b : batch)
+                {
+                    b.sample = sample;
+                    b.error = error;
+                    b.done = true;
+                }
+                mSending = false;
+                notifyAll();
+            }
+        }
+        return w.getSample();
+    }
+
+    @Override
+    public String getName()
+    {
+        return "roughtime:" + mHost;
+    }
+
+    /**
+     * One round trip for the whole batch.
+     */
+    private TimeSample exchange(Waiter[] batch, int timeout) throws IOException
+    {
+        final long deadline = SystemClock.elapsedRealtime() + timeout;
+        if (null == mDigest) mDigest = sha512();
+        final byte[] nonce = batch.length == 1 ? batch[0].nonce : batchRoot(batch);
+        if (BuildConfig.DEBUG && batch.length > 1)
+            Log.d(TAG, "roughtime batch of " + batch.length);
+
+        RoughtimeMessage.writeRequest(mRequest, nonce);
+        final InetAddress address = DnsCache.getDefault().lookup(mHost);
+        final DatagramSocket socket = new DatagramSocket();
+        String rejected = null;
+        try
+        {
+            final DatagramPacket response = new DatagramPacket(mResponse, mResponse.length);
+            final long requestTicks = SystemClock.elapsedRealtime();
+            socket.send(new DatagramPacket(mRequest, mRequest.length, address, mPort));
+            while (true)
+            {
+                final long left = deadline - SystemClock.elapsedRealtime();
+                if (left <= 0) throw timeout(rejected);
+                socket.setSoTimeout((int) left);
+                try
+                {
+                    socket.receive(response);
+                }
+                catch (SocketTimeoutException e)
+                {
+                    throw timeout(rejected);
+                }
+                final long responseTicks = SystemClock.elapsedRealtime();
+                final long local = System.currentTimeMillis();
+                if (!address.equals(response.getAddress()) || response.getPort() != mPort) continue;
+                try
+                {
+                    return verify(nonce, response.getLength(), responseTicks - requestTicks,
+                            responseTicks, local);
+                }
+                catch (IOException e)
+                {
+                    // Could be a late reply to an old request, or forged, keep
+                    // waiting for ours
+                    rejected = e.getMessage();
+                    if (BuildConfig.DEBUG) Log.d(TAG, "roughtime reply rejected: " + rejected);
+                }
+            }
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    /**
+     * Checks the reply in mResponse covers our nonce and is signed by the
+     * server, cheapest checks first.
+     */
+    private TimeSample verify(byte[] nonce, int length, long roundTrip, long responseTicks,
+            long local) throws IOException
+    {
+        final RoughtimeMessage msg = RoughtimeMessage.parse(mResponse, 0, length);
+        final byte[] signature = msg.getBytes(RoughtimeMessage.SIG, Ed25519.SIGNATURE_SIZE);
+        final byte[] signed = msg.getBytes(RoughtimeMessage.SREP);
+        final RoughtimeMessage srep = RoughtimeMessage.parse(signed, 0, signed.length);
+        final byte[] root = srep.getBytes(RoughtimeMessage.ROOT, HASH_SIZE);
+        final long midpoint = srep.getLong(RoughtimeMessage.MIDP);
+        final long radius = srep.getInt(RoughtimeMessage.RADI) & 0xffffffffL;
+
+        // Our nonce has to be in the tree the server signed
+        final byte[] path = msg.getBytes(RoughtimeMessage.PATH);
+        final int index = msg.getInt(RoughtimeMessage.INDX);
+        if (!Arrays.equals(pathRoot(nonce, index, path), root))
+            throw new IOException("Not a reply to our request");
+
+        final Delegation d = getDelegation(msg.getBytes(RoughtimeMessage.CERT));
+        if (midpoint < d.minTime || midpoint > d.maxTime)
+            throw new IOException("Time outside the delegation");
+        if (!Ed25519.verify(d.key, d.keyBytes, RESPONSE_CONTEXT, signed, signature, mDigest))
+            throw new IOException("Bad response signature");
+
+        // Microseconds, the midpoint is somewhere in our round trip
+        final long time = midpoint / 1000 + roundTrip / 2;
+        return new TimeSample(time, responseTicks, roundTrip, time - local,
+                radius / 1000 + roundTrip / 2 + 1);
+    }
+
+    /**
+     * @return the delegated key, only checked against the long term key if
+     *         it's a different certificate from last time
+     */
+    private Delegation getDelegation(byte[] cert) throws IOException
+    {
+        final Delegation last = mDelegation;
+        if (null != last && Arrays.equals(last.cert, cert)) return last;
+
+        final RoughtimeMessage msg = RoughtimeMessage.parse(cert, 0, cert.length);
+        final byte[] signature = msg.getBytes(RoughtimeMessage.SIG, Ed25519.SIGNATURE_SIZE);
+        final byte[] signed = msg.getBytes(RoughtimeMessage.DELE);
+        if (!Ed25519.verify(mRootKey, mRootKeyBytes, DELEGATION_CONTEXT, signed, signature,
+                mDigest)) throw new IOException("Bad delegation signature");
+        final RoughtimeMessage dele = RoughtimeMessage.parse(signed, 0, signed.length);
+        final byte[] keyBytes = dele.getBytes(RoughtimeMessage.PUBK, Ed25519.KEY_SIZE);
+        final Ed25519.Point key = Ed25519.decode(keyBytes);
+        if (null == key) throw new IOException("Bad delegated key");
+        final Delegation d = new Delegation(cert, keyBytes, key,
+                dele.getLong(RoughtimeMessage.MINT), dele.getLong(RoughtimeMessage.MAXT));
+        mDelegation = d;
+        return d;
+    }
+
+    /**
+     * Hashes up the server's tree from our leaf.
+     */
+    private byte[] pathRoot(byte[] nonce, int index, byte[] path) throws IOException
+    {
+        if (path.length % HASH_SIZE != 0) throw new IOException("Bad PATH");
+        byte[] hash = leaf(nonce);
+        for (int i = 0; i < path.length; i += HASH_SIZE)
+        {
+            mDigest.reset();
+            mDigest.update((byte) 1);
+            if ((index & 1) == 0)
+            {
+                mDigest.update(hash);
+                mDigest.update(path, i, HASH_SIZE);
+            }
+            else
+            {
+                mDigest.update(path, i, HASH_SIZE);
+                mDigest.update(hash);
+            }
+            hash = mDigest.digest();
+            index >>>= 1;
+        }
+        if (index != 0) throw new IOException("Bad INDX");
+        return hash;
+    }
+
+    /**
+     * Our own tree over the batch's nonces, the same hashing as the server's.
+     * An odd node out goes up a level as it is. The root goes as the nonce, and
+     * commits to every one of them.
+     */
+    private byte[] batchRoot(Waiter[] batch)
+    {
+        byte[][] level = new byte[batch.length][];
+        for (int i = 0; i < batch.length; i++)
+        {
+            level[i] = leaf(batch[i].nonce);
+        }
+        while (level.length > 1)
+        {
+            final byte[][] up = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < up.length; i++)
+            {
+                if (2 * i + 1 == level.length)
+                {
+                    up[i] = level[2 * i];
+                    continue;
+                }
+                mDigest.reset();
+                mDigest.update((byte) 1);
+                mDigest.update(level[2 * i]);
+                mDigest.update(level[2 * i + 1]);
+                up[i] = mDigest.digest();
+            }
+            level = up;
+        }
+        return level[0];
+    }
+
+    private byte[] leaf(byte[] nonce)
+    {
+        mDigest.reset();
+        mDigest.update((byte) 0);
+        mDigest.update(nonce);
+        return mDigest.digest();
+    }
+
+    private static IOException timeout(String rejected)
+    {
+        if (null == rejected) return new SocketTimeoutException("Roughtime timed out");
+        return new SocketTimeoutException("Roughtime timed out, last reply: " + rejected);
+    }
+
+    private static MessageDigest sha512() throws IOException
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-512");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("No SHA-512");
+        }
+    }
+
+    private static byte[] ascii(String s)
+    {
+        final byte[] rv = new byte[s.length()];
+        for (int i = 0; i < rv.length; i++)
+        {
+            rv[i] = (byte) s.charAt(i);
+        }
+        return rv;
+    }
+
+    /**
+     * Someone asking for the time, under the client's lock.
+     */
+    private static final class Waiter
+    {
+        final byte[] nonce;
+        boolean done;
+        TimeSample sample;
+        IOException error;
+
+        Waiter(byte[] nonce)
+        {
+            this.nonce = nonce;
+        }
+
+        TimeSample getSample() throws IOException
+        {
+            if (null != sample) return sample;
+            throw error;
+        }
+    }
+
+    /**
+     * Checked delegation certificate. Immutable.
+     */
+    private static final class Delegation
+    {
+        final byte[] cert;
+        final byte[] keyBytes;
+        final Ed25519.Point key;
+        final long minTime;
+        final long maxTime;
+
+        Delegation(byte[] cert, byte[] keyBytes, Ed25519.Point key, long minTime, long maxTime)
+        {
+            this.cert = cert;
+            this.keyBytes = keyBytes;
+            this.key = key;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+
+/**
+ * Roughtime message: a tag/value map, all little endian.
+ *
+ * <pre>
+ * uint32 number of tags (n)
+ * uint32 offsets[n - 1]  where values 1.. start, from the end of the header
+ * uint32 tags[n]         ascending
+ * values, each a multiple of 4 bytes
+ * </pre>
+ *
+ * Parsing only records where the values are, nothing is copied until asked
+ * for.
+ */
+final class RoughtimeMessage
+{
+
+    static final int SIG = tag("SIG\0");
+    static final int NONC = tag("NONC");
+    static final int PAD = tag("PAD\u00ff");
+    static final int PATH = tag("PATH");
+    static final int SREP = tag("SREP");
+    static final int CERT = tag("CERT");
+    static final int INDX = tag("INDX");
+    static final int ROOT = tag("ROOT");
+    static final int MIDP = tag("MIDP");
+    static final int RADI = tag("RADI");
+    static final int DELE = tag("DELE");
+    static final int PUBK = tag("PUBK");
+    static final int MINT = tag("MINT");
+    static final int MAXT = tag("MAXT");
+
+    private final byte[] mBuffer;
+    private final int[] mTags;
+    private final int[] mStarts;
+    private final int[] mEnds;
+
+    private RoughtimeMessage(byte[] buffer, int[] tags, int[] starts, int[] ends)
+    {
+        mBuffer = buffer;
+        mTags = tags;
+        mStarts = starts;
+        mEnds = ends;
+    }
+
+    /**
+     * @return the message, which refers to the buffer, so don't change it
+     * @throws IOException
+     *             if it's malformed
+     */
+    static RoughtimeMessage parse(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (length < 4 || (length & 3) != 0) throw new IOException("Bad message length");
+        final long n = readInt(buffer, offset) & 0xffffffffL;
+        final long header = n == 0 ? 4 : 8 * n;
+        if (header > length) throw new IOException("Bad tag count");
+        final int count = (int) n;
+        final int values = offset + (int) header;
+        final int valuesLength = length - (int) header;
+        final int[] tags = new int[count];
+        final int[] starts = new int[count];
+        final int[] ends = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            tags[i] = readInt(buffer, offset + 4 * count + 4 * i);
+            if (i > 0 && (tags[i] ^ 0x80000000) <= (tags[i - 1] ^ 0x80000000))
+                throw new IOException("Tags out of order");
+            if (i > 0)
+            {
+                final long start = readInt(buffer, offset + 4 * i) & 0xffffffffL;
+                if ((start & 3) != 0 || start > valuesLength || start < starts[i - 1])
+                    throw new IOException("Bad offset");
+                starts[i] = (int) start;
+                ends[i - 1] = (int) start;
+            }
+        }
+        for (int i = 0; i < count; i++)
+        {
+            starts[i] += values;
+            ends[i] = (i < count - 1 ? ends[i] : valuesLength) + values;
+        }
+        return new RoughtimeMessage(buffer, tags, starts, ends);
+    }
+
+    /**
+     * Writes a request: the nonce, padded out to the size.
+     */
+    static void writeRequest(byte[] out, byte[] nonce)
+    {
+        // Two tags, one offset, then the nonce and the padding
+        writeInt(out, 0, 2);
+        writeInt(out, 4, nonce.length);
+        writeInt(out, 8, NONC);
+        writeInt(out, 12, PAD);
+        System.arraycopy(nonce, 0, out, 16, nonce.length);
+        for (int i = 16 + nonce.length; i < out.length; i++)
+        {
+            out[i] = 0;
+        }
+    }
+
+    /**
+     * @return a copy of the value
+     * @throws IOException
+     *             if it isn't there
+     */
+    byte[] getBytes(int tag) throws IOException
+    {
+        final int i = indexOf(tag);
+        final byte[] rv = new byte[mEnds[i] - mStarts[i]];
+        System.arraycopy(mBuffer, mStarts[i], rv, 0, rv.length);
+        return rv;
+    }
+
+    /**
+     * @return a copy of the value
+     * @throws IOException
+     *             if it isn't there or isn't that size
+     */
+    byte[] getBytes(int tag, int size) throws IOException
+    {
+        final byte[] rv = getBytes(tag);
+        if (rv.length != size) throw new IOException("Bad " + name(tag));
+        return rv;
+    }
+
+    int getInt(int tag) throws IOException
+    {
+        final int i = indexOf(tag);
+        if (mEnds[i] - mStarts[i] != 4) throw new IOException("Bad " + name(tag));
+        return readInt(mBuffer, mStarts[i]);
+    }
+
+    long getLong(int tag) throws IOException
+    {
+        final int i = indexOf(tag);
+        if (mEnds[i] - mStarts[i] != 8) throw new IOException("Bad " + name(tag));
+        return (readInt(mBuffer, mStarts[i]) & 0xffffffffL)
+                | ((long) readInt(mBuffer, mStarts[i] + 4) << 32);
+    }
+
+    private int indexOf(int tag) throws IOException
+    {
+        for (int i = 0; i < mTags.length; i++)
+        {
+            if (mTags[i] == tag) return i;
+        }
+        throw new IOException("No " + name(tag));
+    }
+
+    static int readInt(byte[] b, int offset)
+    {
+        return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16
+                | (b[offset + 3] & 0xff) << 24;
+    }
+
+    static void writeInt(byte[] b, int offset, int value)
+    {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+        b[offset + 2] = (byte) (value >> 16);
+        b[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static int tag(String name)
+    {
+        return name.charAt(0) | name.charAt(1) << 8 | name.charAt(2) << 16 | name.charAt(3) << 24;
+    }
+
+    private static String name(int tag)
+    {
+        final char[] c = new char[4];
+        for (int i = 0; i < 4; i++)
+        {
+            final int ch = (tag >> (8 * i)) & 0xff;
+            c[i] = ch >= 0x20 && ch < 0x7f ? (char) ch : '?';
+        }
+        return new String(c);
+    }
+}
@@ -0,0 +1,506 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+import android.os.SystemClock;
+
+/**
+ * TimeLock state shared by every process of the app through one small memory
+ * mapped file, so a {@code :remote} service doesn't have to work out the build
+ * date or sync the time again, and one process expiring is seen by the rest
+ * straight away.
+ * <p>
+ * Fixed layout, big endian:
+ * </p>
+ *
+ * <pre>
+ *   0 int  magic 'TLst'      64 long high-water mark time
+ *   4 int  layout version    72 long high-water mark elapsed
+ *   8 long sequence          80 long expired at (wall deadline)
+ *  16 long boot id high      88 long apk stamp
+ *  24 long boot id low       96 long build time
+ *  32 long trusted time     104 .. reserved
+ *  40 long trusted elapsed  120 long checksum
+ *  48 long trusted dispersion
+ *  56 long boot time (wall clock estimate)
+ * </pre>
+ * <p>
+ * Readers never lock, it's a seqlock: writers make the sequence odd, write,
+ * then make it even again. A reader takes its copy between two reads of the
+ * same even sequence, and the checksum has to match too. Nothing orders the
+ * mapped reads and writes across processes, so those two are all that stop a
+ * reader using a write it only half saw. Writers take a {@link FileLock} (and
+ * a monitor, as file locks are per process). Elapsed times are
+ * {@link SystemClock#elapsedRealtime()}, the same in every process, and are
+ * dropped when the boot id changes. Without a boot id, the same as
+ * {@link TrustedClock}: when the wall clock estimate of the boot time moves.
+ * </p>
+ * <p>
+ * The build time and expired at belong to the APK that wrote them, both are
+ * cleared when it's replaced (so an update starts unexpired) and expired at
+ * is cleared on a new boot too.
+ * </p>
+ */
+public class SharedState
+{
+
+    public static final String FILE_NAME = "timelock.state";
+
+    public static final int SIZE = 128;
+
+    private static final int MAGIC = 0x544c7374;
+    private static final int VERSION = 1;
+
+    private static final int SEQUENCE = 8;
+    private static final int BOOT_ID_HI = 16;
+    private static final int BOOT_ID_LO = 24;
+    private static final int TRUSTED_TIME = 32;
+    private static final int TRUSTED_TICKS = 40;
+    private static final int TRUSTED_DISPERSION = 48;
+    private static final int BOOT_TIME = 56;
+    private static final int MARK_TIME = 64;
+    private static final int MARK_TICKS = 72;
+    private static final int EXPIRED_AT = 80;
+    private static final int APK_STAMP = 88;
+    private static final int BUILD_TIME = 96;
+    private static final int CHECKSUM = 120;
+
+    private static final int FIRST_FIELD = BOOT_ID_HI;
+
+    /**
+     * Goes round again this many times before giving up on a read.
+     */
+    private static final int READ_RETRIES = 64;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mMap;
+    private final long mApkStamp;
+    private final String mBootId;
+    private final long mBootTime;
+
+    /**
+     * Maps the file, creating it if needed. Do it off the main thread.
+     *
+     * @param file
+     *            i.e. {@code new File(ctx.getFilesDir(), FILE_NAME)}
+     * @param apkStamp
+     *            the running APK, see {@link #apkStamp(String)}
+     * @return the state
+     * @throws IOException
+     *             can't map it
+     */
+    public static SharedState open(File file, long apkStamp) throws IOException
+    {
+        return new SharedState(file, apkStamp, TrustedClock.readBootId(),
+                TrustedClock.bootTime());
+    }
+
+    /**
+     * For tests, to say which boot it is.
+     */
+    static SharedState open(File file, long apkStamp, String bootId, long bootTime)
+            throws IOException
+    {
+        return new SharedState(file, apkStamp, bootId, bootTime);
+    }
+
+    private SharedState(File file, long apkStamp, String bootId, long bootTime)
+            throws IOException
+    {
+        mApkStamp = apkStamp;
+        mBootId = bootId;
+        mBootTime = bootTime;
+        mFile = new RandomAccessFile(file, "rw");
+        try
+        {
+            mChannel = mFile.getChannel();
+            mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            mMap.order(ByteOrder.BIG_ENDIAN);
+            init();
+        }
+        catch (IOException e)
+        {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets up a new (or wrong version) file, forgets elapsed times and expiry
+     * from a previous boot, and anything the APK worked out if it's changed.
+     */
+    private void init() throws IOException
+    {
+        final String bootId = mBootId;
+        final long hi = null != bootId ? hash(bootId, 0) : 0;
+        final long lo = null != bootId ? hash(bootId, 1) : 0;
+        synchronized (this)
+        {
+            final FileLock lock = mChannel.lock(0, SIZE, false);
+            try
+            {
+                final boolean reset = mMap.getInt(0) != MAGIC || mMap.getInt(4) != VERSION
+                        || (mMap.getLong(SEQUENCE) & 1) != 0 || !checksumMatches();
+                if (reset)
+                {
+                    for (int i = 0; i < SIZE; i += 8)
+                    {
+                        mMap.putLong(i, 0);
+                    }
+                    mMap.putInt(0, MAGIC);
+                    mMap.putInt(4, VERSION);
+                }
+                final boolean newApk = reset || mMap.getLong(APK_STAMP) != mApkStamp;
+                // Without a boot id, a clock change can look like a reboot, all
+                // that costs is asking the network again
+                final boolean newBoot = reset
+                        || mMap.getLong(BOOT_ID_HI) != hi
+                        || mMap.getLong(BOOT_ID_LO) != lo
+                        || (null == bootId && Math.abs(mMap.getLong(BOOT_TIME) - mBootTime)
+                                > TrustedClock.BOOT_TIME_SLOP);
+                if (!newApk && !newBoot) return;
+                begin();
+                if (newApk)
+                {
+                    // Replaced, or updated: start unexpired
+                    mMap.putLong(APK_STAMP, mApkStamp);
+                    mMap.putLong(BUILD_TIME, 0);
+                    mMap.putLong(EXPIRED_AT, 0);
+                }
+                if (newBoot)
+                {
+                    mMap.putLong(BOOT_ID_HI, hi);
+                    mMap.putLong(BOOT_ID_LO, lo);
+                    mMap.putLong(BOOT_TIME, mBootTime);
+                    // New boot: the network time anchor means nothing now, the
+                    // mark is at least its time plus all of this boot
+                    mMap.putLong(TRUSTED_TIME, 0);
+                    mMap.putLong(TRUSTED_TICKS, 0);
+                    mMap.putLong(TRUSTED_DISPERSION, 0);
+                    mMap.putLong(MARK_TICKS, 0);
+                    mMap.putLong(EXPIRED_AT, 0);
+                }
+                end();
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * @return changes every write, cheap way to tell if anything is new
+     */
+    public long getSequence()
+    {
+        return mMap.getLong(SEQUENCE);
+    }
+
+    /**
+     * @param apkStamp
+     *            identifies the APK, see {@link #apkStamp(String)}
+     * @return build time for that APK, or -1
+     */
+    public long getBuildTime(long apkStamp)
+    {
+        final long[] v = new long[2];
+        if (!read(APK_STAMP, v, 2) || v[0] != apkStamp || v[1] <= 0) return -1;
+        return v[1];
+    }
+
+    /**
+     * Also clears expired at if the stamp isn't the one there before.
+     */
+    public void setBuildTime(long apkStamp, long buildTime)
+    {
+        synchronized (this)
+        {
+            FileLock lock = null;
+            try
+            {
+                lock = mChannel.lock(0, SIZE, false);
+                begin();
+                if (mMap.getLong(APK_STAMP) != apkStamp) mMap.putLong(EXPIRED_AT, 0);
+                mMap.putLong(APK_STAMP, apkStamp);
+                mMap.putLong(BUILD_TIME, buildTime);
+                end();
+            }
+            catch (IOException e)
+            {
+            }
+            finally
+            {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * @param out
+     *            gets time, elapsed, dispersion
+     * @return false if there isn't one (or we couldn't get a clean read)
+     */
+    public boolean readTrusted(long[] out)
+    {
+        return read(TRUSTED_TIME, out, 3) && out[0] > 0;
+    }
+
+    public void writeTrusted(long time, long ticks, long dispersion)
+    {
+        write(TRUSTED_TIME, time, TRUSTED_TICKS, ticks, TRUSTED_DISPERSION, dispersion);
+    }
+
+    /**
+     * @param out
+     *            gets mark time, elapsed
+     * @return false if there isn't one (or we couldn't get a clean read)
+     */
+    public boolean readMark(long[] out)
+    {
+        return read(MARK_TIME, out, 2) && out[0] > 0;
+    }
+
+    /**
+     * Sets the mark, unless another process has already moved it further on
+     * (or reset is true).
+     */
+    public void writeMark(long time, long ticks, boolean reset)
+    {
+        synchronized (this)
+        {
+            FileLock lock = null;
+            try
+            {
+                lock = mChannel.lock(0, SIZE, false);
+                final long oldTime = mMap.getLong(MARK_TIME);
+                final long oldTicks = mMap.getLong(MARK_TICKS);
+                if (!reset && oldTime > 0 && oldTime - oldTicks >= time - ticks) return;
+                begin();
+                mMap.putLong(MARK_TIME, time);
+                mMap.putLong(MARK_TICKS, ticks);
+                end();
+            }
+            catch (IOException e)
+            {
+            }
+            finally
+            {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Doesn't allocate, fine to call on every check.
+     *
+     * @return the trusted time less its elapsed time, i.e. the wall time at
+     *         boot. Only changes when a sync moves the time, 0 if none.
+     */
+    public long getTrustedEpoch()
+    {
+        for (int attempt = 0; attempt < READ_RETRIES; attempt++)
+        {
+            final long seq = mMap.getLong(SEQUENCE);
+            if ((seq & 1) != 0)
+            {
+                Thread.yield();
+                continue;
+            }
+            final long time = mMap.getLong(TRUSTED_TIME);
+            final long epoch = time > 0 ? time - mMap.getLong(TRUSTED_TICKS) : 0;
+            final boolean valid = checksumMatches();
+            if (mMap.getLong(SEQUENCE) == seq && valid) return epoch;
+        }
+        return 0;
+    }
+
+    /**
+     * Doesn't allocate, fine to call on every check.
+     *
+     * @return the latest deadline any process running this APK has found
+     *         passed, 0 if none
+     */
+    public long getExpiredAt()
+    {
+        for (int attempt = 0; attempt < READ_RETRIES; attempt++)
+        {
+            final long seq = mMap.getLong(SEQUENCE);
+            if ((seq & 1) != 0)
+            {
+                Thread.yield();
+                continue;
+            }
+            final long value = mMap.getLong(EXPIRED_AT);
+            final boolean valid = checksumMatches();
+            if (mMap.getLong(SEQUENCE) == seq && valid) return value;
+        }
+        return 0;
+    }
+
+    /**
+     * Records that the time is past this deadline, if it's later than what's
+     * there. Ignored if the APK has been replaced since this was opened.
+     */
+    public void setExpiredAt(long wall)
+    {
+        synchronized (this)
+        {
+            FileLock lock = null;
+            try
+            {
+                lock = mChannel.lock(0, SIZE, false);
+                if (mMap.getLong(EXPIRED_AT) >= wall
+                        || mMap.getLong(APK_STAMP) != mApkStamp) return;
+                begin();
+                mMap.putLong(EXPIRED_AT, wall);
+                end();
+            }
+            catch (IOException e)
+            {
+            }
+            finally
+            {
+                release(lock);
+            }
+        }
+    }
+
+    public void close()
+    {
+        try
+        {
+            mFile.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    /**
+     * @return stamp for the APK at the path, changes when it's replaced
+     */
+    public static long apkStamp(String apkPath)
+    {
+        final File apk = new File(apkPath);
+        return apk.lastModified() * 31 + apk.length();
+    }
+
+    /**
+     * Seqlock read of count longs from offset.
+     */
+    private boolean read(int offset, long[] out, int count)
+    {
+        for (int attempt = 0; attempt < READ_RETRIES; attempt++)
+        {
+            final long seq = mMap.getLong(SEQUENCE);
+            if ((seq & 1) != 0)
+            {
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < count; i++)
+            {
+                out[i] = mMap.getLong(offset + i * 8);
+            }
+            final boolean valid = checksumMatches();
+            if (mMap.getLong(SEQUENCE) == seq && valid) return true;
+        }
+        return false;
+    }
+
+    private void write(int o1, long v1, int o2, long v2, int o3, long v3)
+    {
+        write(new int[] { o1, o2, o3 }, new long[] { v1, v2, v3 });
+    }
+
+    /**
+     * Writes the values at the offsets under the locks.
+     */
+    private void write(int[] offsets, long[] values)
+    {
+        synchronized (this)
+        {
+            FileLock lock = null;
+            try
+            {
+                lock = mChannel.lock(0, SIZE, false);
+                begin();
+                for (int i = 0; i < offsets.length; i++)
+                {
+                    mMap.putLong(offsets[i], values[i]);
+                }
+                end();
+            }
+            catch (IOException e)
+            {
+            }
+            finally
+            {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Sequence to odd, must hold the locks.
+     */
+    private void begin()
+    {
+        mMap.putLong(SEQUENCE, mMap.getLong(SEQUENCE) + 1);
+    }
+
+    /**
+     * Checksum, then sequence back to even. Must hold the locks.
+     */
+    private void end()
+    {
+        mMap.putLong(CHECKSUM, checksum());
+        mMap.putLong(SEQUENCE, mMap.getLong(SEQUENCE) + 1);
+    }
+
+    private boolean checksumMatches()
+    {
+        return mMap.getLong(CHECKSUM) == checksum();
+    }
+
+    private long checksum()
+    {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = FIRST_FIELD; i < CHECKSUM; i += 8)
+        {
+            h = (h ^ mMap.getLong(i)) * 0x100000001B3L;
+            h ^= h >>> 29;
+        }
+        return h;
+    }
+
+    private static long hash(String s, int seed)
+    {
+        long h = seed == 0 ? 0xcbf29ce484222325L : 0x84222325cbf29ce4L;
+        for (int i = 0; i < s.length(); i++)
+        {
+            h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        }
+        return h;
+    }
+
+    private static void release(FileLock lock)
+    {
+        if (null == lock) return;
+        try
+        {
+            lock.release();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package com.jenxsol.timelock.utils;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
 import com.jenxsol.timelock.BuildConfig;
 
@@ -22,34 +25,30 @@ import android.util.Log;
  * {
  *     long now = client.getNtpTime() + SystemClock.elapsedRealtime() - client.getNtpTimeReference();
  * }
+ * client.close();
  * </pre>
+ * <p>
+ * The socket, packets and buffer are kept between requests, so asking again
+ * only allocates the resulting {@link TimeSample}. Host names go through
+ * {@link DnsCache}. Not thread safe.
+ * </p>
  */
 public class SntpClient
 {
     private static final String TAG = "timelock";
 
-    private static final int REFERENCE_TIME_OFFSET = 16;
-    private static final int ORIGINATE_TIME_OFFSET = 24;
-    private static final int RECEIVE_TIME_OFFSET = 32;
-    private static final int TRANSMIT_TIME_OFFSET = 40;
-    private static final int NTP_PACKET_SIZE = 48;
+    static final int NTP_PORT = 123;
 
-    private static final int NTP_PORT = 123;
-    private static final int NTP_MODE_CLIENT = 3;
-    private static final int NTP_VERSION = 3;
+    private final byte[] mBuffer = new byte[NtpPacket.SIZE];
+    private final NtpPacket mPacket = new NtpPacket(ByteBuffer.wrap(mBuffer));
+    private final DatagramPacket mRequest = new DatagramPacket(mBuffer, mBuffer.length);
+    private final DatagramPacket mResponse = new DatagramPacket(mBuffer, mBuffer.length);
+    private DatagramSocket mSocket;
 
-    // Number of seconds between Jan 1, 1900 and Jan 1, 1970
-    // 70 years plus 17 leap days
-    private static final long OFFSET_1900_TO_1970 = ((365L * 70L) + 17L) * 24L * 60L * 60L;
-
-    // system time computed from NTP server response
-    private long mNtpTime;
-
-    // value of SystemClock.elapsedRealtime() corresponding to mNtpTime
-    private long mNtpTimeReference;
-
-    // round trip time in milliseconds
-    private long mRoundTripTime;
+    // system time computed from NTP server response, value of
+    // SystemClock.elapsedRealtime() corresponding to it, round trip time,
+    // offset and error
+    private TimeSample mSample = new TimeSample(0, 0, 0, 0, 0);
 
     /**
      * Sends an SNTP request to the given host and processes the response.
@@ -64,58 +63,7 @@ public class SntpClient
     {
         try
         {
-            DatagramSocket socket = new DatagramSocket();
-            socket.setSoTimeout(timeout);
-            InetAddress address = InetAddress.getByName(host);
-            byte[] buffer = new byte[NTP_PACKET_SIZE];
-            DatagramPacket request = new DatagramPacket(buffer, buffer.length, address, NTP_PORT);
-
-            // set mode = 3 (client) and version = 3
-            // mode is in low 3 bits of first byte
-            // version is in bits 3-5 of first byte
-            buffer[0] = NTP_MODE_CLIENT | (NTP_VERSION << 3);
-
-            // get current time and write it to the request packet
-            long requestTime = System.currentTimeMillis();
-            long requestTicks = SystemClock.elapsedRealtime();
-            writeTimeStamp(buffer, TRANSMIT_TIME_OFFSET, requestTime);
-
-            socket.send(request);
-
-            // read the response
-            DatagramPacket response = new DatagramPacket(buffer, buffer.length);
-            socket.receive(response);
-            long responseTicks = SystemClock.elapsedRealtime();
-            long responseTime = requestTime + (responseTicks - requestTicks);
-            socket.close();
-
-            // extract the results
-            long originateTime = readTimeStamp(buffer, ORIGINATE_TIME_OFFSET);
-            long receiveTime = readTimeStamp(buffer, RECEIVE_TIME_OFFSET);
-            long transmitTime = readTimeStamp(buffer, TRANSMIT_TIME_OFFSET);
-            long roundTripTime = responseTicks - requestTicks - (transmitTime - receiveTime);
-            // receiveTime = originateTime + transit + skew
-            // responseTime = transmitTime + transit - skew
-            // clockOffset = ((receiveTime - originateTime) + (transmitTime -
-            // responseTime))/2
-            // = ((originateTime + transit + skew - originateTime) +
-            // (transmitTime - (transmitTime + transit - skew)))/2
-            // = ((transit + skew) + (transmitTime - transmitTime - transit +
-            // skew))/2
-            // = (transit + skew - transit + skew)/2
-            // = (2 * skew)/2 = skew
-            long clockOffset = ((receiveTime - originateTime) + (transmitTime - responseTime)) / 2;
-            // if (Config.LOGD) Log.d(TAG, "round trip: " + roundTripTime +
-            // " ms");
-            // if (Config.LOGD) Log.d(TAG, "clock offset: " + clockOffset +
-            // " ms");
-
-            // save our results - use the times on this side of the network
-            // latency
-            // (response rather than request time)
-            mNtpTime = responseTime + clockOffset;
-            mNtpTimeReference = responseTicks;
-            mRoundTripTime = roundTripTime;
+            request(DnsCache.getDefault().lookup(host), timeout);
         } catch (Exception e)
         {
             if (BuildConfig.DEBUG)
@@ -127,89 +75,128 @@ public class SntpClient
     }
 
     /**
-     * Returns the time computed from the NTP transaction.
+     * Sends an SNTP request to the given address and processes the response.
      * 
-     * @return time value computed from NTP server response.
+     * @param address
+     *            the server.
+     * @param timeout
+     *            network timeout in milliseconds.
+     * @return true if the transaction was successful.
      */
-    public long getNtpTime()
+    public boolean requestTime(InetAddress address, int timeout)
     {
-        return mNtpTime;
+        try
+        {
+            request(address, timeout);
+        } catch (Exception e)
+        {
+            if (BuildConfig.DEBUG)
+                Log.d(TAG, "request time failed: " + e);
+            return false;
+        }
+
+        return true;
     }
 
     /**
-     * Returns the reference clock value (value of
-     * SystemClock.elapsedRealtime()) corresponding to the NTP time.
+     * Same as {@link #requestTime(String, int)} but says why it failed.
      * 
-     * @return reference clock corresponding to the NTP time.
+     * @param host
+     *            host name of the server.
+     * @param timeout
+     *            network timeout in milliseconds.
+     * @return the sample
+     * @throws KissOfDeathException
+     *             the server told us to go away
+     * @throws IOException
+     *             no valid response
      */
-    public long getNtpTimeReference()
+    public TimeSample requestSample(String host, int timeout) throws IOException
     {
-        return mNtpTimeReference;
+        request(DnsCache.getDefault().lookup(host), timeout);
+        return mSample;
+    }
+
+    private void request(InetAddress address, int timeout) throws IOException
+    {
+        if (null == mSocket) mSocket = new DatagramSocket();
+        mRequest.setAddress(address);
+        mRequest.setPort(NTP_PORT);
+
+        // get current time and write it to the request packet
+        long requestTime = System.currentTimeMillis();
+        long requestTicks = SystemClock.elapsedRealtime();
+        mPacket.writeRequest(requestTime);
+
+        mSocket.send(mRequest);
+
+        // read the response, skipping late replies to earlier requests
+        final long deadline = requestTicks + timeout;
+        long responseTicks;
+        do
+        {
+            final long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) throw new SocketTimeoutException("No response from " + address);
+            mSocket.setSoTimeout((int) remaining);
+            mResponse.setLength(mBuffer.length);
+            mSocket.receive(mResponse);
+            responseTicks = SystemClock.elapsedRealtime();
+            mPacket.buffer().position(mResponse.getLength());
+        } while (!mPacket.isResponseToRequest());
+        mPacket.checkValidServerReply();
+
+        mPacket.decodeResponse(requestTime, requestTicks, responseTicks);
+        mSample = mPacket.toTimeSample();
     }
 
     /**
-     * Returns the round trip time of the NTP transaction
+     * Closes the socket, it's opened again by the next request.
+     */
+    public void close()
+    {
+        if (null == mSocket) return;
+        mSocket.close();
+        mSocket = null;
+    }
+
+    /**
+     * Returns everything from the last successful NTP transaction.
      * 
-     * @return round trip time in milliseconds.
+     * @return the sample
      */
-    public long getRoundTripTime()
+    public TimeSample getTimeSample()
     {
-        return mRoundTripTime;
+        return mSample;
     }
 
     /**
-     * Reads an unsigned 32 bit big endian number from the given offset in the
-     * buffer.
+     * Returns the time computed from the NTP transaction.
+     * 
+     * @return time value computed from NTP server response.
      */
-    private long read32(byte[] buffer, int offset)
+    public long getNtpTime()
     {
-        byte b0 = buffer[offset];
-        byte b1 = buffer[offset + 1];
-        byte b2 = buffer[offset + 2];
-        byte b3 = buffer[offset + 3];
-
-        // convert signed bytes to unsigned values
-        int i0 = ((b0 & 0x80) == 0x80 ? (b0 & 0x7F) + 0x80 : b0);
-        int i1 = ((b1 & 0x80) == 0x80 ? (b1 & 0x7F) + 0x80 : b1);
-        int i2 = ((b2 & 0x80) == 0x80 ? (b2 & 0x7F) + 0x80 : b2);
-        int i3 = ((b3 & 0x80) == 0x80 ? (b3 & 0x7F) + 0x80 : b3);
-
-        return ((long) i0 << 24) + ((long) i1 << 16) + ((long) i2 << 8) + i3;
+        return mSample.getNtpTime();
     }
 
     /**
-     * Reads the NTP time stamp at the given offset in the buffer and returns it
-     * as a system time (milliseconds since January 1, 1970).
+     * Returns the reference clock value (value of
+     * SystemClock.elapsedRealtime()) corresponding to the NTP time.
+     * 
+     * @return reference clock corresponding to the NTP time.
      */
-    private long readTimeStamp(byte[] buffer, int offset)
+    public long getNtpTimeReference()
     {
-        long seconds = read32(buffer, offset);
-        long fraction = read32(buffer, offset + 4);
-        return ((seconds - OFFSET_1900_TO_1970) * 1000) + ((fraction * 1000L) / 0x100000000L);
+        return mSample.getNtpTimeReference();
     }
 
     /**
-     * Writes system time (milliseconds since January 1, 1970) as an NTP time
-     * stamp at the given offset in the buffer.
+     * Returns the round trip time of the NTP transaction
+     * 
+     * @return round trip time in milliseconds.
      */
-    private void writeTimeStamp(byte[] buffer, int offset, long time)
+    public long getRoundTripTime()
     {
-        long seconds = time / 1000L;
-        long milliseconds = time - seconds * 1000L;
-        seconds += OFFSET_1900_TO_1970;
-
-        // write seconds in big endian format
-        buffer[offset++] = (byte) (seconds >> 24);
-        buffer[offset++] = (byte) (seconds >> 16);
-        buffer[offset++] = (byte) (seconds >> 8);
-        buffer[offset++] = (byte) (seconds >> 0);
-
-        long fraction = milliseconds * 0x100000000L / 1000L;
-        // write fraction in big endian format
-        buffer[offset++] = (byte) (fraction >> 24);
-        buffer[offset++] = (byte) (fraction >> 16);
-        buffer[offset++] = (byte) (fraction >> 8);
-        // low order bits should be random data
-        buffer[offset++] = (byte) (Math.random() * 255.0);
+        return mSample.getRoundTripTime();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One NTP server. Requests can overlap, each gets its own {@link SntpClient}.
+ * One idle client (and its buffers) is kept for next time, the socket is
+ * closed between requests.
+ */
+public class SntpTimeSource implements TimeSource
+{
+
+    private final String mHost;
+    private final AtomicReference<SntpClient> mIdle = new AtomicReference<SntpClient>();
+
+    /**
+     * @param host
+     *            NTP server, looked up through {@link DnsCache}
+     */
+    public SntpTimeSource(String host)
+    {
+        mHost = host;
+    }
+
+    /**
+     * @throws KissOfDeathException
+     *             the server told us to go away
+     */
+    @Override
+    public TimeSample getTime(int timeout) throws IOException
+    {
+        SntpClient client = mIdle.getAndSet(null);
+        if (null == client) client = new SntpClient();
+        try
+        {
+            return client.requestSample(mHost, timeout);
+        }
+        finally
+        {
+            client.close();
+            mIdle.compareAndSet(null, client);
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return "ntp:" + mHost;
+    }
+}
@@ -1,6 +1,7 @@
 package com.jenxsol.timelock.utils;
 
 import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.util.Collection;
 
@@ -41,30 +42,46 @@ public class SoftHashSet<T extends Object> extends ReferenceSet<T>
      * Return a soft reference.
      */
     @Override
-    protected Reference<T> getReference(T o)
+    protected Reference<T> getReference(T o, ReferenceQueue<? super T> q)
     {
-        return (new MySoftReference<T>(o));
+        return (new MySoftReference<T>(o, q));
     }
 
     static class MySoftReference<T> extends SoftReference<T>
     {
 
-        public MySoftReference(T o)
+        /**
+         * Taken up front so the hash doesn't change once the referent is
+         * collected.
+         */
+        private final int hash;
+
+        public MySoftReference(T o, ReferenceQueue<? super T> q)
         {
-            super(o);
+            super(o, q);
+            hash = o.hashCode();
         }
 
         @Override
         public int hashCode()
         {
-            int rv = 0;
-            Object o = get();
-            if (o != null)
+            return (hash);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this)
             {
-                rv = o.hashCode();
+                return true;
             }
-
-            return (rv);
+            if (!(obj instanceof MySoftReference<?>))
+            {
+                return false;
+            }
+            Object o = get();
+            Object other = ((MySoftReference<?>) obj).get();
+            return o != null && other != null && (o == other || o.equals(other));
         }
 
     }
@@ -0,0 +1,23 @@
+package com.jenxsol.timelock.utils;
+
+import android.os.SystemClock;
+
+/**
+ * The device clock, never fails and never to be trusted. Last in a chain.
+ */
+public class SystemTimeSource implements TimeSource
+{
+
+    @Override
+    public TimeSample getTime(int timeout)
+    {
+        return new TimeSample(System.currentTimeMillis(), SystemClock.elapsedRealtime(), 0, 0,
+                UNTRUSTED);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "system";
+    }
+}
@@ -2,6 +2,7 @@ package com.jenxsol.timelock.utils;
 
 import java.io.IOException;
 import java.util.Date;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -17,12 +18,30 @@ public class TimeLockSupport
 
     /**
      * Will grab the date that the app was built and return it too you as a
-     * Date();
+     * Date();<br>
+     * The result is cached against the APK (see {@link BuildDateCache}) so
+     * only the first start after an install or update has to open the zip, and
+     * then only the central directory is read (see {@link ApkTimestampReader}).
      * 
      * @param app
      * @return the date the app was built, otherwise
      */
     public static final Date getApplicationBuildDate(Context app)
+    {
+        return getApplicationBuildDate(app, null);
+    }
+
+    /**
+     * Same as {@link #getApplicationBuildDate(Context)}, but looks in (and
+     * fills in) the state shared with the app's other processes first, so only
+     * one of them ever has to work it out.
+     * 
+     * @param app
+     * @param shared
+     *            can be null
+     * @return the date the app was built, otherwise
+     */
+    public static final Date getApplicationBuildDate(Context app, SharedState shared)
     {
         long time = 0;
         ZipFile zf = null;
@@ -30,9 +49,33 @@ public class TimeLockSupport
         {
             ApplicationInfo ai = app.getPackageManager()
                     .getApplicationInfo(app.getPackageName(), 0);
-            zf = new ZipFile(ai.sourceDir);
-            ZipEntry ze = zf.getEntry("classes.dex");
-            time = ze.getTime();
+            final long stamp = null != shared ? SharedState.apkStamp(ai.sourceDir) : 0;
+            if (null != shared)
+            {
+                time = shared.getBuildTime(stamp);
+                if (time > 0) return new Date(time);
+            }
+            final BuildDateCache cache = new BuildDateCache(app, ai.sourceDir);
+            time = cache.get();
+            if (time > 0)
+            {
+                if (null != shared) shared.setBuildTime(stamp, time);
+                return new Date(time);
+            }
+            time = ApkTimestampReader.getEntryTime(ai.sourceDir, "classes.dex");
+            if (time <= 0)
+            {
+                // Fall back to the full zip reader (zip64 etc..)
+                time = 0;
+                zf = new ZipFile(ai.sourceDir);
+                ZipEntry ze = zf.getEntry("classes.dex");
+                time = ze.getTime();
+            }
+            if (time > 0)
+            {
+                cache.put(time);
+                if (null != shared) shared.setBuildTime(stamp, time);
+            }
             // String s = SimpleDateFormat.getInstance().format(new
             // java.util.Date(time));
 
@@ -57,7 +100,34 @@ public class TimeLockSupport
     }
 
     /**
-     * Auto exit checker, will basically exit how ever it knows best
+     * Class generated by the library's custom_rules.xml at build time.
+     */
+    private static final String BUILD_STAMP_CLASS = "com.jenxsol.timelock.BuildStamp";
+
+    /**
+     * Returns the build time baked in at compile time by the ant build (see
+     * custom_rules.xml). This doesn't touch the disk so prefer it over
+     * {@link #getApplicationBuildDate(Context)} when it's available.
+     * 
+     * @return build time in millis, or -1 if the stamp wasn't generated (i.e.
+     *         built from Eclipse)
+     */
+    public static final long getGeneratedBuildTime()
+    {
+        try
+        {
+            return Class.forName(BUILD_STAMP_CLASS).getField("BUILD_TIME").getLong(null);
+        }
+        catch (Exception e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Auto exit checker, will basically exit how ever it knows best.<br>
+     * Activities are finished top down, each one once. The stack is emptied as
+     * it's read, so finish() callbacks can't change what we're walking.
      * 
      * @param ctx
      */
@@ -65,14 +135,19 @@ public class TimeLockSupport
     {
         if (ctx instanceof Activity)
         {
-            ((Activity) ctx).finish();
-            for (Activity a : TimeLock.getActivityStack())
+            final List<Activity> activities = TimeLock.getActivityStack().drain();
+            for (Activity a : activities)
             {
-                if (null != a)
+                if (!a.isFinishing())
                 {
                     a.finish();
                 }
             }
+            final Activity activity = (Activity) ctx;
+            if (!activity.isFinishing())
+            {
+                activity.finish();
+            }
 
         }
         else
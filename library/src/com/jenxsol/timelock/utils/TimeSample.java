@@ -0,0 +1,102 @@
+package com.jenxsol.timelock.utils;
+
+import android.os.SystemClock;
+
+/**
+ * Result of an SNTP exchange, or of several combined by {@link ClockFilter}.
+ * Immutable.
+ *
+ * <pre>
+ * long now = sample.getNtpTime() + SystemClock.elapsedRealtime() - sample.getNtpTimeReference();
+ * </pre>
+ */
+public class TimeSample
+{
+
+    private final long mNtpTime;
+    private final long mNtpTimeReference;
+    private final long mRoundTripTime;
+    private final long mClockOffset;
+    private final long mDispersion;
+
+    /**
+     * @param ntpTime
+     *            system time computed from the server response
+     * @param ntpTimeReference
+     *            value of {@link SystemClock#elapsedRealtime()} corresponding
+     *            to ntpTime
+     * @param roundTripTime
+     *            round trip time in milliseconds
+     * @param clockOffset
+     *            server time minus local system time in milliseconds
+     * @param dispersion
+     *            max error of the offset in milliseconds, either way
+     */
+    public TimeSample(long ntpTime, long ntpTimeReference, long roundTripTime, long clockOffset,
+            long dispersion)
+    {
+        mNtpTime = ntpTime;
+        mNtpTimeReference = ntpTimeReference;
+        mRoundTripTime = roundTripTime;
+        mClockOffset = clockOffset;
+        mDispersion = dispersion;
+    }
+
+    /**
+     * @return time value computed from NTP server response.
+     */
+    public long getNtpTime()
+    {
+        return mNtpTime;
+    }
+
+    /**
+     * @return value of {@link SystemClock#elapsedRealtime()} corresponding to
+     *         {@link #getNtpTime()}.
+     */
+    public long getNtpTimeReference()
+    {
+        return mNtpTimeReference;
+    }
+
+    /**
+     * @return round trip time in milliseconds.
+     */
+    public long getRoundTripTime()
+    {
+        return mRoundTripTime;
+    }
+
+    /**
+     * @return how far the server clock is ahead of the local system clock in
+     *         milliseconds, negative if behind.
+     */
+    public long getClockOffset()
+    {
+        return mClockOffset;
+    }
+
+    /**
+     * @return max error of {@link #getClockOffset()} in milliseconds, either
+     *         way. The true offset is somewhere in offset +/- dispersion.
+     */
+    public long getDispersion()
+    {
+        return mDispersion;
+    }
+
+    /**
+     * @return current time according to this sample
+     */
+    public long currentTimeMillis()
+    {
+        return mNtpTime + SystemClock.elapsedRealtime() - mNtpTimeReference;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TimeSample[offset=" + mClockOffset + "ms, rtt=" + mRoundTripTime
+                + "ms, dispersion=" + mDispersion + "ms]";
+    }
+}
@@ -0,0 +1,34 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+
+/**
+ * Somewhere to get the time from. Implementations need to be thread safe, a
+ * {@link TimeSourceChain} can have more than one request to a source going at
+ * once.
+ */
+public interface TimeSource
+{
+
+    /**
+     * Dispersion for a time we have no reason to trust, i.e. the device clock.
+     * Big, but still safe to do sums with.
+     */
+    public static final long UNTRUSTED = 1L << 40;
+
+    /**
+     * Gets the time, blocking.
+     *
+     * @param timeout
+     *            millis to give up after
+     * @return the time, with {@link TimeSample#getDispersion()} as its error
+     * @throws IOException
+     *             if it can't be had in time
+     */
+    TimeSample getTime(int timeout) throws IOException;
+
+    /**
+     * @return name for logging
+     */
+    String getName();
+}
@@ -0,0 +1,301 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.jenxsol.timelock.BuildConfig;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Asks a list of {@link TimeSource}s in order, first answer wins.
+ * <p>
+ * The next source is asked as soon as the one before fails, or (hedging) when
+ * it's taking longer than 95% of its answers so far have, without giving up on
+ * the slow one. So a server having a bad moment costs us about its p95, not
+ * the whole timeout, and we only send the extra request about one time in
+ * twenty. Until a source has answered {@link #MIN_SAMPLES} times it gets
+ * {@link #DEFAULT_HEDGE_DELAY}.
+ * </p>
+ * <p>
+ * An answer with {@link TimeSource#UNTRUSTED} dispersion (the system clock)
+ * doesn't win: it's only returned once every other source has failed or the
+ * timeout is up, so hedging into it never cuts short a network source that's
+ * just slow.
+ * </p>
+ * <p>
+ * i.e. trusted clock, your HTTPS server, an NTP pool, then the system clock so
+ * there is always an answer (check its dispersion). Requests run on a shared
+ * pool of daemon threads, unless you give it an executor. Thread safe.
+ * </p>
+ */
+public class TimeSourceChain implements TimeSource
+{
+    private static final String TAG = "timelock";
+
+    public static final long DEFAULT_HEDGE_DELAY = 1000;
+
+    /**
+     * Answers needed from a source before we go by its p95.
+     */
+    public static final int MIN_SAMPLES = 8;
+
+    /**
+     * Latencies kept per source.
+     */
+    private static final int WINDOW = 64;
+
+    private static ExecutorService sExecutor;
+
+    private final TimeSource[] mSources;
+    private final Latency[] mLatencies;
+    private final Executor mExecutor;
+
+    /**
+     * @param sources
+     *            most preferred first
+     */
+    public TimeSourceChain(TimeSource... sources)
+    {
+        this(getExecutor(), sources);
+    }
+
+    /**
+     * @param executor
+     *            runs the requests, needs a thread for each that can be going
+     *            at once
+     * @param sources
+     *            most preferred first
+     */
+    public TimeSourceChain(Executor executor, TimeSource... sources)
+    {
+        if (sources.length == 0) throw new IllegalArgumentException("No sources");
+        mExecutor = executor;
+        mSources = sources.clone();
+        mLatencies = new Latency[sources.length];
+        for (int i = 0; i < sources.length; i++)
+        {
+            mLatencies[i] = new Latency();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor()
+    {
+        if (null == sExecutor)
+        {
+            sExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    final Thread t = new Thread(r, "TimeLock-source");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * @return the first trusted answer, or an untrusted one if that's all we
+     *         got
+     * @throws IOException
+     *             the last source's failure if they all failed, or
+     *             {@link SocketTimeoutException} if none answered in time
+     */
+    @Override
+    public TimeSample getTime(int timeout) throws IOException
+    {
+        final long deadline = SystemClock.elapsedRealtime() + timeout;
+        final ExecutorCompletionService<Attempt> done = new ExecutorCompletionService<Attempt>(
+                mExecutor);
+        final ArrayList<Future<Attempt>> running = new ArrayList<Future<Attempt>>(
+                mSources.length);
+        final ArrayList<Attempt> attempts = new ArrayList<Attempt>(mSources.length);
+        int next = 0;
+        int inFlight = 0;
+        long hedgeAt = 0;
+        IOException last = null;
+        TimeSample untrusted = null;
+        try
+        {
+            while (true)
+            {
+                final long now = SystemClock.elapsedRealtime();
+                if (inFlight == 0 || (next < mSources.length && now >= hedgeAt))
+                {
+                    if (next >= mSources.length)
+                    {
+                        if (null != untrusted) return untrusted;
+                        throw last;
+                    }
+                    if (BuildConfig.DEBUG && inFlight > 0)
+                        Log.d(TAG, "hedging with " + mSources[next].getName());
+                    final int remaining = (int) Math.max(deadline - now, 1);
+                    final Attempt a = new Attempt(next, remaining);
+                    attempts.add(a);
+                    running.add(done.submit(a));
+                    hedgeAt = now + mLatencies[next].getHedgeDelay();
+                    inFlight++;
+                    next++;
+                    continue;
+                }
+                if (now >= deadline)
+                {
+                    if (null != untrusted) return untrusted;
+                    throw new SocketTimeoutException("No time source answered");
+                }
+
+                long wait = deadline - now;
+                if (next < mSources.length) wait = Math.min(wait, hedgeAt - now);
+                final Future<Attempt> f = done.poll(wait, TimeUnit.MILLISECONDS);
+                if (null == f) continue;
+                inFlight--;
+                final Attempt a = f.get();
+                if (null != a.sample)
+                {
+                    mLatencies[a.index].add(a.took);
+                    if (a.sample.getDispersion() < UNTRUSTED) return a.sample;
+                    // Only if nothing better turns up
+                    if (null == untrusted) untrusted = a.sample;
+                    continue;
+                }
+                last = a.error;
+                if (BuildConfig.DEBUG)
+                    Log.d(TAG, mSources[a.index].getName() + " failed: " + a.error);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            // Attempt catches everything, but just in case
+            throw new IOException(String.valueOf(e.getCause()));
+        }
+        finally
+        {
+            // Losers are of no use now. They took at least this long, which
+            // has to count or a source's p95 only ever sees its fast answers
+            // and we hedge more and more.
+            final long now = SystemClock.elapsedRealtime();
+            for (int i = 0, n = running.size(); i < n; i++)
+            {
+                if (running.get(i).cancel(true))
+                {
+                    final Attempt a = attempts.get(i);
+                    mLatencies[a.index].add(now - a.started);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param index
+     *            of the source
+     * @return how long we wait on it before asking the next one
+     */
+    public long getHedgeDelay(int index)
+    {
+        return mLatencies[index].getHedgeDelay();
+    }
+
+    @Override
+    public String getName()
+    {
+        final StringBuilder sb = new StringBuilder("chain[");
+        for (int i = 0; i < mSources.length; i++)
+        {
+            if (i > 0) sb.append(',');
+            sb.append(mSources[i].getName());
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * One request to one source, never throws, the result is kept in it.
+     */
+    private final class Attempt implements Callable<Attempt>
+    {
+        final int index;
+        final int timeout;
+        final long started = SystemClock.elapsedRealtime();
+        TimeSample sample;
+        IOException error;
+        long took;
+
+        Attempt(int index, int timeout)
+        {
+            this.index = index;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public Attempt call()
+        {
+            try
+            {
+                sample = mSources[index].getTime(timeout);
+                if (null == sample)
+                    error = new IOException("No time from " + mSources[index].getName());
+            }
+            catch (IOException e)
+            {
+                error = e;
+            }
+            catch (RuntimeException e)
+            {
+                // i.e. SecurityException without the INTERNET permission
+                error = new IOException(e.toString());
+            }
+            took = SystemClock.elapsedRealtime() - started;
+            return this;
+        }
+    }
+
+    /**
+     * The last {@link TimeSourceChain#WINDOW} answer times from a source.
+     */
+    private static final class Latency
+    {
+        private final long[] mWindow = new long[WINDOW];
+        private final long[] mSorted = new long[WINDOW];
+        private int mNext;
+        private int mCount;
+
+        synchronized void add(long millis)
+        {
+            mWindow[mNext] = millis;
+            mNext = (mNext + 1) % WINDOW;
+            if (mCount < WINDOW) mCount++;
+        }
+
+        /**
+         * @return p95 of what we have seen, or the default
+         */
+        synchronized long getHedgeDelay()
+        {
+            final int n = mCount;
+            if (n < MIN_SAMPLES) return DEFAULT_HEDGE_DELAY;
+            System.arraycopy(mWindow, 0, mSorted, 0, n);
+            Arrays.sort(mSorted, 0, n);
+            return Math.max(mSorted[(n * 95 + 99) / 100 - 1], 1);
+        }
+    }
+}
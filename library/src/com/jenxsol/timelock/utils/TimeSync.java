@@ -0,0 +1,197 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.jenxsol.timelock.BuildConfig;
+
+import android.util.Log;
+
+/**
+ * Keeps asking a {@link TimeSource} (usually one NTP server) for the time in
+ * the background, as rarely as {@link PollPolicy} lets it. Every good sample
+ * goes to the {@link Listener}, answers with {@link TimeSource#UNTRUSTED}
+ * dispersion count as failures. So does anything the source or the listener
+ * throws, polling only stops when {@link #stop()} is called or the server
+ * says so.
+ * <p>
+ * Runs on its own daemon thread. The delays are on
+ * {@link System#nanoTime()}, which stops while the device is asleep, so we
+ * never wake it up just to ask the time.
+ * </p>
+ */
+public class TimeSync
+{
+    private static final String TAG = "timelock";
+
+    private static final int TIMEOUT = 5000;
+
+    /**
+     * Told about each good sample, on the sync thread.
+     */
+    public static interface Listener
+    {
+        void onTime(TimeSample sample);
+    }
+
+    private final TimeSource mSource;
+    private final PollPolicy mPolicy;
+    private final Listener mListener;
+
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mNext;
+
+    private final Runnable mPoll = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            poll();
+        }
+    };
+
+    public TimeSync(String host, Listener listener)
+    {
+        this(new SntpTimeSource(host), new PollPolicy(), listener);
+    }
+
+    /**
+     * @param host
+     *            NTP server
+     * @param policy
+     *            only used by us from now on
+     * @param listener
+     *            told about each good sample
+     */
+    public TimeSync(String host, PollPolicy policy, Listener listener)
+    {
+        this(new SntpTimeSource(host), policy, listener);
+    }
+
+    /**
+     * @param source
+     *            where to get the time, i.e. a {@link TimeSourceChain}
+     * @param policy
+     *            only used by us from now on
+     * @param listener
+     *            told about each good sample
+     */
+    public TimeSync(TimeSource source, PollPolicy policy, Listener listener)
+    {
+        mSource = source;
+        mPolicy = policy;
+        mListener = listener;
+    }
+
+    /**
+     * Starts polling, does nothing if we already are.
+     *
+     * @param initialDelay
+     *            millis before the first poll, i.e. 0 if we have no time yet
+     */
+    public synchronized void start(long initialDelay)
+    {
+        if (null != mExecutor) return;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                final Thread t = new Thread(r, "TimeLock-sync");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        schedule(Math.max(initialDelay, 0));
+    }
+
+    /**
+     * Stops polling, a poll already under way finishes first.
+     */
+    public synchronized void stop()
+    {
+        if (null == mExecutor) return;
+        if (null != mNext) mNext.cancel(false);
+        mNext = null;
+        mExecutor.shutdown();
+        mExecutor = null;
+    }
+
+    /**
+     * @return true until {@link #stop()}, or the server tells us to go away
+     */
+    public synchronized boolean isRunning()
+    {
+        return null != mExecutor;
+    }
+
+    private synchronized void schedule(long delay)
+    {
+        if (null == mExecutor) return;
+        mNext = mExecutor.schedule(mPoll, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll()
+    {
+        long delay;
+        TimeSample sample = null;
+        try
+        {
+            sample = mSource.getTime(TIMEOUT);
+            if (sample.getDispersion() >= TimeSource.UNTRUSTED)
+            {
+                // Only the device clock answered
+                sample = null;
+                delay = mPolicy.onFailure();
+            }
+            else
+            {
+                delay = mPolicy.onSuccess(sample);
+            }
+        }
+        catch (KissOfDeathException e)
+        {
+            delay = mPolicy.onKissOfDeath(e);
+            if (BuildConfig.DEBUG)
+                Log.d(TAG, "sync " + mSource.getName() + ": " + e.getMessage());
+        }
+        catch (IOException e)
+        {
+            delay = mPolicy.onFailure();
+            if (BuildConfig.DEBUG) Log.d(TAG, "sync " + mSource.getName() + " failed: " + e);
+        }
+        catch (RuntimeException e)
+        {
+            // i.e. no INTERNET permission. The executor would swallow it and
+            // never run us again, so it's just another failure.
+            delay = mPolicy.onFailure();
+            Log.w(TAG, "sync " + mSource.getName() + " failed", e);
+        }
+
+        if (null != sample)
+        {
+            try
+            {
+                mListener.onTime(sample);
+            }
+            catch (RuntimeException e)
+            {
+                // Try again soon, it might cope next time
+                delay = mPolicy.onFailure();
+                Log.w(TAG, "sync listener failed", e);
+            }
+        }
+        if (delay < 0)
+        {
+            stop();
+            return;
+        }
+        if (BuildConfig.DEBUG) Log.d(TAG, "sync " + mSource.getName() + " again in " + delay / 1000 + "s");
+        schedule(delay);
+    }
+}
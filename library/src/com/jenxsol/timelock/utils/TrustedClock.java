@@ -0,0 +1,335 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+/**
+ * Keeps the last good network time anchored to
+ * {@link SystemClock#elapsedRealtime()}, so once we have asked a server we can
+ * keep telling the time without asking again, whatever the user does to the
+ * wall clock.
+ * <p>
+ * The anchor is persisted, a new process picks it up as long as the device
+ * hasn't been rebooted since (elapsed time starts again from zero on boot). It
+ * is good until it's older than the TTL, or its error bound (the sample's
+ * dispersion plus how far the elapsed clock could have drifted since) gets
+ * past the max error.
+ * </p>
+ * <p>
+ * Reading the time is a volatile read and some sums, no I/O. Construct it off
+ * the main thread, it reads the preferences.
+ * </p>
+ */
+public class TrustedClock
+{
+
+    private static final String PREFS_NAME = "timelock";
+
+    private static final String KEY_TIME = "trusted_time";
+    private static final String KEY_REFERENCE = "trusted_reference";
+    private static final String KEY_DISPERSION = "trusted_dispersion";
+    private static final String KEY_BOOT_ID = "trusted_boot_id";
+    private static final String KEY_BOOT_TIME = "trusted_boot_time";
+
+    /**
+     * Changes every boot, readable on Android as it's just Linux.
+     */
+    private static final String BOOT_ID_PATH = "/proc/sys/kernel/random/boot_id";
+
+    /**
+     * Worst case drift of the elapsed clock, in parts per million. Phone
+     * crystals are usually well within 100.
+     */
+    private static final long DRIFT_PPM = 100;
+
+    /**
+     * Without a boot id, how far the wall clock estimate of the boot time can
+     * move before we assume it's a different boot.
+     */
+    static final long BOOT_TIME_SLOP = 10 * 1000;
+
+    public static final long DEFAULT_TTL = 24 * 60 * 60 * 1000;
+    public static final long DEFAULT_MAX_ERROR = 60 * 1000;
+
+    private final SharedPreferences mPrefs;
+    private final long mTtl;
+    private final long mMaxError;
+    private final String mBootId;
+
+    private final SharedState mShared;
+
+    private volatile Anchor mAnchor;
+    /**
+     * {@link SharedState#getSequence()} when we last looked at it.
+     */
+    private volatile long mSharedSequence = -1;
+
+    /**
+     * Uses {@link #DEFAULT_TTL} and {@link #DEFAULT_MAX_ERROR}.
+     *
+     * @param ctx
+     *            any context, only used to get hold of the preferences
+     */
+    public TrustedClock(Context ctx)
+    {
+        this(ctx, DEFAULT_TTL, DEFAULT_MAX_ERROR);
+    }
+
+    /**
+     * @param ctx
+     *            any context, only used to get hold of the preferences
+     * @param ttl
+     *            max age of a sample in millis
+     * @param maxError
+     *            max error bound in millis
+     */
+    public TrustedClock(Context ctx, long ttl, long maxError)
+    {
+        this(ctx, ttl, maxError, null);
+    }
+
+    /**
+     * @param ctx
+     *            any context, only used to get hold of the preferences
+     * @param ttl
+     *            max age of a sample in millis
+     * @param maxError
+     *            max error bound in millis
+     * @param shared
+     *            state shared with the app's other processes, can be null.
+     *            Times they get are picked up, ours are handed to them.
+     */
+    public TrustedClock(Context ctx, long ttl, long maxError, SharedState shared)
+    {
+        this(ctx, ttl, maxError, shared, readBootId());
+    }
+
+    /**
+     * @param bootId
+     *            this boot's id, null if it can't be read
+     */
+    TrustedClock(Context ctx, long ttl, long maxError, SharedState shared, String bootId)
+    {
+        mPrefs = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mTtl = ttl;
+        mMaxError = maxError;
+        mShared = shared;
+        mBootId = bootId;
+        mAnchor = load();
+    }
+
+    /**
+     * @return trusted time in millis, or -1 if we don't have one that is still
+     *         good
+     */
+    public long currentTimeMillis()
+    {
+        final Anchor a = getAnchor();
+        if (null == a) return -1;
+        final long age = SystemClock.elapsedRealtime() - a.reference;
+        if (!isGood(a, age)) return -1;
+        return a.time + age;
+    }
+
+    /**
+     * @return true if {@link #currentTimeMillis()} would give a time
+     */
+    public boolean isValid()
+    {
+        final Anchor a = getAnchor();
+        return null != a && isGood(a, SystemClock.elapsedRealtime() - a.reference);
+    }
+
+    /**
+     * @return how far out {@link #currentTimeMillis()} could be right now in
+     *         millis, either way. -1 if there is no time.
+     */
+    public long getError()
+    {
+        final Anchor a = getAnchor();
+        if (null == a) return -1;
+        final long age = SystemClock.elapsedRealtime() - a.reference;
+        return age < 0 ? -1 : a.error(age);
+    }
+
+    /**
+     * @return millis since the time was last taken from the network, -1 if
+     *         there is no time.
+     */
+    public long getAge()
+    {
+        final Anchor a = getAnchor();
+        if (null == a) return -1;
+        final long age = SystemClock.elapsedRealtime() - a.reference;
+        return age < 0 ? -1 : age;
+    }
+
+    /**
+     * Takes a new network time, if it's at least as good as what we have now,
+     * and persists it.
+     *
+     * @param sample
+     *            i.e. from {@link SntpClient#getTimeSample()}
+     * @return true if it was kept
+     */
+    public synchronized boolean update(TimeSample sample)
+    {
+        final long dispersion = Math.max(sample.getDispersion(), 0);
+        if (dispersion > mMaxError) return false;
+        final Anchor a = new Anchor(sample.getNtpTime(), sample.getNtpTimeReference(),
+                dispersion);
+        final Anchor old = mAnchor;
+        if (null != old)
+        {
+            // Both drift the same from here on, keep whichever is tighter now.
+            // An older sample only wins if it was that much better.
+            final long now = SystemClock.elapsedRealtime();
+            final long age = now - old.reference;
+            if (isGood(old, age) && old.error(age) < a.error(now - a.reference)) return false;
+        }
+        mAnchor = a;
+        if (null != mShared) mShared.writeTrusted(a.time, a.reference, a.dispersion);
+        mPrefs.edit()
+                .putLong(KEY_TIME, a.time)
+                .putLong(KEY_REFERENCE, a.reference)
+                .putLong(KEY_DISPERSION, a.dispersion)
+                .putString(KEY_BOOT_ID, mBootId)
+                .putLong(KEY_BOOT_TIME, bootTime())
+                .commit();
+        return true;
+    }
+
+    /**
+     * Forgets the time, i.e. if the server turns out to be lying.
+     */
+    public synchronized void clear()
+    {
+        mAnchor = null;
+        if (null != mShared) mShared.writeTrusted(0, 0, 0);
+        mPrefs.edit()
+                .remove(KEY_TIME)
+                .remove(KEY_REFERENCE)
+                .remove(KEY_DISPERSION)
+                .remove(KEY_BOOT_ID)
+                .remove(KEY_BOOT_TIME)
+                .commit();
+    }
+
+    /**
+     * @return our anchor, or a newer one from another process
+     */
+    private Anchor getAnchor()
+    {
+        if (null != mShared && mShared.getSequence() != mSharedSequence) adoptShared();
+        return mAnchor;
+    }
+
+    private synchronized void adoptShared()
+    {
+        mSharedSequence = mShared.getSequence();
+        final long[] v = new long[3];
+        if (!mShared.readTrusted(v)) return;
+        final Anchor a = mAnchor;
+        if (v[1] > SystemClock.elapsedRealtime()) return;
+        if (null == a || v[1] > a.reference) mAnchor = new Anchor(v[0], v[1], v[2]);
+    }
+
+    private boolean isGood(Anchor a, long age)
+    {
+        // A negative age means it's from before a reboot we missed
+        return age >= 0 && age <= mTtl && a.error(age) <= mMaxError;
+    }
+
+    /**
+     * Picks up the persisted time if it's from this boot.
+     */
+    private Anchor load()
+    {
+        if (!mPrefs.contains(KEY_TIME)) return null;
+        final long reference = mPrefs.getLong(KEY_REFERENCE, -1);
+        if (reference < 0 || reference > SystemClock.elapsedRealtime()) return null;
+        final String bootId = mPrefs.getString(KEY_BOOT_ID, null);
+        if (null != mBootId)
+        {
+            if (!mBootId.equals(bootId)) return null;
+        }
+        else if (Math.abs(mPrefs.getLong(KEY_BOOT_TIME, 0) - bootTime()) > BOOT_TIME_SLOP)
+        {
+            // Might be the user changing the clock rather than a reboot, but
+            // all that costs is asking the network again
+            return null;
+        }
+        return new Anchor(mPrefs.getLong(KEY_TIME, 0), reference, mPrefs.getLong(
+                KEY_DISPERSION, 0));
+    }
+
+    /**
+     * @return wall clock estimate of when the device booted
+     */
+    static long bootTime()
+    {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return the kernel boot id, or null if we can't read it
+     */
+    static String readBootId()
+    {
+        BufferedReader in = null;
+        try
+        {
+            in = new BufferedReader(new FileReader(BOOT_ID_PATH), 64);
+            final String id = in.readLine();
+            return null != id && id.length() > 0 ? id.trim() : null;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        catch (SecurityException e)
+        {
+            return null;
+        }
+        finally
+        {
+            if (null != in)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+    }
+
+    /**
+     * Network time at an elapsed time. Immutable.
+     */
+    private static final class Anchor
+    {
+        final long time;
+        final long reference;
+        final long dispersion;
+
+        Anchor(long time, long reference, long dispersion)
+        {
+            this.time = time;
+            this.reference = reference;
+            this.dispersion = dispersion;
+        }
+
+        long error(long age)
+        {
+            return dispersion + age / (1000000 / DRIFT_PPM);
+        }
+    }
+}
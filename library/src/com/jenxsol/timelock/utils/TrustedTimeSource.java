@@ -0,0 +1,36 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+
+import android.os.SystemClock;
+
+/**
+ * The last network time, from a {@link TrustedClock}. Instant, and fails
+ * straight away if it has expired, so it goes first in a chain.
+ */
+public class TrustedTimeSource implements TimeSource
+{
+
+    private final TrustedClock mClock;
+
+    public TrustedTimeSource(TrustedClock clock)
+    {
+        mClock = clock;
+    }
+
+    @Override
+    public TimeSample getTime(int timeout) throws IOException
+    {
+        final long ticks = SystemClock.elapsedRealtime();
+        final long time = mClock.currentTimeMillis();
+        final long error = mClock.getError();
+        if (time <= 0 || error < 0) throw new IOException("No trusted time");
+        return new TimeSample(time, ticks, 0, time - System.currentTimeMillis(), error);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "trusted";
+    }
+}
@@ -0,0 +1,176 @@
+package com.jenxsol.timelock.app;
+
+import junit.framework.TestCase;
+
+import com.jenxsol.timelock.app.TimeLock.TimeLengths;
+import com.jenxsol.timelock.app.TimeLock.TimeOutEffect;
+
+/**
+ * {@link ExpiryPolicy} worked out at the build time, so every rule is still
+ * to come. Elapsed deadlines depend on when the policy was made, so they're
+ * read back from it rather than worked out here.
+ */
+public class ExpiryPolicyTest extends TestCase
+{
+
+    private static final long BUILD = 1350000000000L;
+
+    private static final long DAY = TimeLengths.DAY;
+
+    private static ExpiryRule rule(String name, long timeOut, TimeOutEffect effect)
+    {
+        return new ExpiryRule.Builder(name).setTimeOut(timeOut).setTimeOutEffect(effect).build();
+    }
+
+    /**
+     * export 3d, warn 5d, tie 5d, main 7d (kills), also 7d, late 14d (kills).
+     */
+    private static TimeLockConfig.Builder builder()
+    {
+        return new TimeLockConfig.Builder()
+                .setTimeOut(TimeLengths.WEEK)
+                .addRule(rule("late", 2 * TimeLengths.WEEK, TimeOutEffect.ASSASSINATE))
+                .addRule(rule("warn", 5 * DAY, TimeOutEffect.WARN_DIALOG))
+                .addRule(rule("export", 3 * DAY, TimeOutEffect.NONE))
+                .addRule(rule("tie", 5 * DAY, TimeOutEffect.NONE))
+                .addRule(rule("also", TimeLengths.WEEK, TimeOutEffect.NONE))
+                .addRule(rule("never", 0, TimeOutEffect.ASSASSINATE))
+                .addRule(new ExpiryRule.Builder("beta").setTimeOut(DAY)
+                        .setTimeOutEffect(TimeOutEffect.ASSASSINATE).setFlavors("beta").build());
+    }
+
+    private static void assertOrder(ExpiryPolicy policy, String... names)
+    {
+        assertEquals(names.length, policy.size());
+        for (int i = 0; i < names.length; i++)
+        {
+            assertEquals(names[i], policy.getRule(i).getName());
+            assertEquals(i, policy.indexOf(names[i]));
+        }
+    }
+
+    public void testOrderAndTies()
+    {
+        final ExpiryPolicy policy = new ExpiryPolicy(builder().build(), BUILD, BUILD);
+        // Ties keep the config's order, the main rule first
+        assertOrder(policy, "export", "warn", "tie", ExpiryRule.MAIN, "also", "late");
+        assertEquals(-1, policy.indexOf("never"));
+        assertEquals(-1, policy.indexOf("beta"));
+        assertEquals(BUILD + 3 * DAY, policy.getWall(0));
+        assertEquals(BUILD + 2 * TimeLengths.WEEK, policy.getWall(5));
+        for (int i = 1; i < policy.size(); i++)
+        {
+            assertTrue(policy.getWall(i) >= policy.getWall(i - 1));
+            // Elapsed deadlines are the wall ones moved
+            assertEquals(policy.getWall(i) - policy.getWall(i - 1),
+                    policy.getElapsed(i) - policy.getElapsed(i - 1));
+        }
+        assertEquals(0, policy.getDueCount());
+        assertNull(policy.getKillRule());
+        assertEquals(policy.getElapsed(0), policy.getNextElapsed());
+        assertEquals(policy.getWall(0), policy.getNextWall());
+
+        final ExpiryPolicy beta = new ExpiryPolicy(builder().setFlavor("beta").build(), BUILD,
+                BUILD);
+        assertOrder(beta, "beta", "export", "warn", "tie", ExpiryRule.MAIN, "also", "late");
+    }
+
+    public void testNowMovesElapsed()
+    {
+        // Made a day after the build, the deadlines are a day closer
+        final ExpiryPolicy atBuild = new ExpiryPolicy(builder().build(), BUILD, BUILD);
+        final ExpiryPolicy later = new ExpiryPolicy(builder().build(), BUILD, BUILD + DAY);
+        final long diff = atBuild.getElapsed(0) - later.getElapsed(0);
+        // Give or take the time between making them
+        assertTrue("diff " + diff, diff > DAY - 1000 && diff <= DAY);
+        assertEquals(atBuild.getWall(0), later.getWall(0));
+    }
+
+    public void testAdvanceAcrossSeveralRules()
+    {
+        final ExpiryPolicy policy = new ExpiryPolicy(builder().build(), BUILD, BUILD);
+        // Deadlines are inclusive
+        assertEquals(0, policy.advance(policy.getElapsed(0), 0));
+
+        // Past warn and tie in one go
+        assertEquals(3, policy.advance(policy.getElapsed(2) + 1, 0));
+        assertNull(policy.getKillRule());
+        assertEquals(policy.getElapsed(3), policy.getNextElapsed());
+        assertEquals(policy.getWall(3), policy.getNextWall());
+
+        // The main rule is the last one that kills, also doesn't
+        assertEquals(5, policy.advance(policy.getElapsed(4) + 1, 0));
+        assertEquals(ExpiryRule.MAIN, policy.getKillRule().getName());
+
+        // Never goes back
+        assertEquals(5, policy.advance(0, 0));
+        assertEquals(5, policy.getDueCount());
+
+        assertEquals(6, policy.advance(Long.MAX_VALUE, 0));
+        assertEquals("late", policy.getKillRule().getName());
+        assertEquals(Long.MAX_VALUE, policy.getNextElapsed());
+        assertEquals(Long.MAX_VALUE, policy.getNextWall());
+    }
+
+    public void testWallClockPath()
+    {
+        final ExpiryPolicy policy = new ExpiryPolicy(builder().build(), BUILD, BUILD);
+        final long before = policy.getElapsed(0) - 1;
+        assertEquals(0, policy.advance(before, policy.getWall(0) - 1));
+        // Another process saw warn's deadline, which is due on the wall clock
+        // (inclusive) even though our elapsed clock isn't there, so is tie
+        assertEquals(3, policy.advance(before, policy.getWall(1)));
+        assertNull(policy.getKillRule());
+        assertEquals(5, policy.advance(before, policy.getWall(3)));
+        assertEquals(ExpiryRule.MAIN, policy.getKillRule().getName());
+        // Whichever got further counts
+        assertEquals(6, policy.advance(policy.getElapsed(5) + 1, policy.getWall(0)));
+    }
+
+    public void testLookupDoesNotAdvance()
+    {
+        final ExpiryPolicy policy = new ExpiryPolicy(builder().build(), BUILD, BUILD);
+        assertNull(policy.getKillRule(policy.getElapsed(2) + 1, 0));
+        assertEquals(ExpiryRule.MAIN, policy.getKillRule(policy.getElapsed(3) + 1, 0).getName());
+        assertEquals(ExpiryRule.MAIN, policy.getKillRule(0, policy.getWall(4)).getName());
+        assertEquals("late", policy.getKillRule(Long.MAX_VALUE, 0).getName());
+        assertEquals(0, policy.getDueCount());
+
+        // Already due stays due
+        policy.advance(policy.getElapsed(3) + 1, 0);
+        assertEquals(ExpiryRule.MAIN, policy.getKillRule(0, 0).getName());
+    }
+
+    public void testReplaceByName()
+    {
+        final TimeLockConfig config = builder()
+                .addRule(rule("warn", DAY, TimeOutEffect.ASSASSINATE))
+                .removeRule("tie")
+                .build();
+        assertEquals(6, config.getRules().length);
+        final ExpiryPolicy policy = new ExpiryPolicy(config, BUILD, BUILD);
+        assertOrder(policy, "warn", "export", ExpiryRule.MAIN, "also", "late");
+        assertEquals(BUILD + DAY, policy.getWall(0));
+        assertEquals(1, policy.advance(policy.getElapsed(0) + 1, 0));
+        assertEquals("warn", policy.getKillRule().getName());
+    }
+
+    public void testMainRuleRefused()
+    {
+        final TimeLockConfig.Builder b = builder();
+        try
+        {
+            b.addRule(rule(ExpiryRule.MAIN, DAY, TimeOutEffect.NONE));
+            fail("Replaced the main rule");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+        // Left as it was
+        final ExpiryPolicy policy = new ExpiryPolicy(b.build(), BUILD, BUILD);
+        assertEquals(BUILD + TimeLengths.WEEK, policy.getWall(policy.indexOf(ExpiryRule.MAIN)));
+        assertEquals(TimeOutEffect.KILL_DIALOG,
+                policy.getRule(policy.indexOf(ExpiryRule.MAIN)).getTimeOutEffect());
+    }
+}
@@ -0,0 +1,84 @@
+package com.jenxsol.timelock.app;
+
+import junit.framework.TestCase;
+import android.app.Activity;
+import android.content.Context;
+import android.os.Looper;
+
+import com.jenxsol.timelock.app.TimeLock.TimeLengths;
+import com.jenxsol.timelock.app.TimeLock.TimeOutEffect;
+
+/**
+ * {@link TimeLock} against an activity that only counts how often it's
+ * finished. The build date can't be read from it, so we're built at 0.
+ */
+public class TimeLockTest extends TestCase
+{
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        // Activities make a Handler when they're constructed
+        if (null == Looper.myLooper()) Looper.prepare();
+    }
+
+    public void testLongerTimeOutClearsExpired()
+    {
+        final TestActivity activity = new TestActivity();
+        final TimeLock lock = TimeLock.get(activity);
+        final long age = System.currentTimeMillis() - lock.getCreatedDate().getTime();
+
+        lock.setConfig(config(Math.max(age / 2, 1)));
+        assertTrue(lock.isExpired(ExpiryRule.MAIN));
+        assertTrue(activity.killed());
+        // Latched, every check kills
+        lock.check();
+        assertTrue(activity.killed());
+
+        // Given another year
+        lock.setConfig(config(age + 52 * TimeLengths.WEEK));
+        assertFalse(lock.isExpired(ExpiryRule.MAIN));
+        lock.check();
+        assertFalse(activity.killed());
+
+        // And back again
+        lock.setConfig(config(Math.max(age / 2, 1)));
+        assertTrue(lock.isExpired(ExpiryRule.MAIN));
+        assertTrue(activity.killed());
+    }
+
+    private static TimeLockConfig config(long timeOut)
+    {
+        return new TimeLockConfig.Builder().setEnabled(true).setTimeOut(timeOut)
+                .setTimeOutEffect(TimeOutEffect.ASSASSINATE).build();
+    }
+
+    private static class TestActivity extends Activity
+    {
+        private int mFinished;
+
+        @Override
+        public Context getApplicationContext()
+        {
+            // Not attached to anything
+            return this;
+        }
+
+        @Override
+        public void finish()
+        {
+            mFinished++;
+        }
+
+        /**
+         * @return true if it's been finished since we last asked
+         */
+        boolean killed()
+        {
+            final boolean rv = mFinished > 0;
+            mFinished = 0;
+            return rv;
+        }
+    }
+}
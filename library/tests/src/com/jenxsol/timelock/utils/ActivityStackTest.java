@@ -0,0 +1,184 @@
+package com.jenxsol.timelock.utils;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import android.app.Activity;
+import android.os.Looper;
+
+public class ActivityStackTest extends TestCase
+{
+
+    private ActivityStack mStack;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        // Activities make a Handler when they're constructed
+        if (null == Looper.myLooper()) Looper.prepare();
+        mStack = new ActivityStack(10);
+    }
+
+    public void testPushAndRemove()
+    {
+        final TestActivity a = new TestActivity();
+        assertTrue(mStack.push(a));
+        assertFalse(mStack.push(a));
+        assertFalse(mStack.push(null));
+        assertEquals(1, mStack.size());
+        assertTrue(mStack.remove(a));
+        assertFalse(mStack.remove(a));
+        assertFalse(mStack.remove(null));
+        assertEquals(0, mStack.size());
+    }
+
+    public void testTop()
+    {
+        assertNull(mStack.top());
+        final TestActivity bottom = new TestActivity();
+        final TestActivity middle = new TestActivity();
+        final TestActivity top = new TestActivity();
+        mStack.push(bottom);
+        mStack.push(middle);
+        mStack.push(top);
+        assertSame(top, mStack.top());
+        top.finishing = true;
+        assertSame(middle, mStack.top());
+        mStack.remove(middle);
+        assertSame(bottom, mStack.top());
+        // Back on top once pushed again
+        mStack.push(middle);
+        assertSame(middle, mStack.top());
+    }
+
+    public void testDrainTopFirst()
+    {
+        final TestActivity[] activities = new TestActivity[20];
+        for (int i = 0; i < activities.length; i++)
+        {
+            activities[i] = new TestActivity();
+            mStack.push(activities[i]);
+        }
+        mStack.remove(activities[5]);
+
+        final List<Activity> drained = mStack.drain();
+        assertEquals(activities.length - 1, drained.size());
+        int at = 0;
+        for (int i = activities.length - 1; i >= 0; i--)
+        {
+            if (i != 5) assertSame(activities[i], drained.get(at++));
+        }
+        assertEquals(0, mStack.size());
+        assertTrue(mStack.drain().isEmpty());
+    }
+
+    public void testDrainWhilePushing() throws Exception
+    {
+        final int threads = 4;
+        final int perThread = 2000;
+        final TestActivity[] activities = new TestActivity[threads * perThread];
+        for (int i = 0; i < activities.length; i++)
+        {
+            activities[i] = new TestActivity();
+        }
+        final IdentityHashMap<Activity, Integer> seen = new IdentityHashMap<Activity, Integer>();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final ArrayList<Thread> all = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++)
+        {
+            final int from = t * perThread;
+            all.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    await(start);
+                    for (int i = from; i < from + perThread; i++)
+                    {
+                        mStack.push(activities[i]);
+                    }
+                }
+            });
+            // And someone tearing down at the same time
+            all.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    await(start);
+                    try
+                    {
+                        for (int i = 0; i < 50; i++)
+                        {
+                            count(seen, mStack.drain());
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        error.set(e);
+                    }
+                }
+            });
+        }
+        for (Thread t : all)
+        {
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : all)
+        {
+            t.join();
+        }
+        assertNull(String.valueOf(error.get()), error.get());
+        count(seen, mStack.drain());
+
+        // Every one came out of exactly one drain
+        assertEquals(activities.length, seen.size());
+        for (Integer n : seen.values())
+        {
+            assertEquals(1, n.intValue());
+        }
+        assertEquals(0, mStack.size());
+    }
+
+    private static void count(IdentityHashMap<Activity, Integer> seen, List<Activity> drained)
+    {
+        synchronized (seen)
+        {
+            for (Activity a : drained)
+            {
+                final Integer n = seen.get(a);
+                seen.put(a, null == n ? 1 : n + 1);
+            }
+        }
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class TestActivity extends Activity
+    {
+        volatile boolean finishing;
+
+        @Override
+        public boolean isFinishing()
+        {
+            return finishing;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import android.os.SystemClock;
+
+/**
+ * Talks to a {@link LoopbackSntpServer}, so no network needed.
+ */
+public class AsyncSntpClientTest extends TestCase
+{
+
+    private static final long SKEW = 5000;
+
+    /**
+     * Loopback answers in well under this.
+     */
+    private static final long TOLERANCE = 100;
+
+    private LoopbackSntpServer mServer;
+    private AsyncSntpClient mClient;
+    private final ArrayList<LoopbackSntpServer> mOthers = new ArrayList<LoopbackSntpServer>();
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mServer = new LoopbackSntpServer();
+        mServer.skew = SKEW;
+        mClient = new AsyncSntpClient(mServer.getPort());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        mClient.close();
+        mServer.close();
+        for (LoopbackSntpServer server : mOthers)
+        {
+            server.close();
+        }
+        super.tearDown();
+    }
+
+    public void testRequestTime() throws Exception
+    {
+        final TimeSample sample = mClient.requestTime(mServer.getAddress(), 2000, null).get();
+        assertEquals(SKEW, sample.getClockOffset(), TOLERANCE);
+        assertEquals(System.currentTimeMillis() + SKEW, sample.getNtpTime()
+                + SystemClock.elapsedRealtime() - sample.getNtpTimeReference(), TOLERANCE);
+        assertTrue(sample.getRoundTripTime() < TOLERANCE);
+    }
+
+    public void testCallback() throws Exception
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<TimeSample> result = new AtomicReference<TimeSample>();
+        final String host = mServer.getAddress().getHostAddress();
+        mClient.requestTime(mServer.getAddress(), 2000, new AsyncSntpClient.Callback()
+        {
+            @Override
+            public void onTime(String h, TimeSample sample)
+            {
+                if (host.equals(h)) result.set(sample);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(String h, Exception e)
+            {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertNotNull(result.get());
+    }
+
+    public void testManyInFlight() throws Exception
+    {
+        final Future<?>[] results = new Future<?>[100];
+        for (int i = 0; i < results.length; i++)
+        {
+            results[i] = mClient.requestTime(mServer.getAddress(), 5000, null);
+        }
+        for (Future<?> f : results)
+        {
+            assertNotNull(f.get());
+        }
+        assertEquals(results.length, mServer.requests.get());
+    }
+
+    public void testTimeout() throws Exception
+    {
+        mServer.silent = true;
+        final long start = SystemClock.elapsedRealtime();
+        try
+        {
+            mClient.requestTime(mServer.getAddress(), 300, null).get();
+            fail();
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+        final long took = SystemClock.elapsedRealtime() - start;
+        assertTrue("took " + took, took >= 300 && took < 300 + 1000);
+    }
+
+    public void testKissOfDeath() throws Exception
+    {
+        mServer.kissCode = "RATE";
+        try
+        {
+            mClient.requestTime(mServer.getAddress(), 2000, null).get();
+            fail();
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof KissOfDeathException);
+            assertTrue(((KissOfDeathException) e.getCause()).isRateLimit());
+        }
+    }
+
+    public void testCancel() throws Exception
+    {
+        mServer.silent = true;
+        final Future<TimeSample> f = mClient.requestTime(mServer.getAddress(), 5000, null);
+        assertTrue(f.cancel(true));
+        assertTrue(f.isCancelled());
+        assertTrue(f.isDone());
+    }
+
+    public void testClosed()
+    {
+        mClient.close();
+        try
+        {
+            mClient.requestTime(mServer.getAddress(), 2000, null).get();
+            fail();
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        catch (InterruptedException e)
+        {
+            fail();
+        }
+    }
+
+    /**
+     * @return another server on 127.0.0.n, same port as {@link #mServer}
+     */
+    private LoopbackSntpServer another(int n, long skew) throws IOException
+    {
+        final LoopbackSntpServer server = new LoopbackSntpServer("127.0.0." + n,
+                mServer.getPort());
+        server.skew = skew;
+        mOthers.add(server);
+        return server;
+    }
+
+    /**
+     * Sets up 127.0.0.1 to 4: one a little way off, one that takes a while to
+     * answer (but the round trip itself is short), one far off and one that
+     * never answers. Each has its own skew, so we can tell whose sample won.
+     */
+    private String[] raceServers() throws IOException
+    {
+        mServer.skew = 1000;
+        mServer.delay = 80;
+        another(2, 2000).hold = 150;
+        another(3, 3000).delay = 400;
+        another(4, 4000).silent = true;
+        return new String[] { "127.0.0.1", "127.0.0.2", "127.0.0.3", "127.0.0.4" };
+    }
+
+    public void testRaceLowestRoundTrip() throws Exception
+    {
+        final String[] hosts = raceServers();
+        final RecordingCallback callback = new RecordingCallback();
+        final long start = SystemClock.elapsedRealtime();
+        final TimeSample sample = mClient.requestTime(hosts, 2, 2000, callback).get();
+        final long took = SystemClock.elapsedRealtime() - start;
+        // .1 answered first, but .2's round trip was shorter
+        assertEquals(2000, sample.getClockOffset(), TOLERANCE);
+        assertTrue(sample.getRoundTripTime() < 80);
+        // Didn't wait for the far one, let alone the dead one
+        assertTrue("took " + took, took >= 150 && took < 400);
+        assertTrue(callback.done.await(1, TimeUnit.SECONDS));
+        assertEquals("127.0.0.2", callback.host);
+        assertSame(sample, callback.sample);
+        // Even after the losers would have answered
+        Thread.sleep(500);
+        assertEquals(1, callback.calls.get());
+        for (LoopbackSntpServer server : mOthers)
+        {
+            assertEquals(1, server.requests.get());
+        }
+    }
+
+    public void testRaceQuorumOfOne() throws Exception
+    {
+        final String[] hosts = raceServers();
+        final TimeSample sample = mClient.requestTime(hosts, 1, 2000, null).get();
+        // First in wins
+        assertEquals(1000, sample.getClockOffset(), TOLERANCE);
+    }
+
+    public void testRaceBestOfTheRest() throws Exception
+    {
+        final String[] hosts = raceServers();
+        final long start = SystemClock.elapsedRealtime();
+        // One of them never answers, so wait for the timeout and take the
+        // best we got
+        final TimeSample sample = mClient.requestTime(hosts, 4, 700, null).get();
+        final long took = SystemClock.elapsedRealtime() - start;
+        assertEquals(2000, sample.getClockOffset(), TOLERANCE);
+        assertTrue("took " + took, took >= 700 && took < 700 + 1000);
+    }
+
+    public void testRaceNoneAnswer() throws Exception
+    {
+        mServer.silent = true;
+        another(2, 0).silent = true;
+        try
+        {
+            mClient.requestTime(new String[] { "127.0.0.1", "127.0.0.2" }, 1, 300, null).get();
+            fail();
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    public void testRaceCancelsLosers()
+    {
+        final RecordingCallback callback = new RecordingCallback();
+        final AsyncSntpClient.Race race = new AsyncSntpClient.Race(4, 2, callback);
+        final AsyncSntpClient.Result[] requests = new AsyncSntpClient.Result[4];
+        for (int i = 0; i < requests.length; i++)
+        {
+            requests[i] = new AsyncSntpClient.Result("s" + i, race);
+            race.add(requests[i]);
+        }
+        final TimeSample slow = sample(50);
+        final TimeSample quick = sample(10);
+        assertTrue(requests[1].complete(slow));
+        assertFalse(race.isDone());
+        assertTrue(requests[0].complete(quick));
+
+        // Lowest round trip of the quorum, once
+        assertTrue(race.isDone());
+        assertEquals(1, callback.calls.get());
+        assertEquals("s0", callback.host);
+        assertSame(quick, callback.sample);
+        // The rest are dropped, a late answer goes nowhere
+        assertTrue(requests[2].isCancelled());
+        assertTrue(requests[3].isCancelled());
+        assertFalse(requests[2].complete(sample(1)));
+        assertEquals(1, callback.calls.get());
+
+        // And anything added after
+        final AsyncSntpClient.Result late = new AsyncSntpClient.Result("late", race);
+        race.add(late);
+        assertTrue(late.isCancelled());
+    }
+
+    public void testRaceFailuresCount() throws Exception
+    {
+        final AsyncSntpClient.Race race = new AsyncSntpClient.Race(3, 2, null);
+        final AsyncSntpClient.Result[] requests = new AsyncSntpClient.Result[3];
+        for (int i = 0; i < requests.length; i++)
+        {
+            requests[i] = new AsyncSntpClient.Result("s" + i, race);
+            race.add(requests[i]);
+        }
+        final TimeSample only = sample(20);
+        requests[0].fail(new SocketTimeoutException());
+        requests[1].complete(only);
+        assertFalse(race.isDone());
+        // Everyone's in, one reply is better than none
+        requests[2].fail(new SocketTimeoutException());
+        assertSame(only, race.get());
+    }
+
+    public void testRaceAllFail() throws Exception
+    {
+        final AsyncSntpClient.Race race = new AsyncSntpClient.Race(2, 1, null);
+        final AsyncSntpClient.Result a = new AsyncSntpClient.Result("a", race);
+        final AsyncSntpClient.Result b = new AsyncSntpClient.Result("b", race);
+        race.add(a);
+        race.add(b);
+        a.fail(new SocketTimeoutException());
+        final KissOfDeathException kiss = new KissOfDeathException("DENY");
+        b.fail(kiss);
+        try
+        {
+            race.get();
+            fail();
+        }
+        catch (ExecutionException e)
+        {
+            assertSame(kiss, e.getCause());
+        }
+    }
+
+    public void testRaceCancel() throws Exception
+    {
+        final AsyncSntpClient.Race race = new AsyncSntpClient.Race(2, 1, null);
+        final AsyncSntpClient.Result a = new AsyncSntpClient.Result("a", race);
+        final AsyncSntpClient.Result b = new AsyncSntpClient.Result("b", race);
+        race.add(a);
+        race.add(b);
+        assertTrue(race.cancel(false));
+        assertTrue(a.isCancelled());
+        assertTrue(b.isCancelled());
+        try
+        {
+            race.get();
+            fail();
+        }
+        catch (CancellationException e)
+        {
+            // Expected
+        }
+    }
+
+    private static TimeSample sample(long roundTrip)
+    {
+        return new TimeSample(1350000000000L, SystemClock.elapsedRealtime(), roundTrip, 0,
+                roundTrip / 2);
+    }
+
+    private static class RecordingCallback implements AsyncSntpClient.Callback
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String host;
+        volatile TimeSample sample;
+
+        @Override
+        public void onTime(String h, TimeSample s)
+        {
+            host = h;
+            sample = s;
+            calls.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(String h, Exception e)
+        {
+            host = h;
+            calls.incrementAndGet();
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.jenxsol.timelock.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ClockFilterTest extends TestCase
+{
+
+    private static final long TIME = 1350388800250L;
+
+    public void testFilterLowestRoundTrip()
+    {
+        assertNull(ClockFilter.filter(new ArrayList<TimeSample>()));
+        final TimeSample fast = sample(40, 100, 20);
+        final TimeSample tie = sample(40, 300, 20);
+        assertSame(fast, ClockFilter.filter(Arrays.asList(sample(90, 0, 20), fast,
+                sample(60, 200, 20), tie)));
+    }
+
+    public void testIntersectEmpty()
+    {
+        assertNull(ClockFilter.intersect(new ArrayList<TimeSample>()));
+    }
+
+    public void testIntersectSingle()
+    {
+        final TimeSample s = ClockFilter.intersect(Arrays.asList(sample(30, 100, 50)));
+        assertEquals(100, s.getClockOffset());
+        assertEquals(50, s.getDispersion());
+    }
+
+    public void testIntersectAllAgree()
+    {
+        // [50, 150], [70, 170] and [60, 120] all overlap in [70, 120]
+        final TimeSample best = sample(10, 90, 30);
+        final TimeSample s = ClockFilter.intersect(Arrays.asList(sample(30, 100, 50),
+                sample(20, 120, 50), best));
+        assertEquals(95, s.getClockOffset());
+        assertEquals(25, s.getDispersion());
+        // Anchored on the lowest round trip
+        assertEquals(best.getNtpTimeReference(), s.getNtpTimeReference());
+        assertEquals(best.getRoundTripTime(), s.getRoundTripTime());
+        assertEquals(best.getNtpTime() - 90 + 95, s.getNtpTime());
+    }
+
+    public void testIntersectOutvotesFalseticker()
+    {
+        // Fastest server is an hour out, the other two agree in [70, 150]
+        final TimeSample wrong = sample(5, 3600000, 50);
+        final TimeSample s = ClockFilter.intersect(Arrays.asList(sample(30, 100, 50), wrong,
+                sample(20, 120, 50)));
+        assertEquals(110, s.getClockOffset());
+        assertEquals(40, s.getDispersion());
+        assertEquals(20, s.getRoundTripTime());
+    }
+
+    public void testIntersectNoMajority()
+    {
+        assertNull(ClockFilter.intersect(Arrays.asList(sample(30, 0, 10), sample(30, 100, 10))));
+        assertNull(ClockFilter.intersect(Arrays.asList(sample(30, 0, 10), sample(30, 100, 10),
+                sample(30, 200, 10), sample(30, 210, 10))));
+    }
+
+    public void testIntersectTouching()
+    {
+        // [0, 10] and [10, 20] meet at 10
+        final TimeSample s = ClockFilter.intersect(Arrays.asList(sample(30, 5, 5),
+                sample(30, 15, 5)));
+        assertEquals(10, s.getClockOffset());
+        assertEquals(0, s.getDispersion());
+    }
+
+    public void testIntersectNegativeDispersion()
+    {
+        // Treated as a point
+        final TimeSample s = ClockFilter.intersect(Arrays.asList(sample(30, 50, -5),
+                sample(30, 40, 20)));
+        assertEquals(50, s.getClockOffset());
+        assertEquals(0, s.getDispersion());
+    }
+
+    private static TimeSample sample(long roundTrip, long offset, long dispersion)
+    {
+        final long ref = 1000 + offset;
+        return new TimeSample(TIME + offset, ref, roundTrip, offset, dispersion);
+    }
+}
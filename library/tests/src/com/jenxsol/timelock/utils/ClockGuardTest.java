@@ -0,0 +1,208 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+/**
+ * {@link ClockGuard} on the real clocks, with the preferences in memory and
+ * writes queued until the test runs them.
+ */
+public class ClockGuardTest extends TestCase
+{
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    /**
+     * Millis a test can take between two reads.
+     */
+    private static final long SLOP = 1000;
+
+    private static final String BOOT_ID = "boot";
+
+    private Context mContext;
+    private QueueExecutor mWriter;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mContext = MapPreferences.context();
+        mWriter = new QueueExecutor();
+        mFile = File.createTempFile("timelock", ".state");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private ClockGuard open(Context ctx, SharedState shared)
+    {
+        return new ClockGuard(ctx, mWriter, shared, BOOT_ID);
+    }
+
+    private SharedState openShared() throws Exception
+    {
+        return SharedState.open(mFile, 1, BOOT_ID, TrustedClock.bootTime());
+    }
+
+    private SharedPreferences prefs()
+    {
+        return mContext.getSharedPreferences("timelock", Context.MODE_PRIVATE);
+    }
+
+    private static void assertNear(long expected, long actual)
+    {
+        assertTrue("expected " + expected + " got " + actual, actual >= expected
+                && actual <= expected + SLOP);
+    }
+
+    public void testFirstRunSeedsFromWallClock()
+    {
+        final long before = System.currentTimeMillis();
+        final ClockGuard guard = open(mContext, null);
+        assertNear(before, guard.getFloor());
+        assertNear(before, guard.currentTimeMillis());
+        // Saved in the background
+        assertFalse(prefs().contains("hwm_time"));
+        assertEquals(1, mWriter.runAll());
+        assertNear(before, prefs().getLong("hwm_time", 0));
+    }
+
+    public void testRaise()
+    {
+        final ClockGuard guard = open(mContext, null);
+        mWriter.runAll();
+        final long ahead = System.currentTimeMillis() + HOUR;
+        guard.raise(ahead);
+        // The wall clock is behind it, so it's been wound back
+        assertNear(ahead, guard.getFloor());
+        assertNear(ahead, guard.currentTimeMillis());
+
+        // Never goes down
+        guard.raise(ahead - 2 * HOUR);
+        assertNear(ahead, guard.getFloor());
+        assertEquals(1, mWriter.runAll());
+        assertNear(ahead, prefs().getLong("hwm_time", 0));
+    }
+
+    public void testWritesCoalesce()
+    {
+        final ClockGuard guard = open(mContext, null);
+        final long now = System.currentTimeMillis();
+        for (int i = 1; i <= 10; i++)
+        {
+            guard.raise(now + i * HOUR);
+        }
+        // Just the one, which saves the latest
+        assertEquals(1, mWriter.runAll());
+        assertNear(now + 10 * HOUR, prefs().getLong("hwm_time", 0));
+        guard.touch();
+        assertEquals(0, mWriter.runAll());
+    }
+
+    public void testOnTrustedTime()
+    {
+        final ClockGuard guard = open(mContext, null);
+        final long now = System.currentTimeMillis();
+        guard.raise(now + HOUR);
+        // The network says it's earlier than our mark, the mark was wrong
+        guard.onTrustedTime(now - HOUR);
+        assertNear(now - HOUR, guard.getFloor());
+        assertNear(now, guard.currentTimeMillis());
+        mWriter.runAll();
+        assertNear(now - HOUR, prefs().getLong("hwm_time", 0));
+    }
+
+    public void testLoadSameBoot()
+    {
+        final long ahead = System.currentTimeMillis() + HOUR;
+        open(mContext, null).raise(ahead);
+        mWriter.runAll();
+        // A new process, it can't be before the old one's mark
+        final ClockGuard guard = open(mContext, null);
+        assertNear(ahead, guard.getFloor());
+        assertEquals(0, mWriter.runAll());
+    }
+
+    public void testLoadAfterReboot()
+    {
+        final long ahead = System.currentTimeMillis() + HOUR;
+        open(mContext, null).raise(ahead);
+        mWriter.runAll();
+        // Saved at a tick count from another boot, at least all of this one
+        // has passed since
+        prefs().edit().putLong("hwm_ticks", SystemClock.elapsedRealtime() + HOUR).commit();
+        final ClockGuard guard = new ClockGuard(mContext, mWriter, null, "another boot");
+        assertNear(ahead + SystemClock.elapsedRealtime(), guard.getFloor());
+    }
+
+    public void testAdoptSharedFloor() throws Exception
+    {
+        final SharedState shared = openShared();
+        final SharedState other = openShared();
+        // Two processes, each with its own mark
+        final ClockGuard one = open(mContext, shared);
+        final ClockGuard two = open(MapPreferences.context(), other);
+        final long now = System.currentTimeMillis();
+        one.raise(now + HOUR);
+        assertNear(now + HOUR, two.getFloor());
+
+        // A lower one doesn't drag ours down
+        two.raise(now + 2 * HOUR);
+        one.onTrustedTime(now);
+        assertNear(now, one.getFloor());
+        assertNear(now + 2 * HOUR, two.getFloor());
+        shared.close();
+        other.close();
+    }
+
+    public void testSharedFloorOnStart() throws Exception
+    {
+        final SharedState shared = openShared();
+        final long ahead = System.currentTimeMillis() + HOUR;
+        open(mContext, shared).raise(ahead);
+        // First run for this process's preferences, the shared mark beats the
+        // wall clock
+        final ClockGuard guard = open(MapPreferences.context(), shared);
+        assertNear(ahead, guard.getFloor());
+        shared.close();
+    }
+
+    /**
+     * Runs nothing until asked.
+     */
+    private static class QueueExecutor implements Executor
+    {
+        private final ArrayList<Runnable> mQueue = new ArrayList<Runnable>();
+
+        @Override
+        public synchronized void execute(Runnable r)
+        {
+            mQueue.add(r);
+        }
+
+        /**
+         * @return how many ran
+         */
+        synchronized int runAll()
+        {
+            final int n = mQueue.size();
+            for (Runnable r : mQueue)
+            {
+                r.run();
+            }
+            mQueue.clear();
+            return n;
+        }
+    }
+}
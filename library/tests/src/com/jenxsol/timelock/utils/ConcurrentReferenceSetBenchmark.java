@@ -0,0 +1,57 @@
+package com.jenxsol.timelock.utils;
+
+import java.util.Collections;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+/**
+ * Throughput of {@link ConcurrentWeakHashSet} against a locked
+ * {@link SoftHashSet} on the same mixed workload as
+ * {@link ConcurrentReferenceSetTest#testStress()}. Results go to the log
+ * (tag timelock), nothing is asserted as it depends on the device.
+ */
+public class ConcurrentReferenceSetBenchmark extends TestCase
+{
+    private static final String TAG = "timelock";
+
+    private static final int OPS_PER_THREAD = 200000;
+    private static final int ROUNDS = 3;
+
+    public void testThroughput() throws InterruptedException
+    {
+        final Object[] objects = ConcurrentReferenceSetTest.newObjects(1000);
+        for (int threads = 1; threads <= 8; threads *= 2)
+        {
+            long locked = 0;
+            long concurrent = 0;
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                // Best of the rounds, the first ones warm up the JIT
+                locked = Math.max(locked, opsPerSecond(
+                        Collections.synchronizedSet(new SoftHashSet<Object>()), true, objects,
+                        threads));
+                concurrent = Math.max(concurrent,
+                        opsPerSecond(new ConcurrentWeakHashSet<Object>(), false, objects, threads));
+            }
+            Log.i(TAG, threads + " threads: locked SoftHashSet " + locked
+                    + " ops/s, ConcurrentWeakHashSet " + concurrent + " ops/s");
+        }
+    }
+
+    private static long opsPerSecond(Set<Object> set, boolean lockToIterate, Object[] objects,
+            int threads) throws InterruptedException
+    {
+        for (Object o : objects)
+        {
+            set.add(o);
+        }
+        final long start = System.nanoTime();
+        final Throwable error = ConcurrentReferenceSetTest.runMixed(set, lockToIterate, objects,
+                threads, OPS_PER_THREAD);
+        final long took = System.nanoTime() - start;
+        assertNull(String.valueOf(error), error);
+        return (long) threads * OPS_PER_THREAD * 1000000000L / Math.max(took, 1);
+    }
+}
@@ -0,0 +1,228 @@
+package com.jenxsol.timelock.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class ConcurrentReferenceSetTest extends TestCase
+{
+
+    private static final int THREADS = 8;
+    private static final int OPS_PER_THREAD = 200000;
+
+    public void testAddContainsRemove()
+    {
+        final Set<Object> set = new ConcurrentWeakHashSet<Object>();
+        final Object a = new Object();
+        final Object b = new Object();
+        assertTrue(set.add(a));
+        assertFalse(set.add(a));
+        assertTrue(set.add(b));
+        assertFalse(set.add(null));
+        assertEquals(2, set.size());
+        assertTrue(set.contains(a));
+        assertFalse(set.contains(new Object()));
+        assertTrue(set.remove(a));
+        assertFalse(set.remove(a));
+        assertFalse(set.contains(a));
+        assertEquals(1, set.size());
+        set.clear();
+        assertEquals(0, set.size());
+        assertTrue(set.isEmpty());
+    }
+
+    public void testIteratorRemove()
+    {
+        final Set<Object> set = new ConcurrentSoftHashSet<Object>();
+        for (int i = 0; i < 10; i++)
+        {
+            set.add(new Integer(i));
+        }
+        for (Iterator<Object> i = set.iterator(); i.hasNext();)
+        {
+            if (((Integer) i.next()) % 2 == 0) i.remove();
+        }
+        assertEquals(5, set.size());
+        assertFalse(set.contains(new Integer(4)));
+        assertTrue(set.contains(new Integer(5)));
+    }
+
+    public void testCollectedEntriesGo() throws InterruptedException
+    {
+        final Set<Object> set = new ConcurrentWeakHashSet<Object>();
+        final Object kept = new Object();
+        set.add(kept);
+        for (int i = 0; i < 100; i++)
+        {
+            set.add(new Object());
+        }
+        for (int i = 0; i < 50 && set.size() > 1; i++)
+        {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, set.size());
+        assertTrue(set.contains(kept));
+    }
+
+    public void testIterateWhileChanging() throws InterruptedException
+    {
+        final Set<Object> set = new ConcurrentWeakHashSet<Object>();
+        final Object[] objects = newObjects(1000);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for (int round = 0; round < 100; round++)
+                    {
+                        for (Object o : objects)
+                        {
+                            set.add(o);
+                        }
+                        for (Object o : objects)
+                        {
+                            set.remove(o);
+                        }
+                    }
+                }
+                catch (Throwable t)
+                {
+                    error.set(t);
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive())
+        {
+            for (Object o : set)
+            {
+                assertNotNull(o);
+            }
+        }
+        writer.join();
+        assertNull(error.get());
+        assertEquals(0, set.size());
+    }
+
+    /**
+     * Every thread reads, adds, removes and iterates the same objects at
+     * once, then the count has to match what's really in there.
+     */
+    public void testStress() throws InterruptedException
+    {
+        final Set<Object> set = new ConcurrentWeakHashSet<Object>();
+        final Object[] objects = newObjects(1000);
+        final Throwable error = runMixed(set, false, objects, THREADS, OPS_PER_THREAD);
+        assertNull(String.valueOf(error), error);
+
+        int walked = 0;
+        for (Object o : set)
+        {
+            assertNotNull(o);
+            walked++;
+        }
+        assertEquals(walked, set.size());
+
+        for (Object o : objects)
+        {
+            set.add(o);
+        }
+        assertEquals(objects.length, set.size());
+        for (Object o : objects)
+        {
+            assertTrue(set.remove(o));
+        }
+        assertEquals(0, set.size());
+    }
+
+    static Object[] newObjects(int n)
+    {
+        final Object[] objects = new Object[n];
+        for (int i = 0; i < n; i++)
+        {
+            objects[i] = new Object();
+        }
+        return objects;
+    }
+
+    /**
+     * 60% contains, 20% add, 10% remove, 10% iterate.
+     *
+     * @param lockToIterate
+     *            iterate holding the set's monitor, needed for
+     *            {@link java.util.Collections#synchronizedSet(Set)}
+     * @return the first thing any thread threw, or null
+     */
+    static Throwable runMixed(final Set<Object> set, final boolean lockToIterate,
+            final Object[] objects, int threads, final int ops) throws InterruptedException
+    {
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final List<Thread> running = new ArrayList<Thread>(threads);
+        for (int t = 0; t < threads; t++)
+        {
+            final Random random = new Random(t);
+            final Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        go.await();
+                        for (int i = 0; i < ops; i++)
+                        {
+                            final Object o = objects[random.nextInt(objects.length)];
+                            final int op = random.nextInt(10);
+                            if (op < 6) set.contains(o);
+                            else if (op < 8) set.add(o);
+                            else if (op < 9) set.remove(o);
+                            else if (lockToIterate)
+                            {
+                                synchronized (set)
+                                {
+                                    walk(set);
+                                }
+                            }
+                            else walk(set);
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            thread.start();
+            running.add(thread);
+        }
+        go.countDown();
+        for (Thread thread : running)
+        {
+            thread.join();
+        }
+        return error.get();
+    }
+
+    /**
+     * Short walk, a full one would swamp the rest.
+     */
+    private static void walk(Set<Object> set)
+    {
+        final Iterator<Object> it = set.iterator();
+        for (int k = 0; k < 16 && it.hasNext(); k++)
+        {
+            if (null == it.next()) throw new AssertionError();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.jenxsol.timelock.utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * {@link DnsCache} with a clock we move by hand, and lookups that answer
+ * 10.0.0.n for the nth one (or fail, or wait) without going near DNS.
+ */
+public class DnsCacheTest extends TestCase
+{
+
+    private static final String HOST = "pool.example";
+
+    private TestCache mCache;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mCache = new TestCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        // Don't leave the shared lookup thread stuck
+        mCache.open();
+        idle();
+        super.tearDown();
+    }
+
+    /**
+     * Waits for the lookups already queued.
+     */
+    private static void idle() throws Exception
+    {
+        DnsCache.getResolver().submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    private static int last(InetAddress address)
+    {
+        return address.getAddress()[3];
+    }
+
+    public void testFreshForTtl() throws Exception
+    {
+        assertNull(mCache.peek(HOST));
+        assertEquals(1, last(mCache.lookup(HOST)));
+        mCache.now += DnsCache.TTL - 1;
+        assertEquals(1, last(mCache.lookup(HOST)));
+        assertEquals(1, last(mCache.peek(HOST)));
+        idle();
+        assertEquals(1, mCache.queries.get());
+    }
+
+    public void testStaleWhileRevalidate() throws Exception
+    {
+        mCache.lookup(HOST);
+        mCache.now += DnsCache.TTL;
+        // The old answer straight away, the new one once it's back
+        assertEquals(1, last(mCache.peek(HOST)));
+        idle();
+        assertEquals(2, mCache.queries.get());
+        assertEquals(2, last(mCache.peek(HOST)));
+    }
+
+    public void testFailedRefreshKeepsOld() throws Exception
+    {
+        mCache.lookup(HOST);
+        mCache.now += DnsCache.TTL;
+        mCache.fail = true;
+        assertEquals(1, last(mCache.peek(HOST)));
+        idle();
+        assertEquals(2, mCache.queries.get());
+        // Still stale, so it goes again
+        assertEquals(1, last(mCache.peek(HOST)));
+        idle();
+        assertEquals(3, mCache.queries.get());
+    }
+
+    public void testTooStale() throws Exception
+    {
+        mCache.lookup(HOST);
+        mCache.now += DnsCache.MAX_STALE;
+        assertNull(mCache.peek(HOST));
+        // Blocks for a new one
+        assertEquals(2, last(mCache.lookup(HOST)));
+    }
+
+    public void testClockGoesBack() throws Exception
+    {
+        mCache.lookup(HOST);
+        // i.e. cached before a reboot
+        mCache.now -= 1000;
+        assertNull(mCache.peek(HOST));
+    }
+
+    public void testCoalescedRefresh() throws Exception
+    {
+        mCache.lookup(HOST);
+        mCache.now += DnsCache.TTL;
+        mCache.close();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++)
+        {
+            threads[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 100; i++)
+                    {
+                        mCache.peek(HOST);
+                        mCache.prefetch(HOST);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+        {
+            t.join();
+        }
+        mCache.open();
+        idle();
+        // One lookup under way at a time
+        assertEquals(2, mCache.queries.get());
+        assertEquals(2, last(mCache.peek(HOST)));
+    }
+
+    public void testCoalescedPrefetch() throws Exception
+    {
+        mCache.close();
+        for (int i = 0; i < 100; i++)
+        {
+            mCache.prefetch(HOST, null, HOST);
+        }
+        mCache.open();
+        idle();
+        assertEquals(1, mCache.queries.get());
+        assertEquals(1, last(mCache.peek(HOST)));
+        // Fresh, so nothing more
+        mCache.prefetch(HOST);
+        idle();
+        assertEquals(1, mCache.queries.get());
+    }
+
+    public void testPinned() throws Exception
+    {
+        mCache.pin(HOST, "129.6.15.28", "129.6.15.29");
+        mCache.close();
+        final InetAddress pinned = mCache.peek(HOST);
+        assertEquals("129.6.15.28", pinned.getHostAddress());
+        assertEquals(HOST, pinned.getHostName());
+        assertEquals(pinned, mCache.peek(HOST));
+        mCache.open();
+        idle();
+        // Looked up once in the background, which wins from then on
+        assertEquals(1, mCache.queries.get());
+        assertEquals(1, last(mCache.peek(HOST)));
+
+        // And is there again when we've nothing better
+        mCache.clear();
+        assertEquals("129.6.15.28", mCache.peek(HOST).getHostAddress());
+    }
+
+    public void testParseIpv4()
+    {
+        assertBytes(DnsCache.parseIpv4("129.6.15.28"), 129, 6, 15, 28);
+        assertBytes(DnsCache.parseIpv4("0.0.0.0"), 0, 0, 0, 0);
+        assertBytes(DnsCache.parseIpv4("255.255.255.255"), 255, 255, 255, 255);
+        assertBytes(DnsCache.parseIpv4("10.0.100.1"), 10, 0, 100, 1);
+
+        final String[] bad = { "256.1.1.1", "1.2.3", "01.2.3.4", "1.2.3.00", "1.2.3.4.5",
+                "1..3.4", ".1.2.3", "1.2.3.", "", "1.2.3.-4", " 1.2.3.4", "1.2.3.4 ",
+                "a.b.c.d", "1000.1.1.1", "2001:db8::1", "pool.ntp.org" };
+        for (String s : bad)
+        {
+            assertNull(s, DnsCache.parseIpv4(s));
+            try
+            {
+                mCache.pin(HOST, s);
+                fail("Pinned " + s);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Expected
+            }
+        }
+        assertNull(mCache.peek(HOST));
+    }
+
+    private static void assertBytes(byte[] actual, int... expected)
+    {
+        assertNotNull(actual);
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+        {
+            assertEquals(expected[i], actual[i] & 0xff);
+        }
+    }
+
+    private static class TestCache extends DnsCache
+    {
+        volatile long now = 1000 * 1000;
+        volatile boolean fail;
+        final AtomicInteger queries = new AtomicInteger();
+        private volatile CountDownLatch mGate = new CountDownLatch(0);
+
+        /**
+         * Lookups wait until {@link #open()}.
+         */
+        void close()
+        {
+            mGate = new CountDownLatch(1);
+        }
+
+        void open()
+        {
+            mGate.countDown();
+        }
+
+        @Override
+        long now()
+        {
+            return now;
+        }
+
+        @Override
+        InetAddress[] query(String host) throws UnknownHostException
+        {
+            final int n = queries.incrementAndGet();
+            try
+            {
+                mGate.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            if (fail) throw new UnknownHostException(host);
+            return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 10, 0, 0,
+                    (byte) n }) };
+        }
+    }
+}
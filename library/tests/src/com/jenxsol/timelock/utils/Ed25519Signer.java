@@ -0,0 +1,140 @@
+package com.jenxsol.timelock.utils;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Ed25519 signing (RFC 8032), for the stand-in servers in the tests. The
+ * library only verifies, and older Android has no Ed25519, so this signs with
+ * the library's own {@link Ed25519.Point} arithmetic. Slow and not constant
+ * time, test keys only.
+ */
+class Ed25519Signer
+{
+
+    /**
+     * Group order, the library keeps its own private.
+     */
+    private static final BigInteger L = BigInteger.valueOf(2).pow(252).add(
+            new BigInteger("27742317777372353535851937790883648493"));
+
+    private static final Ed25519.Point BASE;
+
+    static
+    {
+        final byte[] b = new byte[Ed25519.KEY_SIZE];
+        b[0] = 0x58;
+        for (int i = 1; i < b.length; i++)
+        {
+            b[i] = 0x66;
+        }
+        BASE = Ed25519.decode(b);
+    }
+
+    private final BigInteger mScalar;
+    private final byte[] mPrefix = new byte[32];
+    private final byte[] mPublicKey;
+    private final MessageDigest mDigest = sha512();
+
+    /**
+     * @param seed
+     *            32 byte secret key
+     */
+    Ed25519Signer(byte[] seed)
+    {
+        final byte[] h = mDigest.digest(seed);
+        h[0] &= (byte) 0xf8;
+        h[31] &= 0x7f;
+        h[31] |= 0x40;
+        mScalar = fromLittleEndian(h, 0, 32);
+        System.arraycopy(h, 32, mPrefix, 0, 32);
+        mPublicKey = multiply(mScalar).encode();
+    }
+
+    byte[] getPublicKey()
+    {
+        return mPublicKey.clone();
+    }
+
+    /**
+     * @return the signature over context followed by message, the way
+     *         {@link Ed25519#verify} takes them
+     */
+    synchronized byte[] sign(byte[] context, byte[] message)
+    {
+        mDigest.reset();
+        mDigest.update(mPrefix);
+        mDigest.update(context);
+        mDigest.update(message);
+        final byte[] rh = mDigest.digest();
+        final BigInteger r = fromLittleEndian(rh, 0, rh.length).mod(L);
+        final byte[] encodedR = multiply(r).encode();
+
+        mDigest.reset();
+        mDigest.update(encodedR);
+        mDigest.update(mPublicKey);
+        mDigest.update(context);
+        mDigest.update(message);
+        final byte[] kh = mDigest.digest();
+        final BigInteger k = fromLittleEndian(kh, 0, kh.length).mod(L);
+        final BigInteger s = r.add(k.multiply(mScalar)).mod(L);
+
+        final byte[] signature = new byte[Ed25519.SIGNATURE_SIZE];
+        System.arraycopy(encodedR, 0, signature, 0, 32);
+        toLittleEndian(s, signature, 32);
+        return signature;
+    }
+
+    /**
+     * Group order, little endian, for the tests that need an s that's too
+     * big.
+     */
+    static void writeOrder(byte[] out, int offset)
+    {
+        toLittleEndian(L, out, offset);
+    }
+
+    private static Ed25519.Point multiply(BigInteger n)
+    {
+        Ed25519.Point r = new Ed25519.Point(BigInteger.ZERO, BigInteger.ONE, BigInteger.ONE,
+                BigInteger.ZERO);
+        for (int i = n.bitLength() - 1; i >= 0; i--)
+        {
+            r = r.twice();
+            if (n.testBit(i)) r = r.add(BASE);
+        }
+        return r;
+    }
+
+    private static BigInteger fromLittleEndian(byte[] b, int offset, int length)
+    {
+        final byte[] be = new byte[length + 1];
+        for (int i = 0; i < length; i++)
+        {
+            be[length - i] = b[offset + i];
+        }
+        return new BigInteger(be);
+    }
+
+    private static void toLittleEndian(BigInteger n, byte[] out, int offset)
+    {
+        final byte[] be = n.toByteArray();
+        for (int i = 0; i < 32; i++)
+        {
+            out[offset + i] = i < be.length ? be[be.length - 1 - i] : 0;
+        }
+    }
+
+    private static MessageDigest sha512()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-512");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+}
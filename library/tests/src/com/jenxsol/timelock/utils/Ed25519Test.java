@@ -0,0 +1,168 @@
+package com.jenxsol.timelock.utils;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * RFC 8032 section 7.1 test vectors, checked against {@link Ed25519} and the
+ * tests' {@link Ed25519Signer}.
+ */
+public class Ed25519Test extends TestCase
+{
+
+    private static final String[][] VECTORS = {
+            // Secret key, public key, message, signature
+            {
+                    "9d61b19deffd5a60ba844af492ec2cc44449c5697b326919703bac031cae7f60",
+                    "d75a980182b10ab7d54bfed3c964073a0ee172f3daa62325af021a68f707511a",
+                    "",
+                    "e5564300c360ac729086e2cc806e828a84877f1eb8e5d974d873e06522490155"
+                            + "5fb8821590a33bacc61e39701cf9b46bd25bf5f0595bbe24655141438e7a100b" },
+            {
+                    "4ccd089b28ff96da9db6c346ec114e0f5b8a319f35aba624da8cf6ed4fb8a6fb",
+                    "3d4017c3e843895a92b70aa74d1b7ebc9c982ccf2ec4968cc0cd55f12af4660c",
+                    "72",
+                    "92a009a9f0d4cab8720e820b5f642540a2b27b5416503f8fb3762223ebdb69da"
+                            + "085ac1e43e15996e458f3613d0f11d8c387b2eaeb4302aeeb00d291612bb0c00" },
+            {
+                    "c5aa8df43f9f837bedb7442f31dcb7b166d38535076f094b85ce3a2e0b4458f7",
+                    "fc51cd8e6218a1a38da47ed00230f0580816ed13ba3303ac5deb911548908025",
+                    "af82",
+                    "6291d657deec24024827e69c3abe01a30ce548a284743a445e3680d7db5ac3ac"
+                            + "18ff9b538d16f290ae67f760984dc6594a7c15e9716ed28dc027beceea1ec40a" }, };
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private MessageDigest mDigest;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mDigest = MessageDigest.getInstance("SHA-512");
+    }
+
+    public void testVectorsVerify()
+    {
+        for (String[] v : VECTORS)
+        {
+            assertTrue(v[2], verify(hex(v[1]), hex(v[2]), hex(v[3])));
+        }
+    }
+
+    public void testContextIsPartOfMessage()
+    {
+        // Same bytes, split differently between context and message
+        final String[] v = VECTORS[2];
+        final byte[] key = hex(v[1]);
+        final byte[] message = hex(v[2]);
+        assertTrue(Ed25519.verify(Ed25519.decode(key), key, new byte[] { message[0] },
+                new byte[] { message[1] }, hex(v[3]), mDigest));
+    }
+
+    public void testSignerMatchesVectors()
+    {
+        for (String[] v : VECTORS)
+        {
+            final Ed25519Signer signer = new Ed25519Signer(hex(v[0]));
+            assertTrue(v[2], Arrays.equals(hex(v[1]), signer.getPublicKey()));
+            assertTrue(v[2], Arrays.equals(hex(v[3]), signer.sign(EMPTY, hex(v[2]))));
+        }
+    }
+
+    public void testWrongMessage()
+    {
+        final String[] v = VECTORS[1];
+        assertFalse(verify(hex(v[1]), hex("73"), hex(v[3])));
+        assertFalse(verify(hex(v[1]), EMPTY, hex(v[3])));
+        // Someone else's key
+        assertFalse(verify(hex(VECTORS[0][1]), hex(v[2]), hex(v[3])));
+    }
+
+    public void testCorruptSignature()
+    {
+        final String[] v = VECTORS[1];
+        final byte[] key = hex(v[1]);
+        final byte[] message = hex(v[2]);
+        for (int i = 0; i < Ed25519.SIGNATURE_SIZE; i += 7)
+        {
+            final byte[] signature = hex(v[3]);
+            signature[i] ^= 0x10;
+            assertFalse("byte " + i, verify(key, message, signature));
+        }
+        // One byte short, Arrays.copyOf() is API 9
+        final byte[] short63 = new byte[Ed25519.SIGNATURE_SIZE - 1];
+        System.arraycopy(hex(v[3]), 0, short63, 0, short63.length);
+        assertFalse(verify(key, message, short63));
+        assertFalse(verify(key, message, null));
+    }
+
+    public void testNonCanonicalS()
+    {
+        // s + L is the same scalar, but must not be accepted
+        final String[] v = VECTORS[0];
+        final byte[] signature = hex(v[3]);
+        final byte[] order = new byte[Ed25519.SIGNATURE_SIZE];
+        Ed25519Signer.writeOrder(order, 32);
+        int carry = 0;
+        for (int i = 32; i < Ed25519.SIGNATURE_SIZE; i++)
+        {
+            final int sum = (signature[i] & 0xff) + (order[i] & 0xff) + carry;
+            signature[i] = (byte) sum;
+            carry = sum >> 8;
+        }
+        assertEquals(0, carry);
+        assertFalse(verify(hex(v[1]), EMPTY, signature));
+
+        // And L itself
+        final byte[] atOrder = hex(v[3]);
+        System.arraycopy(order, 32, atOrder, 32, 32);
+        assertFalse(verify(hex(v[1]), EMPTY, atOrder));
+    }
+
+    public void testDecode()
+    {
+        assertNotNull(Ed25519.decode(hex(VECTORS[0][1])));
+        assertNull(Ed25519.decode(null));
+        assertNull(Ed25519.decode(new byte[31]));
+        // y = p, not reduced
+        final byte[] p = hex("edffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff7f");
+        assertNull(Ed25519.decode(p));
+        // y = 2 isn't on the curve
+        final byte[] two = new byte[Ed25519.KEY_SIZE];
+        two[0] = 2;
+        assertNull(Ed25519.decode(two));
+        // y = 1 has only x = 0, so no negative x
+        final byte[] one = new byte[Ed25519.KEY_SIZE];
+        one[0] = 1;
+        assertNotNull(Ed25519.decode(one));
+        one[Ed25519.KEY_SIZE - 1] = (byte) 0x80;
+        assertNull(Ed25519.decode(one));
+    }
+
+    public void testEncodeRoundTrip()
+    {
+        for (String[] v : VECTORS)
+        {
+            final byte[] key = hex(v[1]);
+            assertTrue(Arrays.equals(key, Ed25519.decode(key).encode()));
+        }
+    }
+
+    private boolean verify(byte[] key, byte[] message, byte[] signature)
+    {
+        return Ed25519.verify(Ed25519.decode(key), key, EMPTY, message, signature, mDigest);
+    }
+
+    static byte[] hex(String s)
+    {
+        final byte[] rv = new byte[s.length() / 2];
+        for (int i = 0; i < rv.length; i++)
+        {
+            rv[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return rv;
+    }
+}
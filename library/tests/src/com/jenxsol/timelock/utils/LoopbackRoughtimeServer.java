@@ -0,0 +1,279 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in Roughtime server on the loopback interface, for the client tests.
+ * Same keys every time: a long term key, and a delegated key it signs for a
+ * day either side of now, which signs the replies. Answers with its clock
+ * {@link #skew} millis ahead of ours, unless told to misbehave.
+ */
+class LoopbackRoughtimeServer
+{
+
+    static final byte[] ROOT_SEED = head(seed(1), 32);
+    static final byte[] DELEGATED_SEED = head(seed(2), 32);
+
+    /**
+     * Microseconds, what it claims its clock is good to.
+     */
+    static final int RADIUS = 1000000;
+
+    private static final long DAY_MICROS = 24L * 60 * 60 * 1000 * 1000;
+
+    private static final byte[] RESPONSE_CONTEXT = ascii("RoughTime v1 response signature\0");
+    private static final byte[] DELEGATION_CONTEXT = ascii("RoughTime v1 delegation signature--\0");
+
+    /**
+     * Millis the server clock is ahead of ours.
+     */
+    volatile long skew;
+    /**
+     * Millis to wait before answering.
+     */
+    volatile long delay;
+    /**
+     * Doesn't answer at all.
+     */
+    volatile boolean silent;
+    /**
+     * Breaks the signature on the reply.
+     */
+    volatile boolean badSignature;
+    /**
+     * Sends the reply to the request before instead, signed but not for this
+     * nonce.
+     */
+    volatile boolean replay;
+    /**
+     * Puts the request in a tree of 2^depth, at {@link #index}, as if it had
+     * been batched with others. Only the low bits place it, INDX gets all of
+     * them, so it can claim a leaf the tree doesn't have.
+     */
+    volatile int depth;
+    volatile int index;
+
+    final AtomicInteger requests = new AtomicInteger();
+
+    private final Ed25519Signer mRoot = new Ed25519Signer(ROOT_SEED);
+    private final Ed25519Signer mDelegated = new Ed25519Signer(DELEGATED_SEED);
+    private final byte[] mCert;
+    private final MessageDigest mDigest;
+    private final DatagramSocket mSocket;
+    private final Thread mThread;
+    private byte[] mLastReply;
+
+    LoopbackRoughtimeServer() throws IOException
+    {
+        try
+        {
+            mDigest = MessageDigest.getInstance("SHA-512");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("No SHA-512");
+        }
+        final long now = System.currentTimeMillis() * 1000;
+        final byte[] dele = message(new int[] { RoughtimeMessage.PUBK, RoughtimeMessage.MINT,
+                RoughtimeMessage.MAXT }, new byte[][] { mDelegated.getPublicKey(),
+                longBytes(now - DAY_MICROS), longBytes(now + DAY_MICROS) });
+        mCert = message(new int[] { RoughtimeMessage.SIG, RoughtimeMessage.DELE }, new byte[][] {
+                mRoot.sign(DELEGATION_CONTEXT, dele), dele });
+
+        mSocket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        mThread = new Thread("LoopbackRoughtimeServer")
+        {
+            @Override
+            public void run()
+            {
+                serve();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    int getPort()
+    {
+        return mSocket.getLocalPort();
+    }
+
+    byte[] getPublicKey()
+    {
+        return mRoot.getPublicKey();
+    }
+
+    void close()
+    {
+        mSocket.close();
+    }
+
+    private void serve()
+    {
+        final byte[] buffer = new byte[2048];
+        while (!mSocket.isClosed())
+        {
+            try
+            {
+                final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                mSocket.receive(packet);
+                requests.incrementAndGet();
+                // Too small to answer, like a real server
+                if (silent || packet.getLength() < 1024) continue;
+                final RoughtimeMessage request = RoughtimeMessage.parse(buffer, 0,
+                        packet.getLength());
+                final byte[] reply = reply(request.getBytes(RoughtimeMessage.NONC,
+                        RoughtimeClient.NONCE_SIZE));
+                final long wait = delay;
+                if (wait > 0) Thread.sleep(wait);
+                final byte[] send = replay && null != mLastReply ? mLastReply : reply;
+                mLastReply = reply;
+                mSocket.send(new DatagramPacket(send, send.length, packet.getSocketAddress()));
+            }
+            catch (IOException e)
+            {
+                // Closed, or a bad packet
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    private byte[] reply(byte[] nonce)
+    {
+        // Tree of the nonce and made up ones from other clients
+        final int d = depth;
+        final int at = index;
+        final int leaf = at & ((1 << d) - 1);
+        byte[][] level = new byte[1 << d][];
+        for (int i = 0; i < level.length; i++)
+        {
+            level[i] = hash(0, i == leaf ? nonce : seed(100 + i), null);
+        }
+        final byte[] path = new byte[64 * d];
+        int i = leaf;
+        for (int l = 0; l < d; l++)
+        {
+            System.arraycopy(level[i ^ 1], 0, path, 64 * l, 64);
+            final byte[][] up = new byte[level.length / 2][];
+            for (int j = 0; j < up.length; j++)
+            {
+                up[j] = hash(1, level[2 * j], level[2 * j + 1]);
+            }
+            level = up;
+            i >>>= 1;
+        }
+
+        final long midpoint = (System.currentTimeMillis() + skew) * 1000;
+        final byte[] srep = message(new int[] { RoughtimeMessage.ROOT, RoughtimeMessage.MIDP,
+                RoughtimeMessage.RADI }, new byte[][] { level[0], longBytes(midpoint),
+                intBytes(RADIUS) });
+        final byte[] signature = mDelegated.sign(RESPONSE_CONTEXT, srep);
+        if (badSignature) signature[5] ^= 1;
+        return message(new int[] { RoughtimeMessage.SIG, RoughtimeMessage.PATH,
+                RoughtimeMessage.SREP, RoughtimeMessage.CERT, RoughtimeMessage.INDX },
+                new byte[][] { signature, path, srep, mCert, intBytes(at) });
+    }
+
+    private byte[] hash(int prefix, byte[] a, byte[] b)
+    {
+        mDigest.reset();
+        mDigest.update((byte) prefix);
+        mDigest.update(a);
+        if (null != b) mDigest.update(b);
+        return mDigest.digest();
+    }
+
+    /**
+     * Builds a message, the tags can be in any order.
+     */
+    static byte[] message(int[] tags, byte[][] values)
+    {
+        final int n = tags.length;
+        final int[] order = new int[n];
+        int length = 8 * n;
+        for (int i = 0; i < n; i++)
+        {
+            // Insertion sort, unsigned
+            int j = i;
+            while (j > 0 && (tags[order[j - 1]] ^ 0x80000000) > (tags[i] ^ 0x80000000))
+            {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+            length += values[i].length;
+        }
+        final byte[] out = new byte[n == 0 ? 4 : length];
+        RoughtimeMessage.writeInt(out, 0, n);
+        int offset = 0;
+        int value = 8 * n;
+        for (int i = 0; i < n; i++)
+        {
+            if (i > 0) RoughtimeMessage.writeInt(out, 4 * i, offset);
+            RoughtimeMessage.writeInt(out, 4 * n + 4 * i, tags[order[i]]);
+            final byte[] v = values[order[i]];
+            System.arraycopy(v, 0, out, value, v.length);
+            offset += v.length;
+            value += v.length;
+        }
+        return out;
+    }
+
+    static byte[] intBytes(int value)
+    {
+        final byte[] rv = new byte[4];
+        RoughtimeMessage.writeInt(rv, 0, value);
+        return rv;
+    }
+
+    static byte[] longBytes(long value)
+    {
+        final byte[] rv = new byte[8];
+        RoughtimeMessage.writeInt(rv, 0, (int) value);
+        RoughtimeMessage.writeInt(rv, 4, (int) (value >>> 32));
+        return rv;
+    }
+
+    /**
+     * 64 bytes, the same for the same n.
+     */
+    static byte[] seed(int n)
+    {
+        final byte[] rv = new byte[64];
+        for (int i = 0; i < rv.length; i++)
+        {
+            rv[i] = (byte) (n * 31 + i);
+        }
+        return rv;
+    }
+
+    /**
+     * Arrays.copyOf() is API 9.
+     */
+    private static byte[] head(byte[] b, int length)
+    {
+        final byte[] rv = new byte[length];
+        System.arraycopy(b, 0, rv, 0, length);
+        return rv;
+    }
+
+    private static byte[] ascii(String s)
+    {
+        final byte[] rv = new byte[s.length()];
+        for (int i = 0; i < rv.length; i++)
+        {
+            rv[i] = (byte) s.charAt(i);
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,157 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in SNTP server on the loopback interface, for the client tests. Answers
+ * every request with its clock {@link #skew} millis ahead of ours, unless told
+ * to stay quiet or send a kiss-o'-death.
+ */
+class LoopbackSntpServer
+{
+
+    private static final long OFFSET_1900_TO_1970 = ((365L * 70L) + 17L) * 24L * 60L * 60L;
+
+    /**
+     * Millis the server clock is ahead of ours.
+     */
+    volatile long skew;
+    /**
+     * Doesn't answer at all.
+     */
+    volatile boolean silent;
+    /**
+     * Answers with this kiss code (stratum 0) instead of the time, if set.
+     */
+    volatile String kissCode;
+    /**
+     * Millis a request takes to get to us, counts in the round trip.
+     */
+    volatile long delay;
+    /**
+     * Millis we sit on a request before answering. It's between our receive
+     * and transmit times, so the client takes it off the round trip.
+     */
+    volatile long hold;
+
+    final AtomicInteger requests = new AtomicInteger();
+
+    private final DatagramSocket mSocket;
+    private final Thread mThread;
+
+    LoopbackSntpServer() throws IOException
+    {
+        this("127.0.0.1", 0);
+    }
+
+    /**
+     * @param address
+     *            any loopback address, i.e. 127.0.0.2, so several servers
+     *            can share a port
+     * @param port
+     *            0 for any
+     */
+    LoopbackSntpServer(String address, int port) throws IOException
+    {
+        mSocket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName(address), port));
+        mThread = new Thread("LoopbackSntpServer")
+        {
+            @Override
+            public void run()
+            {
+                serve();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    int getPort()
+    {
+        return mSocket.getLocalPort();
+    }
+
+    InetAddress getAddress()
+    {
+        return mSocket.getLocalAddress();
+    }
+
+    void close()
+    {
+        mSocket.close();
+    }
+
+    private void serve()
+    {
+        final byte[] buffer = new byte[NtpPacket.SIZE];
+        while (!mSocket.isClosed())
+        {
+            try
+            {
+                final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                mSocket.receive(packet);
+                requests.incrementAndGet();
+                if (silent) continue;
+                sleep(delay);
+                final long received = System.currentTimeMillis() + skew;
+                sleep(hold);
+                final long now = System.currentTimeMillis() + skew;
+                // Their transmit time is our originate time
+                System.arraycopy(buffer, 40, buffer, 24, 8);
+                final String kiss = kissCode;
+                if (null != kiss)
+                {
+                    // Leap 3 (unsynchronised), version 4, mode 4 (server)
+                    buffer[0] = (byte) (3 << 6 | 4 << 3 | 4);
+                    buffer[1] = 0;
+                    for (int i = 0; i < 4; i++)
+                    {
+                        buffer[12 + i] = (byte) kiss.charAt(i);
+                    }
+                }
+                else
+                {
+                    buffer[0] = (byte) (4 << 3 | 4);
+                    buffer[1] = 2;
+                }
+                writeTimeStamp(buffer, 16, received);
+                writeTimeStamp(buffer, 32, received);
+                writeTimeStamp(buffer, 40, now);
+                mSocket.send(new DatagramPacket(buffer, buffer.length, packet.getSocketAddress()));
+            }
+            catch (IOException e)
+            {
+                // Closed, or a bad packet
+            }
+        }
+    }
+
+    private static void sleep(long millis)
+    {
+        if (millis <= 0) return;
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeTimeStamp(byte[] buffer, int offset, long time)
+    {
+        final long seconds = time / 1000L + OFFSET_1900_TO_1970;
+        final long fraction = (time % 1000L) * 0x100000000L / 1000L;
+        for (int i = 0; i < 4; i++)
+        {
+            buffer[offset + i] = (byte) (seconds >> (24 - 8 * i));
+            buffer[offset + 4 + i] = (byte) (fraction >> (24 - 8 * i));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.jenxsol.timelock.utils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+/**
+ * Preferences kept in a map, so tests can open them again as a new process
+ * would, or change them underneath. Edits only land on commit().
+ */
+class MapPreferences implements SharedPreferences
+{
+
+    final HashMap<String, Object> values = new HashMap<String, Object>();
+
+    /**
+     * @return a context that hands out the same preferences for each name
+     */
+    static Context context()
+    {
+        final HashMap<String, MapPreferences> all = new HashMap<String, MapPreferences>();
+        return new ContextWrapper(null)
+        {
+            @Override
+            public SharedPreferences getSharedPreferences(String name, int mode)
+            {
+                synchronized (all)
+                {
+                    MapPreferences prefs = all.get(name);
+                    if (null == prefs)
+                    {
+                        prefs = new MapPreferences();
+                        all.put(name, prefs);
+                    }
+                    return prefs;
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll()
+    {
+        return new HashMap<String, Object>(values);
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue)
+    {
+        return values.containsKey(key) ? (String) values.get(key) : defValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized Set<String> getStringSet(String key, Set<String> defValues)
+    {
+        return values.containsKey(key) ? (Set<String>) values.get(key) : defValues;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue)
+    {
+        return values.containsKey(key) ? (Integer) values.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue)
+    {
+        return values.containsKey(key) ? (Long) values.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(String key, float defValue)
+    {
+        return values.containsKey(key) ? (Float) values.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue)
+    {
+        return values.containsKey(key) ? (Boolean) values.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized boolean contains(String key)
+    {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit()
+    {
+        return new MapEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener l)
+    {
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener l)
+    {
+    }
+
+    private class MapEditor implements Editor
+    {
+        private final HashMap<String, Object> mPut = new HashMap<String, Object>();
+        private final HashSet<String> mRemove = new HashSet<String>();
+        private boolean mClear;
+
+        private Editor put(String key, Object value)
+        {
+            mPut.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value)
+        {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values)
+        {
+            return put(key, new HashSet<String>(values));
+        }
+
+        @Override
+        public Editor putInt(String key, int value)
+        {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value)
+        {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value)
+        {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value)
+        {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key)
+        {
+            mRemove.add(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear()
+        {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit()
+        {
+            synchronized (MapPreferences.this)
+            {
+                if (mClear) values.clear();
+                for (String key : mRemove)
+                {
+                    values.remove(key);
+                }
+                for (Map.Entry<String, Object> e : mPut.entrySet())
+                {
+                    // Like the real thing, null is the same as removing it
+                    if (null == e.getValue()) values.remove(e.getKey());
+                    else values.put(e.getKey(), e.getValue());
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void apply()
+        {
+            commit();
+        }
+    }
+}
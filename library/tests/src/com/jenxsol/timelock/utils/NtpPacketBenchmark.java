@@ -0,0 +1,80 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Encodes a request and decodes a response over and over with one
+ * {@link NtpPacket}, like a client does, and checks nothing is allocated once
+ * it's warmed up. Timings go to the log (tag timelock).
+ */
+public class NtpPacketBenchmark extends TestCase
+{
+    private static final String TAG = "timelock";
+
+    private static final int WARM_UP = 200000;
+    private static final int ITERATIONS = 200000;
+    private static final int ROUNDS = 3;
+
+    private static final long TIME = 1350388800250L;
+
+    public void testSteadyStateDoesNotAllocate() throws IOException
+    {
+        final NtpPacket packet = new NtpPacket();
+        long sink = exchange(packet, WARM_UP);
+
+        // Best of the rounds, the JIT can still be catching up on the first
+        long took = Long.MAX_VALUE;
+        int allocated = Integer.MAX_VALUE;
+        Debug.startAllocCounting();
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            Debug.resetThreadAllocCount();
+            final long start = System.nanoTime();
+            sink += exchange(packet, ITERATIONS);
+            took = Math.min(took, System.nanoTime() - start);
+            allocated = Math.min(allocated, Debug.getThreadAllocCount());
+        }
+        Debug.stopAllocCounting();
+
+        Log.i(TAG, "NtpPacket request and response: " + took / ITERATIONS + " ns, "
+                + allocated + " allocations in " + ITERATIONS + " (" + sink + ")");
+        assertEquals(0, allocated);
+    }
+
+    /**
+     * @return something from every result, so none of it can be skipped
+     */
+    private static long exchange(NtpPacket packet, int count) throws IOException
+    {
+        final ByteBuffer b = packet.buffer();
+        long sink = 0;
+        for (int i = 0; i < count; i++)
+        {
+            final long now = TIME + i;
+            packet.writeRequest(now);
+            final long sent = packet.getSentTimeStamp();
+
+            // What the server sends back
+            packet.clear();
+            b.put(0, (byte) (4 << 3 | 4));
+            b.put(1, (byte) 2);
+            b.putInt(4, 0x100);
+            b.putInt(8, 0x80);
+            b.putLong(24, sent);
+            b.putLong(32, NtpPacketTest.toTimeStamp(now + 5000));
+            b.putLong(40, NtpPacketTest.toTimeStamp(now + 5001));
+            b.position(NtpPacket.SIZE);
+
+            if (!packet.isResponseTo(sent)) throw new AssertionError();
+            packet.checkValidServerReply();
+            packet.decodeResponse(now, i, i + 3);
+            sink += packet.getClockOffset() + packet.getDispersion() + packet.getStratum();
+        }
+        return sink;
+    }
+}
@@ -0,0 +1,207 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class NtpPacketTest extends TestCase
+{
+
+    private static final long OFFSET_1900_TO_1970 = ((365L * 70L) + 17L) * 24L * 60L * 60L;
+
+    /**
+     * 2012-10-16 12:00:00.250 UTC
+     */
+    private static final long TIME = 1350388800250L;
+
+    private NtpPacket mPacket;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mPacket = new NtpPacket();
+    }
+
+    public void testWriteRequest()
+    {
+        mPacket.writeRequest(TIME);
+        final ByteBuffer b = mPacket.buffer();
+        assertEquals(0, b.position());
+        assertEquals(NtpPacket.SIZE, b.limit());
+        // Version 3, client
+        assertEquals(0x1b, b.get(0));
+        assertEquals(mPacket.getSentTimeStamp(), b.getLong(40));
+        assertEquals(TIME, mPacket.getTransmitTime());
+        for (int i = 1; i < 40; i++)
+        {
+            assertEquals(0, b.get(i));
+        }
+    }
+
+    public void testSentTimeStampsDiffer()
+    {
+        mPacket.writeRequest(TIME);
+        final long first = mPacket.getSentTimeStamp();
+        mPacket.writeRequest(TIME);
+        // Same millisecond, the low bits still make them different
+        assertFalse(first == mPacket.getSentTimeStamp());
+    }
+
+    public void testRandomLowBits()
+    {
+        long ones = 0;
+        long zeros = 0;
+        for (int i = 0; i < 64; i++)
+        {
+            // Not on a round fraction, so it would show if the bits leaked
+            // into the next (or last) millisecond
+            mPacket.writeRequest(TIME + 1);
+            assertEquals(TIME + 1, mPacket.getTransmitTime());
+            final long stamp = mPacket.getSentTimeStamp();
+            ones |= stamp;
+            zeros |= ~stamp;
+        }
+        // Each of the low 22 bits has been both
+        final long low = 0x3FFFFFL;
+        assertEquals(low, ones & low);
+        assertEquals(low, zeros & low);
+    }
+
+    public void testNotSeededFromTheClock()
+    {
+        final NtpPacket other = new NtpPacket();
+        mPacket.writeRequest(TIME);
+        other.writeRequest(TIME);
+        assertFalse(mPacket.getSentTimeStamp() == other.getSentTimeStamp());
+    }
+
+    public void testDecodeResponse() throws IOException
+    {
+        mPacket.writeRequest(TIME);
+        final long sent = mPacket.getSentTimeStamp();
+        // Server 5s ahead, took 10ms to answer, 15ms each way
+        writeResponse(sent, 0, 2, TIME + 5000 + 15, TIME + 5000 + 25);
+        final ByteBuffer b = mPacket.buffer();
+        b.put(2, (byte) 6);
+        b.put(3, (byte) -20);
+        // Half a second, a quarter of a second
+        b.putInt(4, 0x8000);
+        b.putInt(8, 0x4000);
+        assertTrue(mPacket.isResponseTo(sent));
+        mPacket.checkValidServerReply();
+        mPacket.decodeResponse(TIME, 1000, 1000 + 40);
+
+        assertEquals(0, mPacket.getLeapIndicator());
+        assertEquals(4, mPacket.getVersion());
+        assertEquals(4, mPacket.getMode());
+        assertEquals(2, mPacket.getStratum());
+        assertEquals(6, mPacket.getPoll());
+        assertEquals(-20, mPacket.getPrecision());
+        assertEquals(500, mPacket.getRootDelay());
+        assertEquals(250, mPacket.getRootDispersion());
+
+        assertEquals(30, mPacket.getRoundTripTime());
+        assertEquals(5000, mPacket.getClockOffset(), 1);
+        // Half the round trip, half the root delay, the root dispersion
+        assertEquals(15 + 250 + 250, mPacket.getDispersion());
+        assertEquals(TIME + 40 + 5000, mPacket.getNtpTime(), 1);
+        assertEquals(1040, mPacket.getNtpTimeReference());
+
+        final TimeSample sample = mPacket.toTimeSample();
+        assertEquals(mPacket.getNtpTime(), sample.getNtpTime());
+        assertEquals(mPacket.getDispersion(), sample.getDispersion());
+    }
+
+    public void testIsResponseTo()
+    {
+        mPacket.writeRequest(TIME);
+        final long sent = mPacket.getSentTimeStamp();
+        writeResponse(sent + 1, 0, 2, TIME, TIME);
+        assertFalse(mPacket.isResponseTo(sent));
+        assertFalse(mPacket.isResponseToRequest());
+        writeResponse(sent, 0, 2, TIME, TIME);
+        assertTrue(mPacket.isResponseToRequest());
+        // Short packet
+        mPacket.buffer().position(NtpPacket.SIZE - 4);
+        assertFalse(mPacket.isResponseTo(sent));
+    }
+
+    public void testKissOfDeath()
+    {
+        mPacket.writeRequest(TIME);
+        writeResponse(mPacket.getSentTimeStamp(), NtpPacket.LEAP_NOSYNC, 0, 0, 0);
+        mPacket.buffer().putInt(12, 'D' << 24 | 'E' << 16 | 'N' << 8 | 'Y');
+        try
+        {
+            mPacket.checkValidServerReply();
+            fail();
+        }
+        catch (KissOfDeathException e)
+        {
+            assertTrue(e.isDenied());
+        }
+        catch (IOException e)
+        {
+            fail(e.toString());
+        }
+    }
+
+    public void testInvalidReplies()
+    {
+        mPacket.writeRequest(TIME);
+        final long sent = mPacket.getSentTimeStamp();
+        writeResponse(sent, NtpPacket.LEAP_NOSYNC, 2, TIME, TIME);
+        assertInvalid();
+        writeResponse(sent, 0, 16, TIME, TIME);
+        assertInvalid();
+        writeResponse(sent, 0, 2, TIME, TIME);
+        mPacket.buffer().putLong(40, 0);
+        assertInvalid();
+        writeResponse(sent, 0, 2, TIME, TIME);
+        // Client mode
+        mPacket.buffer().put(0, (byte) (4 << 3 | 3));
+        assertInvalid();
+    }
+
+    private void assertInvalid()
+    {
+        try
+        {
+            mPacket.checkValidServerReply();
+            fail();
+        }
+        catch (IOException e)
+        {
+            assertFalse(e instanceof KissOfDeathException);
+        }
+    }
+
+    /**
+     * Fills the buffer as if a version 4 server reply had just been received.
+     */
+    private void writeResponse(long originate, int leap, int stratum, long receive,
+            long transmit)
+    {
+        final ByteBuffer b = mPacket.buffer();
+        for (int i = 0; i < NtpPacket.SIZE; i += 8)
+        {
+            b.putLong(i, 0);
+        }
+        b.put(0, (byte) (leap << 6 | 4 << 3 | 4));
+        b.put(1, (byte) stratum);
+        b.putLong(16, toTimeStamp(transmit));
+        b.putLong(24, originate);
+        b.putLong(32, toTimeStamp(receive));
+        b.putLong(40, toTimeStamp(transmit));
+        b.position(NtpPacket.SIZE);
+    }
+
+    static long toTimeStamp(long time)
+    {
+        final long seconds = time / 1000L + OFFSET_1900_TO_1970;
+        final long fraction = (time % 1000L) * 0x100000000L / 1000L;
+        return seconds << 32 | fraction;
+    }
+}
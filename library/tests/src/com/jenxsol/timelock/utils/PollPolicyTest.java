@@ -0,0 +1,163 @@
+package com.jenxsol.timelock.utils;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+/**
+ * Runs the policy against a simulated server and clocks, no waiting.
+ */
+public class PollPolicyTest extends TestCase
+{
+
+    /**
+     * Where the simulated wall clock starts.
+     */
+    private static final long START = 1350000000000L;
+
+    private static final long BUDGET = 100;
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Syncs count times against a perfect server, with the elapsed clock
+     * running ppm fast and the wall clock kept right (i.e. by the network),
+     * so the clock offset is always 0.
+     *
+     * @return worst error built up between two syncs, in millis
+     */
+    private static long simulate(PollPolicy policy, double ppm, int count)
+    {
+        long elapsed = 0;
+        long lastEpoch = 0;
+        long worst = 0;
+        for (int i = 0; i < count; i++)
+        {
+            final long time = START + (long) (elapsed / (1 + ppm / 1e6));
+            final long epoch = time - elapsed;
+            if (i > 0) worst = Math.max(worst, Math.abs(epoch - lastEpoch));
+            lastEpoch = epoch;
+            elapsed += policy.onSuccess(new TimeSample(time, elapsed, 40, 0, 0));
+        }
+        return worst;
+    }
+
+    /**
+     * As {@link #simulate(PollPolicy, double, int)}, for a day of elapsed
+     * time.
+     *
+     * @return polls made, counting the first one
+     */
+    private static int pollsPerDay(PollPolicy policy, double ppm)
+    {
+        long elapsed = 0;
+        int polls = 0;
+        while (elapsed < DAY)
+        {
+            final long time = START + (long) (elapsed / (1 + ppm / 1e6));
+            elapsed += policy.onSuccess(new TimeSample(time, elapsed, 40, 0, 0));
+            polls++;
+        }
+        return polls;
+    }
+
+    public void testPollsPerDay()
+    {
+        // What a server sees from one device
+        final int steady = pollsPerDay(new PollPolicy(), 10);
+        final int drifting = pollsPerDay(new PollPolicy(BUDGET, PollPolicy.MIN_POLL,
+                PollPolicy.MAX_POLL), 500);
+        final PollPolicy down = new PollPolicy();
+        long elapsed = 0;
+        int failing = 0;
+        while (elapsed < DAY)
+        {
+            elapsed += down.onFailure();
+            failing++;
+        }
+        Log.i("timelock", "polls a day: steady " + steady + ", drifting " + drifting
+                + ", failing " + failing);
+
+        // 4 at 2^10 (the first has nothing to compare with), 3 each at 2^11
+        // to 2^13 and the rest at 2^14
+        assertEquals(15, steady);
+        // Never gets past the minimum, never goes under it either
+        assertEquals(DAY / PollPolicy.MIN_POLL_INTERVAL + 1, drifting);
+        // The backoff only adds a few on top of that
+        assertTrue("failing " + failing, failing > drifting);
+        assertTrue("failing " + failing, failing <= drifting + 6);
+    }
+
+    public void testSteadyClockLengthens()
+    {
+        final PollPolicy policy = new PollPolicy();
+        assertEquals(PollPolicy.MIN_POLL, policy.getPoll());
+        simulate(policy, 10, 50);
+        assertEquals(PollPolicy.MAX_POLL, policy.getPoll());
+    }
+
+    public void testDriftLimitsInterval()
+    {
+        final PollPolicy policy = new PollPolicy(BUDGET, PollPolicy.MIN_POLL,
+                PollPolicy.MAX_POLL);
+        final long worst = simulate(policy, 10, 50);
+        // 2^12s at 10ppm is 41ms, twice that is over half the budget
+        assertEquals(12, policy.getPoll());
+        assertTrue("worst " + worst, worst <= BUDGET);
+    }
+
+    public void testDriftHiddenFromWallClock()
+    {
+        // The wall clock reads right all along, elapsed drifts 512ms a poll
+        final PollPolicy policy = new PollPolicy(BUDGET, PollPolicy.MIN_POLL,
+                PollPolicy.MAX_POLL);
+        simulate(policy, 500, 50);
+        assertEquals(PollPolicy.MIN_POLL, policy.getPoll());
+    }
+
+    public void testWallClockChangeIsNotDrift()
+    {
+        final PollPolicy policy = new PollPolicy();
+        long elapsed = 0;
+        for (int i = 0; i < 50; i++)
+        {
+            elapsed += policy.onSuccess(new TimeSample(START + elapsed, elapsed, 40, 0, 0));
+        }
+        assertEquals(PollPolicy.MAX_POLL, policy.getPoll());
+        // Wall clock set back an hour, the server and elapsed agree as ever
+        policy.onSuccess(new TimeSample(START + elapsed, elapsed, 40, 60 * 60 * 1000, 0));
+        assertEquals(PollPolicy.MAX_POLL, policy.getPoll());
+    }
+
+    public void testServerStepResets()
+    {
+        final PollPolicy policy = new PollPolicy();
+        long elapsed = 0;
+        for (int i = 0; i < 50; i++)
+        {
+            elapsed += policy.onSuccess(new TimeSample(START + elapsed, elapsed, 40, 0, 0));
+        }
+        final long step = PollPolicy.DEFAULT_BUDGET + 1;
+        assertEquals(PollPolicy.MIN_POLL_INTERVAL,
+                policy.onSuccess(new TimeSample(START + elapsed + step, elapsed, 40, step, 0)));
+    }
+
+    public void testFailuresBackOff()
+    {
+        final PollPolicy policy = new PollPolicy();
+        assertEquals(PollPolicy.BACKOFF_MIN, policy.onFailure());
+        assertEquals(PollPolicy.BACKOFF_MIN * 2, policy.onFailure());
+        for (int i = 0; i < 40; i++)
+        {
+            policy.onFailure();
+        }
+        assertEquals(PollPolicy.MIN_POLL_INTERVAL, policy.onFailure());
+    }
+
+    public void testKissOfDeath()
+    {
+        final PollPolicy policy = new PollPolicy();
+        assertEquals(PollPolicy.MIN_POLL_INTERVAL * 2,
+                policy.onKissOfDeath(new KissOfDeathException("RATE")));
+        assertEquals(-1, policy.onKissOfDeath(new KissOfDeathException("DENY")));
+    }
+}
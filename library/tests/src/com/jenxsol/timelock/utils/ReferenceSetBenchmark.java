@@ -0,0 +1,111 @@
+package com.jenxsol.timelock.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+/**
+ * {@link SoftHashSet} against how it was before lookups were hashed
+ * ({@link LinearSoftHashSet}), at 10, 100 and 10k entries. Each op is a
+ * contains() of something in the set and one of something that isn't, the
+ * same as an add(). The old one couldn't remove() at all. Results go to the
+ * log (tag timelock), nothing is asserted on the timings as they depend on the
+ * device.
+ */
+public class ReferenceSetBenchmark extends TestCase
+{
+    private static final String TAG = "timelock";
+
+    private static final int[] SIZES = { 10, 100, 10000 };
+
+    /**
+     * Entries looked at per size, so the old one at 10k doesn't take minutes.
+     */
+    private static final int WORK = 20000000;
+    private static final int ROUNDS = 3;
+
+    public void testLookups()
+    {
+        for (int n : SIZES)
+        {
+            final Object[] objects = new Object[n];
+            for (int i = 0; i < n; i++)
+            {
+                objects[i] = new Object();
+            }
+            final int ops = Math.max(WORK / n / 10, 200);
+            long linear = Long.MAX_VALUE;
+            long hashed = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                // Best of the rounds, the first ones warm up the JIT
+                linear = Math.min(linear, nanosPerOp(new LinearSoftHashSet<Object>(), objects,
+                        ops));
+                hashed = Math.min(hashed, nanosPerOp(new SoftHashSet<Object>(), objects, ops));
+            }
+            Log.i(TAG, n + " entries: before " + linear + " ns/op, SoftHashSet " + hashed
+                    + " ns/op");
+        }
+    }
+
+    private static long nanosPerOp(Set<Object> set, Object[] objects, int ops)
+    {
+        for (Object o : objects)
+        {
+            set.add(o);
+        }
+        final Object extra = new Object();
+        int found = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < ops; i++)
+        {
+            if (set.contains(objects[i % objects.length])) found++;
+            if (set.contains(extra)) found--;
+        }
+        final long took = System.nanoTime() - start;
+        assertEquals(ops, found);
+        assertEquals(objects.length, set.size());
+        return took / ops;
+    }
+
+    /**
+     * SoftHashSet as it was: contains() comes from AbstractSet and walks the
+     * set, the references have no equals() of their own.
+     */
+    private static class LinearSoftHashSet<T> extends AbstractSet<T>
+    {
+        private final HashSet<Reference<T>> contents = new HashSet<Reference<T>>();
+
+        @Override
+        public boolean add(T o)
+        {
+            if (contains(o)) return false;
+            contents.add(new SoftReference<T>(o));
+            return true;
+        }
+
+        @Override
+        public int size()
+        {
+            int rv = 0;
+            for (Iterator<T> i = iterator(); i.hasNext();)
+            {
+                i.next();
+                rv++;
+            }
+            return rv;
+        }
+
+        @Override
+        public Iterator<T> iterator()
+        {
+            return new ReferenceSet.ReferenceIterator<T>(contents.iterator());
+        }
+    }
+}
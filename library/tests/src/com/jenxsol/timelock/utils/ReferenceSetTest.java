@@ -0,0 +1,138 @@
+package com.jenxsol.timelock.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+/**
+ * {@link ReferenceSet} and its lookup probe, through {@link SoftHashSet}.
+ */
+public class ReferenceSetTest extends TestCase
+{
+
+    public void testLookupEquals()
+    {
+        final String target = new String("activity");
+        final ReferenceSet.Lookup probe = new ReferenceSet.Lookup(target);
+        assertEquals(target.hashCode(), probe.hashCode());
+
+        // Same object, an equal one, a different one
+        assertTrue(probe.equals(new WeakReference<Object>(target)));
+        assertTrue(probe.equals(new WeakReference<Object>(new String("activity"))));
+        assertFalse(probe.equals(new WeakReference<Object>("service")));
+
+        // Cleared, and not a reference at all
+        final WeakReference<Object> cleared = new WeakReference<Object>(target);
+        cleared.clear();
+        assertFalse(probe.equals(cleared));
+        assertFalse(probe.equals(target));
+        assertFalse(probe.equals(null));
+    }
+
+    public void testBackingSetAsksTheProbe()
+    {
+        // The probe only works if HashSet calls probe.equals(entry), the
+        // entries don't know about probes. If this fails the platform's
+        // HashSet asks the other way round, and ReferenceSet can't find
+        // anything.
+        final String target = new String("activity");
+        final HashSet<Reference<String>> set = new HashSet<Reference<String>>();
+        set.add(new SoftHashSet.MySoftReference<String>(target, null));
+        assertTrue(set.contains(new ReferenceSet.Lookup(target)));
+        assertTrue(set.contains(new ReferenceSet.Lookup(new String("activity"))));
+        assertFalse(set.contains(new ReferenceSet.Lookup("service")));
+        assertTrue(set.remove(new ReferenceSet.Lookup(new String("activity"))));
+        assertTrue(set.isEmpty());
+    }
+
+    public void testEqualObjects()
+    {
+        final SoftHashSet<String> set = new SoftHashSet<String>();
+        final String a = new String("a");
+        assertTrue(set.add(a));
+        assertFalse(set.add(new String("a")));
+        assertTrue(set.contains(new String("a")));
+        assertFalse(set.contains("b"));
+        assertEquals(1, set.size());
+        assertTrue(set.remove(new String("a")));
+        assertFalse(set.remove(a));
+        assertEquals(0, set.size());
+    }
+
+    public void testNulls()
+    {
+        final SoftHashSet<String> set = new SoftHashSet<String>();
+        assertFalse(set.add(null));
+        assertFalse(set.contains(null));
+        assertFalse(set.remove(null));
+        assertEquals(0, set.size());
+    }
+
+    public void testClearedReferencesPurged()
+    {
+        final RecordingSet set = new RecordingSet();
+        final ArrayList<String> kept = new ArrayList<String>();
+        for (int i = 0; i < 10; i++)
+        {
+            final String s = "item" + i;
+            kept.add(s);
+            set.add(s);
+        }
+        assertEquals(10, set.size());
+
+        // As if the GC had taken three of them
+        for (int i = 0; i < 3; i++)
+        {
+            set.refs.get(i).clear();
+            set.refs.get(i).enqueue();
+        }
+        assertEquals(7, set.size());
+        assertFalse(set.contains(kept.get(0)));
+        assertTrue(set.contains(kept.get(3)));
+        int count = 0;
+        for (Iterator<String> i = set.iterator(); i.hasNext();)
+        {
+            assertNotNull(i.next());
+            count++;
+        }
+        assertEquals(7, count);
+
+        // And can go back in
+        assertTrue(set.add(kept.get(0)));
+        assertEquals(8, set.size());
+    }
+
+    public void testClearedButNotQueued()
+    {
+        final RecordingSet set = new RecordingSet();
+        final String a = "a";
+        set.add(a);
+        // Collected, the GC hasn't got round to queueing it
+        set.refs.get(0).clear();
+        assertFalse(set.contains(a));
+        assertFalse(set.iterator().hasNext());
+        // The iterator dropped it
+        assertEquals(0, set.size());
+    }
+
+    /**
+     * Keeps hold of the references it makes, so the test can clear them.
+     */
+    private static class RecordingSet extends SoftHashSet<String>
+    {
+        final ArrayList<Reference<String>> refs = new ArrayList<Reference<String>>();
+
+        @Override
+        protected Reference<String> getReference(String o, ReferenceQueue<? super String> q)
+        {
+            final Reference<String> ref = super.getReference(o, q);
+            refs.add(ref);
+            return ref;
+        }
+    }
+}
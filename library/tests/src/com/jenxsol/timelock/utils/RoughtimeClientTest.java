@@ -0,0 +1,183 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import android.os.SystemClock;
+
+/**
+ * Talks to a {@link LoopbackRoughtimeServer}, so no network needed.
+ */
+public class RoughtimeClientTest extends TestCase
+{
+
+    private static final long SKEW = 5000;
+
+    private LoopbackRoughtimeServer mServer;
+    private RoughtimeClient mClient;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mServer = new LoopbackRoughtimeServer();
+        mServer.skew = SKEW;
+        mClient = new RoughtimeClient("127.0.0.1", mServer.getPort(), mServer.getPublicKey());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testGetTime() throws IOException
+    {
+        final TimeSample sample = mClient.getTime(5000);
+        assertGood(sample);
+        assertEquals(System.currentTimeMillis() + SKEW, sample.getNtpTime()
+                + SystemClock.elapsedRealtime() - sample.getNtpTimeReference(),
+                sample.getDispersion());
+        assertEquals(1, mServer.requests.get());
+    }
+
+    public void testBatchedByServer() throws IOException
+    {
+        // Our nonce is the second leaf, then the left of the next level up
+        mServer.depth = 1;
+        mServer.index = 1;
+        assertGood(mClient.getTime(5000));
+        mServer.depth = 3;
+        mServer.index = 2;
+        assertGood(mClient.getTime(5000));
+    }
+
+    public void testBadIndex()
+    {
+        // Claims a leaf past the end of the tree
+        mServer.depth = 1;
+        mServer.index = 3;
+        assertRejected("Bad INDX");
+    }
+
+    public void testBadSignature()
+    {
+        mServer.badSignature = true;
+        assertRejected("Bad response signature");
+    }
+
+    public void testWrongServerKey() throws IOException
+    {
+        mClient = new RoughtimeClient("127.0.0.1", mServer.getPort(),
+                new Ed25519Signer(LoopbackRoughtimeServer.DELEGATED_SEED).getPublicKey());
+        assertRejected("Bad delegation signature");
+    }
+
+    public void testReplay() throws IOException
+    {
+        assertGood(mClient.getTime(5000));
+        // Properly signed, but for the last request's nonce
+        mServer.replay = true;
+        assertRejected("Not a reply to our request");
+    }
+
+    public void testChosenNonce() throws IOException
+    {
+        assertGood(mClient.requestSample(LoopbackRoughtimeServer.seed(9), 5000));
+        try
+        {
+            mClient.requestSample(new byte[32], 5000);
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    public void testTimeout() throws IOException
+    {
+        mServer.silent = true;
+        final long start = SystemClock.elapsedRealtime();
+        try
+        {
+            mClient.getTime(300);
+            fail();
+        }
+        catch (SocketTimeoutException e)
+        {
+            // expected
+        }
+        final long took = SystemClock.elapsedRealtime() - start;
+        assertTrue("took " + took, took >= 300 && took < 300 + 1000);
+    }
+
+    public void testCallersShareRequest() throws Exception
+    {
+        final int callers = 8;
+        mServer.delay = 500;
+        final ExecutorService executor = Executors.newFixedThreadPool(callers + 1);
+        try
+        {
+            final Callable<TimeSample> ask = new Callable<TimeSample>()
+            {
+                @Override
+                public TimeSample call() throws IOException
+                {
+                    return mClient.getTime(10000);
+                }
+            };
+            // One request out, everyone else asks while it is
+            final Future<TimeSample> first = executor.submit(ask);
+            while (mServer.requests.get() == 0)
+            {
+                Thread.sleep(5);
+            }
+            final Future<?>[] rest = new Future<?>[callers];
+            for (int i = 0; i < callers; i++)
+            {
+                rest[i] = executor.submit(ask);
+            }
+            assertGood(first.get());
+            for (Future<?> f : rest)
+            {
+                assertGood((TimeSample) f.get());
+            }
+            // The first on its own, then all the rest together
+            assertEquals(2, mServer.requests.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void assertGood(TimeSample sample)
+    {
+        assertNotNull(sample);
+        // Radius in millis, plus half the round trip
+        assertTrue(sample.getDispersion() > LoopbackRoughtimeServer.RADIUS / 1000);
+        assertEquals(SKEW, sample.getClockOffset(), sample.getDispersion());
+    }
+
+    private void assertRejected(String reason)
+    {
+        try
+        {
+            mClient.getTime(1000);
+            fail();
+        }
+        catch (IOException e)
+        {
+            // Bad replies are ignored until it times out, saying why
+            assertTrue(e instanceof SocketTimeoutException);
+            assertTrue(e.getMessage(), e.getMessage().endsWith(reason));
+        }
+    }
+}
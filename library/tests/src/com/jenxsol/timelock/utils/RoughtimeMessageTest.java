@@ -0,0 +1,174 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class RoughtimeMessageTest extends TestCase
+{
+
+    public void testParse() throws IOException
+    {
+        final byte[] nonce = LoopbackRoughtimeServer.seed(7);
+        final byte[] b = LoopbackRoughtimeServer.message(new int[] { RoughtimeMessage.MIDP,
+                RoughtimeMessage.NONC, RoughtimeMessage.RADI }, new byte[][] {
+                LoopbackRoughtimeServer.longBytes(0x0123456789abcdefL), nonce,
+                LoopbackRoughtimeServer.intBytes(-2) });
+        final RoughtimeMessage msg = RoughtimeMessage.parse(b, 0, b.length);
+        assertEquals(0x0123456789abcdefL, msg.getLong(RoughtimeMessage.MIDP));
+        // Unsigned on the wire, the caller masks it
+        assertEquals(-2, msg.getInt(RoughtimeMessage.RADI));
+        assertTrue(Arrays.equals(nonce, msg.getBytes(RoughtimeMessage.NONC)));
+        assertTrue(Arrays.equals(nonce, msg.getBytes(RoughtimeMessage.NONC, nonce.length)));
+    }
+
+    public void testParseAtOffset() throws IOException
+    {
+        final byte[] m = LoopbackRoughtimeServer.message(new int[] { RoughtimeMessage.INDX },
+                new byte[][] { LoopbackRoughtimeServer.intBytes(3) });
+        final byte[] b = new byte[m.length + 16];
+        System.arraycopy(m, 0, b, 8, m.length);
+        assertEquals(3, RoughtimeMessage.parse(b, 8, m.length).getInt(RoughtimeMessage.INDX));
+    }
+
+    public void testEmptyValues() throws IOException
+    {
+        final byte[] b = LoopbackRoughtimeServer.message(new int[] { RoughtimeMessage.PATH,
+                RoughtimeMessage.INDX }, new byte[][] { new byte[0],
+                LoopbackRoughtimeServer.intBytes(0) });
+        final RoughtimeMessage msg = RoughtimeMessage.parse(b, 0, b.length);
+        assertEquals(0, msg.getBytes(RoughtimeMessage.PATH).length);
+        assertEquals(0, msg.getInt(RoughtimeMessage.INDX));
+
+        final byte[] none = new byte[4];
+        assertMissing(RoughtimeMessage.parse(none, 0, none.length), RoughtimeMessage.PATH);
+    }
+
+    public void testWrongSizes() throws IOException
+    {
+        final byte[] b = LoopbackRoughtimeServer.message(new int[] { RoughtimeMessage.RADI,
+                RoughtimeMessage.MIDP }, new byte[][] { LoopbackRoughtimeServer.longBytes(1),
+                LoopbackRoughtimeServer.intBytes(1) });
+        final RoughtimeMessage msg = RoughtimeMessage.parse(b, 0, b.length);
+        assertBad(msg, RoughtimeMessage.RADI);
+        assertBad(msg, RoughtimeMessage.MIDP);
+        try
+        {
+            msg.getBytes(RoughtimeMessage.RADI, 4);
+            fail();
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        assertMissing(msg, RoughtimeMessage.SIG);
+    }
+
+    public void testMalformed()
+    {
+        final byte[] good = LoopbackRoughtimeServer.message(new int[] { RoughtimeMessage.SIG,
+                RoughtimeMessage.PATH, RoughtimeMessage.INDX }, new byte[][] { new byte[8],
+                new byte[8], new byte[4] });
+
+        // Not a multiple of 4, too short
+        assertMalformed(good, good.length - 1);
+        assertMalformed(good, 3);
+        assertMalformed(new byte[0], 0);
+
+        // More tags than fit
+        byte[] b = good.clone();
+        RoughtimeMessage.writeInt(b, 0, 100);
+        assertMalformed(b, b.length);
+        b = good.clone();
+        RoughtimeMessage.writeInt(b, 0, -1);
+        assertMalformed(b, b.length);
+
+        // Tags out of order, and the same twice
+        b = good.clone();
+        RoughtimeMessage.writeInt(b, 12, RoughtimeMessage.INDX);
+        RoughtimeMessage.writeInt(b, 20, RoughtimeMessage.SIG);
+        assertMalformed(b, b.length);
+        b = good.clone();
+        RoughtimeMessage.writeInt(b, 16, RoughtimeMessage.SIG);
+        assertMalformed(b, b.length);
+
+        // Offsets not aligned, going backwards, past the end
+        b = good.clone();
+        RoughtimeMessage.writeInt(b, 4, 6);
+        assertMalformed(b, b.length);
+        b = good.clone();
+        RoughtimeMessage.writeInt(b, 8, 4);
+        assertMalformed(b, b.length);
+        b = good.clone();
+        RoughtimeMessage.writeInt(b, 8, 24);
+        assertMalformed(b, b.length);
+    }
+
+    public void testUnsignedTagOrder() throws IOException
+    {
+        // PAD\xff has the top bit set, so goes after NONC
+        final byte[] b = LoopbackRoughtimeServer.message(new int[] { RoughtimeMessage.PAD,
+                RoughtimeMessage.NONC }, new byte[][] { new byte[4], new byte[8] });
+        assertEquals(RoughtimeMessage.NONC, RoughtimeMessage.readInt(b, 8));
+        assertEquals(RoughtimeMessage.PAD, RoughtimeMessage.readInt(b, 12));
+        assertEquals(8, RoughtimeMessage.parse(b, 0, b.length).getBytes(RoughtimeMessage.NONC)
+                .length);
+    }
+
+    public void testWriteRequest() throws IOException
+    {
+        final byte[] nonce = LoopbackRoughtimeServer.seed(3);
+        final byte[] out = new byte[1024];
+        Arrays.fill(out, (byte) 0x55);
+        RoughtimeMessage.writeRequest(out, nonce);
+        final RoughtimeMessage msg = RoughtimeMessage.parse(out, 0, out.length);
+        assertTrue(Arrays.equals(nonce, msg.getBytes(RoughtimeMessage.NONC)));
+        final byte[] pad = msg.getBytes(RoughtimeMessage.PAD);
+        assertEquals(1024 - 16 - nonce.length, pad.length);
+        for (byte p : pad)
+        {
+            assertEquals(0, p);
+        }
+    }
+
+    private static void assertMalformed(byte[] b, int length)
+    {
+        try
+        {
+            RoughtimeMessage.parse(b, 0, length);
+            fail();
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    private static void assertBad(RoughtimeMessage msg, int tag)
+    {
+        try
+        {
+            if (tag == RoughtimeMessage.MIDP) msg.getLong(tag);
+            else msg.getInt(tag);
+            fail();
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Bad"));
+        }
+    }
+
+    private static void assertMissing(RoughtimeMessage msg, int tag)
+    {
+        try
+        {
+            msg.getBytes(tag);
+            fail();
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("No"));
+        }
+    }
+}
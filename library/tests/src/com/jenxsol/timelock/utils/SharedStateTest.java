@@ -0,0 +1,153 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+public class SharedStateTest extends TestCase
+{
+
+    private static final long APK = 1234;
+    private static final String BOOT_ID = "4b1ab2a4-4b7c-4b52-9a8e-2b1e54a6a1f3";
+
+    /**
+     * Wall clock estimate of the boot time, 2012-10-16.
+     */
+    private static final long BOOT = 1350345600000L;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mFile = File.createTempFile("timelock", ".state");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testSameBootKeepsState() throws Exception
+    {
+        write(SharedState.open(mFile, APK, BOOT_ID, BOOT));
+        // Another process, the wall clock has been moved since
+        final SharedState s = SharedState.open(mFile, APK, BOOT_ID, BOOT + 3600000);
+        assertKept(s);
+        s.close();
+    }
+
+    public void testNewBootId() throws Exception
+    {
+        write(SharedState.open(mFile, APK, BOOT_ID, BOOT));
+        final SharedState s = SharedState.open(mFile, APK, "another boot", BOOT);
+        assertRebooted(s);
+        s.close();
+    }
+
+    public void testNoBootIdSameBoot() throws Exception
+    {
+        write(SharedState.open(mFile, APK, null, BOOT));
+        // Within the slop, just the estimate wobbling
+        final SharedState s = SharedState.open(mFile, APK, null,
+                BOOT + TrustedClock.BOOT_TIME_SLOP / 2);
+        assertKept(s);
+        s.close();
+    }
+
+    public void testNoBootIdReboot() throws Exception
+    {
+        write(SharedState.open(mFile, APK, null, BOOT));
+        // Rebooted an hour later, long enough that the old elapsed times look
+        // like they're from this boot
+        final SharedState s = SharedState.open(mFile, APK, null, BOOT + 3600000);
+        assertRebooted(s);
+        s.close();
+    }
+
+    public void testBootIdGoneMissing() throws Exception
+    {
+        write(SharedState.open(mFile, APK, BOOT_ID, BOOT));
+        final SharedState s = SharedState.open(mFile, APK, null, BOOT);
+        assertRebooted(s);
+        s.close();
+    }
+
+    public void testNewApk() throws Exception
+    {
+        write(SharedState.open(mFile, APK, BOOT_ID, BOOT));
+        final SharedState old = SharedState.open(mFile, APK, BOOT_ID, BOOT);
+        // Updated while a process of the old one is still running
+        final SharedState s = SharedState.open(mFile, APK + 1, BOOT_ID, BOOT);
+        assertEquals(-1, s.getBuildTime(APK));
+        assertEquals(0, s.getExpiredAt());
+        // Same boot, the time still stands
+        final long[] v = new long[3];
+        assertTrue(s.readTrusted(v));
+        // The old one can't expire the new one
+        old.setExpiredAt(BOOT + 8000);
+        assertEquals(0, s.getExpiredAt());
+        s.setExpiredAt(BOOT + 9000);
+        assertEquals(BOOT + 9000, old.getExpiredAt());
+        old.close();
+        s.close();
+    }
+
+    public void testExpiredAtOnlyMovesOn() throws Exception
+    {
+        final SharedState s = SharedState.open(mFile, APK, BOOT_ID, BOOT);
+        s.setExpiredAt(2000);
+        s.setExpiredAt(1000);
+        assertEquals(2000, s.getExpiredAt());
+        s.close();
+    }
+
+    public void testTrustedEpoch() throws Exception
+    {
+        final SharedState s = SharedState.open(mFile, APK, BOOT_ID, BOOT);
+        assertEquals(0, s.getTrustedEpoch());
+        final long sequence = s.getSequence();
+        s.writeTrusted(BOOT + 5000, 5000, 20);
+        assertEquals(BOOT, s.getTrustedEpoch());
+        assertTrue(s.getSequence() != sequence);
+        s.close();
+    }
+
+    private static void write(SharedState s)
+    {
+        s.setBuildTime(APK, BOOT - 1000);
+        s.writeTrusted(BOOT + 5000, 5000, 20);
+        s.writeMark(BOOT + 6000, 6000, false);
+        s.setExpiredAt(BOOT + 7000);
+        s.close();
+    }
+
+    private static void assertKept(SharedState s)
+    {
+        final long[] v = new long[3];
+        assertTrue(s.readTrusted(v));
+        assertEquals(BOOT + 5000, v[0]);
+        assertEquals(5000, v[1]);
+        assertEquals(20, v[2]);
+        assertTrue(s.readMark(v));
+        assertEquals(6000, v[1]);
+        assertEquals(BOOT + 7000, s.getExpiredAt());
+        assertEquals(BOOT - 1000, s.getBuildTime(APK));
+    }
+
+    private static void assertRebooted(SharedState s)
+    {
+        final long[] v = new long[3];
+        assertFalse(s.readTrusted(v));
+        // The mark's time stays, its elapsed time means nothing now
+        assertTrue(s.readMark(v));
+        assertEquals(BOOT + 6000, v[0]);
+        assertEquals(0, v[1]);
+        assertEquals(0, s.getExpiredAt());
+        // Same APK, so the build time is still good
+        assertEquals(BOOT - 1000, s.getBuildTime(APK));
+    }
+}
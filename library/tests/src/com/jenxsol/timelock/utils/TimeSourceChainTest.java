@@ -0,0 +1,118 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+import junit.framework.TestCase;
+import android.os.SystemClock;
+
+public class TimeSourceChainTest extends TestCase
+{
+
+    /**
+     * Dispersion the fake answers with, so we can tell it from the system
+     * clock.
+     */
+    private static final long FAKE_DISPERSION = 10;
+
+    /**
+     * Answers after a delay, or fails if it's negative.
+     */
+    private static final class FakeSource implements TimeSource
+    {
+        volatile long delay;
+
+        FakeSource(long delay)
+        {
+            this.delay = delay;
+        }
+
+        @Override
+        public TimeSample getTime(int timeout) throws IOException
+        {
+            final long d = delay;
+            if (d < 0) throw new IOException("down");
+            try
+            {
+                Thread.sleep(d);
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException();
+            }
+            return new TimeSample(System.currentTimeMillis(), SystemClock.elapsedRealtime(), d,
+                    0, FAKE_DISPERSION);
+        }
+
+        @Override
+        public String getName()
+        {
+            return "fake";
+        }
+    }
+
+    public void testSlowSourceBeatsSystemClock() throws IOException
+    {
+        final FakeSource slow = new FakeSource(5);
+        final TimeSourceChain chain = new TimeSourceChain(slow, new SystemTimeSource());
+        for (int i = 0; i < TimeSourceChain.MIN_SAMPLES; i++)
+        {
+            assertEquals(FAKE_DISPERSION, chain.getTime(5000).getDispersion());
+        }
+        // Way past its p95, so the system clock is asked and answers at once
+        slow.delay = 20 * chain.getHedgeDelay(0) + 100;
+        final TimeSample sample = chain.getTime(5000);
+        assertEquals(FAKE_DISPERSION, sample.getDispersion());
+        assertEquals(slow.delay, sample.getRoundTripTime());
+    }
+
+    public void testSystemClockWhenSourceFails() throws IOException
+    {
+        final TimeSourceChain chain = new TimeSourceChain(new FakeSource(-1),
+                new SystemTimeSource());
+        assertTrue(chain.getTime(1000).getDispersion() >= TimeSource.UNTRUSTED);
+    }
+
+    public void testSystemClockWhenSourceTimesOut() throws IOException
+    {
+        final FakeSource slow = new FakeSource(5);
+        final TimeSourceChain chain = new TimeSourceChain(slow, new SystemTimeSource());
+        for (int i = 0; i < TimeSourceChain.MIN_SAMPLES; i++)
+        {
+            chain.getTime(5000);
+        }
+        slow.delay = 10000;
+        final long start = SystemClock.elapsedRealtime();
+        assertTrue(chain.getTime(300).getDispersion() >= TimeSource.UNTRUSTED);
+        // Waited for the slow one right up to the timeout
+        assertTrue(SystemClock.elapsedRealtime() - start >= 300);
+    }
+
+    public void testTimeout() throws IOException
+    {
+        final TimeSourceChain chain = new TimeSourceChain(new FakeSource(10000));
+        try
+        {
+            chain.getTime(300);
+            fail();
+        }
+        catch (SocketTimeoutException e)
+        {
+        }
+    }
+
+    public void testAllFailed()
+    {
+        final TimeSourceChain chain = new TimeSourceChain(new FakeSource(-1), new FakeSource(-1));
+        try
+        {
+            chain.getTime(1000);
+            fail();
+        }
+        catch (IOException e)
+        {
+            assertEquals("down", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.jenxsol.timelock.utils;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * {@link TimeSync} keeps going whatever the source or the listener throws.
+ */
+public class TimeSyncTest extends TestCase
+{
+
+    public void testKeepsPollingAfterThrows() throws Exception
+    {
+        final AtomicInteger polls = new AtomicInteger();
+        final TimeSource source = new TimeSource()
+        {
+            @Override
+            public TimeSample getTime(int timeout) throws IOException
+            {
+                switch (polls.incrementAndGet())
+                {
+                case 1:
+                    // No INTERNET permission
+                    throw new SecurityException("Permission denied");
+                case 2:
+                    throw new IOException("timeout");
+                case 3:
+                    return new TimeSample(0, 0, 0, 0, TimeSource.UNTRUSTED);
+                default:
+                    return new TimeSample(1000, 0, 40, 0, 0);
+                }
+            }
+
+            @Override
+            public String getName()
+            {
+                return "test";
+            }
+        };
+
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch good = new CountDownLatch(2);
+        final TimeSync.Listener listener = new TimeSync.Listener()
+        {
+            @Override
+            public void onTime(TimeSample sample)
+            {
+                if (calls.incrementAndGet() == 1) throw new IllegalStateException("not yet");
+                good.countDown();
+            }
+        };
+
+        final CountingPolicy policy = new CountingPolicy();
+        final TimeSync sync = new TimeSync(source, policy, listener);
+        sync.start(0);
+        try
+        {
+            assertTrue("polls " + polls.get(), good.await(5, TimeUnit.SECONDS));
+            assertTrue(sync.isRunning());
+        }
+        finally
+        {
+            sync.stop();
+        }
+        // Source threw twice, one untrusted answer, the listener threw once
+        assertEquals(4, policy.failures.get());
+        assertTrue(policy.successes.get() >= 3);
+        assertFalse(sync.isRunning());
+    }
+
+    public void testDenyStops() throws Exception
+    {
+        final CountDownLatch asked = new CountDownLatch(1);
+        final TimeSource source = new TimeSource()
+        {
+            @Override
+            public TimeSample getTime(int timeout) throws IOException
+            {
+                asked.countDown();
+                throw new KissOfDeathException("DENY");
+            }
+
+            @Override
+            public String getName()
+            {
+                return "test";
+            }
+        };
+        final TimeSync sync = new TimeSync(source, new CountingPolicy(), null);
+        sync.start(0);
+        assertTrue(asked.await(5, TimeUnit.SECONDS));
+        final long until = System.currentTimeMillis() + 5000;
+        while (sync.isRunning() && System.currentTimeMillis() < until)
+        {
+            Thread.sleep(10);
+        }
+        assertFalse(sync.isRunning());
+    }
+
+    /**
+     * Polls every millisecond, counting what happened.
+     */
+    private static class CountingPolicy extends PollPolicy
+    {
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        @Override
+        public long onSuccess(TimeSample sample)
+        {
+            successes.incrementAndGet();
+            return 1;
+        }
+
+        @Override
+        public long onFailure()
+        {
+            failures.incrementAndGet();
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.jenxsol.timelock.utils;
+
+import junit.framework.TestCase;
+import android.content.Context;
+import android.os.SystemClock;
+
+/**
+ * {@link TrustedClock} against samples taken a while ago on the real elapsed
+ * clock, with the preferences in memory.
+ */
+public class TrustedClockTest extends TestCase
+{
+
+    private static final long TIME = 1350000000000L;
+
+    /**
+     * Elapsed millis a test can take between two reads.
+     */
+    private static final long SLOP = 1000;
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mContext = MapPreferences.context();
+    }
+
+    private TrustedClock open(String bootId)
+    {
+        return new TrustedClock(mContext, TrustedClock.DEFAULT_TTL,
+                TrustedClock.DEFAULT_MAX_ERROR, null, bootId);
+    }
+
+    /**
+     * @return a sample taken age millis ago
+     */
+    private static TimeSample sample(long age, long dispersion)
+    {
+        return new TimeSample(TIME, SystemClock.elapsedRealtime() - age, 40, 0, dispersion);
+    }
+
+    private static void assertNear(long expected, long actual)
+    {
+        assertTrue("expected " + expected + " got " + actual, actual >= expected
+                && actual <= expected + SLOP);
+    }
+
+    public void testNoTime()
+    {
+        final TrustedClock clock = open("boot");
+        assertFalse(clock.isValid());
+        assertEquals(-1, clock.currentTimeMillis());
+        assertEquals(-1, clock.getAge());
+        assertEquals(-1, clock.getError());
+    }
+
+    public void testAnchorAges()
+    {
+        final TrustedClock clock = open("boot");
+        assertTrue(clock.update(sample(5000, 10)));
+        assertTrue(clock.isValid());
+        // Moves on with the elapsed clock, not the wall clock
+        assertNear(TIME + 5000, clock.currentTimeMillis());
+        assertNear(5000, clock.getAge());
+    }
+
+    public void testErrorGrows100ppm()
+    {
+        final TrustedClock clock = open("boot");
+        // 1000s old, 100ms of drift on top of its own 50
+        assertTrue(clock.update(sample(1000 * 1000, 50)));
+        final long error = clock.getError();
+        assertTrue("error " + error, error >= 150 && error <= 151);
+        assertTrue(clock.isValid());
+
+        // 10,000s, a second more
+        clock.clear();
+        assertTrue(clock.update(sample(10000 * 1000, 50)));
+        final long later = clock.getError();
+        assertTrue("error " + later, later >= 1050 && later <= 1051);
+    }
+
+    public void testTtl()
+    {
+        final TrustedClock clock = new TrustedClock(mContext, 60 * 1000,
+                TrustedClock.DEFAULT_MAX_ERROR, null, "boot");
+        assertTrue(clock.update(sample(50 * 1000, 0)));
+        assertTrue(clock.isValid());
+
+        clock.clear();
+        assertTrue(clock.update(sample(61 * 1000, 0)));
+        assertFalse(clock.isValid());
+        assertEquals(-1, clock.currentTimeMillis());
+        // Still knows how old it is
+        assertNear(61 * 1000, clock.getAge());
+    }
+
+    public void testMaxError()
+    {
+        final TrustedClock clock = new TrustedClock(mContext, TrustedClock.DEFAULT_TTL, 1000,
+                null, "boot");
+        assertFalse(clock.update(sample(0, 1001)));
+        assertFalse(clock.isValid());
+
+        // 500 plus 400 of drift
+        assertTrue(clock.update(sample(4000 * 1000, 500)));
+        assertTrue(clock.isValid());
+
+        // 500 plus 600 is past it, even though it's inside the TTL
+        clock.clear();
+        assertTrue(clock.update(sample(6000 * 1000, 500)));
+        assertFalse(clock.isValid());
+        assertEquals(-1, clock.currentTimeMillis());
+    }
+
+    public void testKeepsTighterSample()
+    {
+        final TrustedClock clock = open("boot");
+        assertTrue(clock.update(sample(1000, 10)));
+        // Newer but looser than ours will be by then
+        assertFalse(clock.update(sample(0, 500)));
+        // Older and no better
+        assertFalse(clock.update(sample(2000, 20)));
+        assertNear(TIME + 1000, clock.currentTimeMillis());
+        assertTrue(clock.update(sample(0, 5)));
+        assertNear(TIME, clock.currentTimeMillis());
+        // Older but that much tighter
+        assertTrue(clock.update(sample(2000, 0)));
+        assertNear(TIME + 2000, clock.currentTimeMillis());
+    }
+
+    public void testLoadSameBoot()
+    {
+        assertTrue(open("boot").update(sample(5000, 10)));
+        final TrustedClock clock = open("boot");
+        assertTrue(clock.isValid());
+        assertNear(TIME + 5000, clock.currentTimeMillis());
+        assertNear(5000, clock.getAge());
+    }
+
+    public void testLoadNewBootId()
+    {
+        assertTrue(open("boot").update(sample(5000, 10)));
+        // Elapsed started again from 0, the reference means nothing now
+        assertFalse(open("another boot").isValid());
+    }
+
+    public void testLoadNoBootId()
+    {
+        assertTrue(open(null).update(sample(5000, 10)));
+        assertTrue(open(null).isValid());
+
+        // Booted an hour later than it was saved with
+        mContext.getSharedPreferences("timelock", Context.MODE_PRIVATE).edit()
+                .putLong("trusted_boot_time", TrustedClock.bootTime() - 60 * 60 * 1000)
+                .commit();
+        assertFalse(open(null).isValid());
+    }
+
+    public void testLoadBootTimeWithinSlop()
+    {
+        assertTrue(open(null).update(sample(5000, 10)));
+        // The wall clock was nudged a bit, i.e. by the network
+        mContext.getSharedPreferences("timelock", Context.MODE_PRIVATE).edit()
+                .putLong("trusted_boot_time",
+                        TrustedClock.bootTime() - TrustedClock.BOOT_TIME_SLOP / 2)
+                .commit();
+        assertTrue(open(null).isValid());
+    }
+
+    public void testLoadReferenceFromTheFuture()
+    {
+        assertTrue(open("boot").update(sample(5000, 10)));
+        // Saved after more time since boot than there has been, a reboot
+        mContext.getSharedPreferences("timelock", Context.MODE_PRIVATE).edit()
+                .putLong("trusted_reference", SystemClock.elapsedRealtime() + 60 * 1000)
+                .commit();
+        assertFalse(open("boot").isValid());
+    }
+
+    public void testClear()
+    {
+        final TrustedClock clock = open("boot");
+        assertTrue(clock.update(sample(0, 10)));
+        clock.clear();
+        assertFalse(clock.isValid());
+        assertFalse(open("boot").isValid());
+    }
+}